@@ -20,6 +20,7 @@ package com.katsuna.camera;
 
 import android.app.KeyguardManager;
 import android.content.ActivityNotFoundException;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
@@ -43,10 +44,12 @@ import android.widget.Button;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import com.katsuna.camera.api.CameraCapabilities;
 import com.katsuna.camera.data.BlackAndWhiteMode;
 import com.katsuna.camera.data.FlashMode;
 import com.katsuna.camera.data.SizeMode;
 import com.katsuna.camera.data.source.SettingsDataSource;
+import com.katsuna.camera.storage.LastCaptures;
 import com.katsuna.camera.utils.DepedencyUtils;
 import com.katsuna.camera.utils.OrientationManager;
 import com.katsuna.camera.utils.OrientationManagerImpl;
@@ -71,7 +74,7 @@ public class CameraActivity extends AppCompatActivity implements ICameraHost {
     private static final String CAMERA_MODE_KEY = "CAMERA_MODE_KEY";
 
     private String mActiveCameraId;
-    private CameraCharacteristics mActiveCameraCharacteristics;
+    private CameraCapabilities mActiveCameraCapabilities;
     private CameraMode mActiveCameraMode;
     private View mSettings;
     private Button mSettingsClose;
@@ -265,6 +268,19 @@ public class CameraActivity extends AppCompatActivity implements ICameraHost {
 
     @Override
     public void goToGalleryApp(CameraMode cameraMode) {
+        LastCaptures.Capture last = LastCaptures.instance().getLast(cameraMode);
+        if (last != null && ContentResolver.SCHEME_CONTENT.equals(last.getUri().getScheme())) {
+            Intent intent = new Intent(Intent.ACTION_VIEW)
+                    .setDataAndType(last.getUri(), last.getMimeType())
+                    .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            try {
+                startActivity(intent);
+                return;
+            } catch (ActivityNotFoundException ex) {
+                Timber.w(ex, "No viewer for %s", last.getUri());
+            }
+        }
+
         String bucketId = "";
 
         if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.P) {
@@ -334,13 +350,18 @@ public class CameraActivity extends AppCompatActivity implements ICameraHost {
     }
 
     @Override
-    public CameraCharacteristics getActiveCameraCharacteristics() {
-        return mActiveCameraCharacteristics;
+    public CameraCapabilities getActiveCameraCapabilities() {
+        return mActiveCameraCapabilities;
     }
 
     @Override
-    public void setActiveCameraCharacteristics(CameraCharacteristics characteristics) {
-        mActiveCameraCharacteristics = characteristics;
+    public void setActiveCameraCapabilities(CameraCapabilities capabilities) {
+        mActiveCameraCapabilities = capabilities;
+    }
+
+    public CameraCharacteristics getActiveCameraCharacteristics() {
+        return mActiveCameraCapabilities == null ? null
+                : mActiveCameraCapabilities.getCharacteristics();
     }
 
     @Override
@@ -21,6 +21,10 @@ package com.katsuna.camera;
 import android.app.Application;
 import android.content.Context;
 
+import com.katsuna.camera.api.CameraPrewarm;
+import com.katsuna.camera.storage.CaptureJournal;
+import com.katsuna.camera.storage.CaptureSizeEstimator;
+import com.katsuna.camera.storage.StorageTargets;
 import com.katsuna.camera.utils.AndroidContext;
 
 import timber.log.Timber;
@@ -38,5 +42,11 @@ public class CameraApplication extends Application {
         if (BuildConfig.DEBUG) {
             Timber.plant(new Timber.DebugTree());
         }
+
+        CameraPrewarm.start(context);
+        StorageTargets.instance().start();
+        CaptureJournal.instance().recover();
+        // starts loading the learnt capture sizes in the background
+        CaptureSizeEstimator.instance();
     }
 }
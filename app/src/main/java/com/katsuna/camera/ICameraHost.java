@@ -18,8 +18,7 @@
 */
 package com.katsuna.camera;
 
-import android.hardware.camera2.CameraCharacteristics;
-
+import com.katsuna.camera.api.CameraCapabilities;
 import com.katsuna.camera.utils.OrientationManager;
 import com.katsuna.commons.entities.UserProfile;
 
@@ -35,9 +34,9 @@ public interface ICameraHost {
 
     void setActiveCameraId(String cameraId);
 
-    CameraCharacteristics getActiveCameraCharacteristics();
+    CameraCapabilities getActiveCameraCapabilities();
 
-    void setActiveCameraCharacteristics(CameraCharacteristics characteristics);
+    void setActiveCameraCapabilities(CameraCapabilities capabilities);
 
     void showSettings(boolean enabled);
 
@@ -18,6 +18,7 @@
 */
 package com.katsuna.camera;
 
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -27,6 +28,9 @@ import android.support.v7.app.ActionBarDrawerToggle;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.katsuna.camera.storage.LastCaptures;
+import com.katsuna.camera.storage.StorageTargets;
+import com.katsuna.camera.utils.PipelineTrace;
 import com.katsuna.commons.controls.KatsunaNavigationView;
 import com.katsuna.commons.ui.KatsunaActivity;
 import com.katsuna.commons.utils.BrowserUtils;
@@ -106,6 +110,12 @@ public class InfoActivity extends KatsunaActivity {
                         case R.id.drawer_terms:
                             BrowserUtils.openUrl(InfoActivity.this, KATSUNA_TERMS_OF_USE);
                             break;
+                        case R.id.drawer_capture_stats:
+                            showCaptureStats();
+                            break;
+                        case R.id.drawer_storage_benchmark:
+                            showStorageBenchmark();
+                            break;
                     }
 
                     return true;
@@ -113,4 +123,39 @@ public class InfoActivity extends KatsunaActivity {
         navigationView.setOnClickListener(v -> mDrawerLayout.closeDrawers());
     }
 
+    private void showCaptureStats() {
+        PipelineTrace trace = PipelineTrace.instance();
+        trace.log();
+
+        String stats = trace.dump();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.capture_stats)
+                .setMessage(stats.isEmpty() ? getString(R.string.capture_stats_empty)
+                        : stats + "\n" + LastCaptures.instance())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    private void showStorageBenchmark() {
+        StorageTargets targets = StorageTargets.instance();
+        StorageTargets.Volume selected = targets.getSelected();
+
+        StringBuilder message = new StringBuilder();
+        for (StorageTargets.Volume volume : targets.getVolumes()) {
+            if (message.length() > 0) {
+                message.append("\n\n");
+            }
+            message.append(volume);
+            if (volume == selected) {
+                message.append('\n').append(getString(R.string.storage_benchmark_selected));
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.storage_benchmark)
+                .setMessage(message.length() == 0
+                        ? getString(R.string.storage_benchmark_empty) : message)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
 }
\ No newline at end of file
@@ -24,6 +24,7 @@ import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.content.res.ColorStateList;
 import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
@@ -35,7 +36,6 @@ import android.graphics.SurfaceTexture;
 import android.graphics.drawable.Drawable;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureFailure;
@@ -43,11 +43,16 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.MeteringRectangle;
+import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaActionSound;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.ActivityCompat;
@@ -66,34 +71,47 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.katsuna.camera.api.CameraCapabilities;
 import com.katsuna.camera.api.CameraHelper;
 import com.katsuna.camera.api.CameraState;
-import com.katsuna.camera.api.CharacteristicUtil;
+import com.katsuna.camera.api.CaptureStateMachine;
 import com.katsuna.camera.api.FlashUtil;
+import com.katsuna.camera.api.JpegProfile;
+import com.katsuna.camera.api.ZeroShutterLagEngine;
 import com.katsuna.camera.data.BlackAndWhiteMode;
 import com.katsuna.camera.data.FlashMode;
 import com.katsuna.camera.data.SizeMode;
 import com.katsuna.camera.data.source.SettingsDataSource;
+import com.katsuna.camera.storage.CaptureSizeEstimator;
+import com.katsuna.camera.storage.FilePhotoStorage;
+import com.katsuna.camera.storage.LastCaptures;
+import com.katsuna.camera.storage.MediaStorePhotoStorage;
+import com.katsuna.camera.storage.PhotoStorage;
+import com.katsuna.camera.storage.StorageMonitor;
+import com.katsuna.camera.storage.StorageSnapshot;
 import com.katsuna.camera.ui.AutoFitTextureView;
 import com.katsuna.camera.ui.ConfirmationDialog;
 import com.katsuna.camera.ui.ErrorDialog;
 import com.katsuna.camera.ui.OnBackPressed;
+import com.katsuna.camera.utils.BurstStats;
 import com.katsuna.camera.utils.CameraUtil;
-import com.katsuna.camera.utils.CompareSizesByArea;
 import com.katsuna.camera.utils.DepedencyUtils;
 import com.katsuna.camera.utils.FocusUtil;
 import com.katsuna.camera.utils.ImageSaver;
+import com.katsuna.camera.utils.MediaIndexer;
+import com.katsuna.camera.utils.PersistenceExecutor;
+import com.katsuna.camera.utils.PipelineTrace;
 import com.katsuna.camera.utils.ProfileUtils;
 import com.katsuna.camera.utils.SizeUtil;
-import com.katsuna.camera.utils.StorageUtil;
+import com.katsuna.camera.utils.ThumbnailUtil;
 import com.katsuna.commons.entities.ColorProfile;
 import com.katsuna.commons.entities.ColorProfileKeyV2;
 import com.katsuna.commons.entities.UserProfile;
 import com.katsuna.commons.utils.ColorCalcV2;
 import com.katsuna.commons.utils.DrawUtils;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
@@ -106,14 +124,13 @@ import static android.hardware.camera2.CameraDevice.TEMPLATE_STILL_CAPTURE;
 import static android.hardware.camera2.CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG;
 import static android.hardware.camera2.CameraMetadata.COLOR_CORRECTION_ABERRATION_MODE_HIGH_QUALITY;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_CANCEL;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_START;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_AUTO;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_OFF;
-import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED;
-import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_INACTIVE;
-import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_TRIGGER_CANCEL;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_TRIGGER_IDLE;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_TRIGGER_START;
 import static android.hardware.camera2.CameraMetadata.CONTROL_MODE_AUTO;
 import static android.hardware.camera2.CaptureRequest.COLOR_CORRECTION_MODE;
@@ -138,13 +155,32 @@ public class PictureFragment extends Fragment implements OnBackPressed,
     private static final String FOCUS_TAG = "FOCUS_TAG";
 
     /**
-     * Max preview width that is guaranteed by Camera2 API
+     * Max photos waiting to be written. The shutter is disabled while this many are pending.
      */
-    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final int MAX_PENDING_SAVES = 4;
     /**
-     * Max preview height that is guaranteed by Camera2 API
+     * How long closing the camera waits for the pending saves.
      */
-    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final long SAVE_DRAIN_TIMEOUT_MS = 3000;
+    /**
+     * Images the {@link ImageReader} ring can hold: the pending saves plus the one being
+     * delivered.
+     */
+    private static final int IMAGE_RING_DEPTH = MAX_PENDING_SAVES + 1;
+    /**
+     * Where photos are written to. Both backends record their timings in {@link PipelineTrace}.
+     */
+    private static final PhotoStorage.Backend PHOTO_STORAGE_BACKEND =
+            PhotoStorage.Backend.MEDIA_STORE;
+    /**
+     * Max still requests sent with each {@link CameraCaptureSession#captureBurst} while the
+     * shutter is held.
+     */
+    private static final int BURST_LENGTH = 3;
+    /**
+     * How long to wait for the images of a finished burst before counting them as dropped.
+     */
+    private static final long BURST_SETTLE_TIMEOUT_MS = 2000;
 
     /**
      * A {@link Semaphore} to prevent the app from exiting before closing the camera.
@@ -152,6 +188,13 @@ public class PictureFragment extends Fragment implements OnBackPressed,
     private final Semaphore mCameraOpenCloseLock = new Semaphore(1);
     private SettingsDataSource mSettingsDatasource;
     private TextView mGalleryButton;
+    private Drawable mGalleryIcon;
+    private final LastCaptures.Listener mLastCaptureListener = mode -> {
+        if (mode == CameraMode.PICTURE) {
+            updateGalleryButton();
+        }
+    };
+    private TextView mRemainingView;
     private FloatingActionButton mSwitchFacingButton;
     private TextView mSwitchModeButton;
     private ICameraHost mCameraHost;
@@ -180,14 +223,52 @@ public class PictureFragment extends Fragment implements OnBackPressed,
      * A {@link Handler} for running tasks in the background.
      */
     private Handler mBackgroundHandler;
+    /**
+     * A {@link Handler} for posting results back to the UI thread.
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Writes captured photos to storage. Never run file I/O on {@link #mBackgroundHandler}, it
+     * drives the capture state machine.
+     */
+    private PersistenceExecutor mPersistenceExecutor;
+    private PhotoStorage mPhotoStorage;
+    /**
+     * {@link CaptureSizeEstimator} key and expected size of the next photo.
+     */
+    private volatile String mPhotoKey;
+    private volatile long mPhotoBytes;
+    private volatile long mPhotoPixels;
+    private volatile JpegProfile mJpegProfile = JpegProfile.LARGE;
+
+    /**
+     * Ends a burst before it runs out of space.
+     */
+    private final StorageMonitor.Listener mStorageListener = new StorageMonitor.Listener() {
+        @Override
+        public void onStorageChanged(@NonNull StorageSnapshot snapshot) {
+            if (!snapshot.canCapturePicture()) {
+                stopBurst();
+            }
+            updateRemainingShots();
+        }
+
+        @Override
+        public void onThresholdApproaching(@NonNull StorageMonitor.Threshold threshold,
+                                           long secondsLeft) {
+            if (threshold == StorageMonitor.Threshold.PICTURE) {
+                stopBurst();
+            }
+        }
+    };
     /**
      * An {@link ImageReader} that handles still image capture.
      */
     private ImageReader mImageReader;
     /**
-     * This is the output file for our picture.
+     * Keeps recent frames for reprocessing, null if the camera doesn't support it.
      */
-    private File mFile;
+    private ZeroShutterLagEngine mZslEngine;
     /**
      * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
      * still image is ready to be saved.
@@ -197,18 +278,44 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
         @Override
         public void onImageAvailable(ImageReader reader) {
+            BurstStats burstStats = mBurstStats;
             try {
-                mFile = getFile();
-                Timber.d("file to save: %s", mFile.toString());
-                if (!mCaptureEnabled) {
-                    mBackgroundHandler.post(new ImageSaver(getContext(), reader.acquireNextImage(),
-                            mFile));
+                Image image = reader.acquireNextImage();
+                if (image != null) {
+                    long shutterAt = 0;
+                    if (burstStats == null && mShutterAt != 0) {
+                        shutterAt = mShutterAt;
+                        PipelineTrace.instance().record(PipelineTrace.Stage.CAPTURE_TO_IMAGE,
+                                mCaptureRequestedAt);
+                        PipelineTrace.instance().record(PipelineTrace.Stage.SHUTTER_TO_READY,
+                                shutterAt);
+                        mShutterAt = 0;
+                    }
+                    boolean queued = saveImage(image, shutterAt);
+                    if (burstStats != null) {
+                        if (queued) {
+                            burstStats.onFrameSaved();
+                        } else {
+                            burstStats.onFrameDropped();
+                        }
+                    }
+                }
+            } catch (IllegalStateException ex) {
+                Timber.e(ex, "Couldn't acquire image");
+                if (burstStats != null) {
+                    burstStats.onFrameDropped();
                 }
-            } catch (IOException ex) {
-                handleCameraException(ex, CameraOperation.FILE_ACCESS);
             } finally {
                 captureEnabled(true);
             }
+
+            if (burstStats != null && burstStats.isSettled()) {
+                mMainHandler.post(() -> {
+                    if (!mBurstHeld && !mBurstInFlight) {
+                        finishBurst(burstStats, false);
+                    }
+                });
+            }
         }
 
     };
@@ -221,20 +328,43 @@ public class PictureFragment extends Fragment implements OnBackPressed,
      */
     private CaptureRequest mPreviewRequest;
     /**
-     * The current state of camera state for taking pictures.
+     * Tracks the focus lock and precapture sequence of a still capture.
      *
      * @see #mCaptureCallback
      */
-    private CameraState mState = CameraState.PREVIEW;
+    private final CaptureStateMachine mStateMachine = new CaptureStateMachine(
+            new CaptureStateMachine.Callback() {
+                @Override
+                public void runPrecaptureSequence() {
+                    PictureFragment.this.runPrecaptureSequence();
+                }
+
+                @Override
+                public void captureStillPicture() {
+                    PictureFragment.this.captureStillPicture();
+                }
+
+                @Override
+                public void onStateChanged(CameraState previous, CameraState state,
+                                           long durationNanos) {
+                    Timber.tag(TAG).d("%s -> %s", previous, state);
+                    if (previous != CameraState.PREVIEW) {
+                        PipelineTrace.instance().recordStateDuration(previous, durationNanos);
+                    }
+                }
+            });
+    /**
+     * {@link PipelineTrace#now()} of the shutter click of the shot in progress, 0 if there is none.
+     */
+    private volatile long mShutterAt;
     /**
-     * Whether the current camera device supports Flash or not.
+     * {@link PipelineTrace#now()} when the still capture request of the shot in progress was sent.
      */
-    private boolean mFlashSupported;
+    private volatile long mCaptureRequestedAt;
     /**
      * Orientation of the camera sensor
      */
     private int mSensorOrientation;
-    private Size mCaptureSize;
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
      * {@link TextureView}.
@@ -262,6 +392,9 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture texture) {
+            if (mResumedAt != 0) {
+                onFirstPreviewFrame();
+            }
         }
 
     };
@@ -274,71 +407,27 @@ public class PictureFragment extends Fragment implements OnBackPressed,
     private final CameraCaptureSession.CaptureCallback mCaptureCallback
             = new CameraCaptureSession.CaptureCallback() {
 
-        private void process(CaptureResult result) {
-            switch (mState) {
-                case PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
-                    break;
-                }
-                case WAITING_LOCK: {
-                    Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                    Timber.tag(TAG).d("WAITING_LOCK %d", afState);
-                    if (afState == null) {
-                        runPrecaptureSequence();
-                    } else if (afState == CONTROL_AF_STATE_INACTIVE ||
-                            afState == CONTROL_AF_STATE_FOCUSED_LOCKED ||
-                            afState == CONTROL_AF_STATE_NOT_FOCUSED_LOCKED) {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        if (aeState == null ||
-                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-                            mState = CameraState.TAKEN;
-                            captureStillPicture();
-                        } else {
-                            runPrecaptureSequence();
-                        }
-                    } else {
-                        captureStillPicture();
-                    }
-                    break;
-                }
-                case WAITING_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    Timber.tag(TAG).d("WAITING_PRECAPTURE %d", aeState);
-                    if (aeState == null ||
-                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-                            aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED ||
-                            aeState == CaptureRequest.CONTROL_AE_STATE_CONVERGED) {
-                        mState = CameraState.WAITING_NON_PRECAPTURE;
-                    }
-                    break;
-                }
-                case WAITING_NON_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    Timber.tag(TAG).d("WAITING_NON_PRECAPTURE %d", aeState);
-                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                        mState = CameraState.TAKEN;
-                        captureStillPicture();
-                    }
-                    break;
-                }
-            }
+        private void process(CaptureResult result, boolean completed) {
+            mStateMachine.process(result.get(CaptureResult.CONTROL_AF_STATE),
+                    result.get(CaptureResult.CONTROL_AE_STATE), completed, PipelineTrace.now());
         }
 
         @Override
         public void onCaptureProgressed(@NonNull CameraCaptureSession session,
                                         @NonNull CaptureRequest request,
                                         @NonNull CaptureResult partialResult) {
-            process(partialResult);
+            process(partialResult, false);
         }
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                        @NonNull CaptureRequest request,
                                        @NonNull TotalCaptureResult result) {
-            process(result);
+            ZeroShutterLagEngine zslEngine = mZslEngine;
+            if (zslEngine != null) {
+                zslEngine.onCaptureCompleted(result);
+            }
+            process(result, true);
         }
 
     };
@@ -393,6 +482,15 @@ public class PictureFragment extends Fragment implements OnBackPressed,
     public void onViewCreated(@NonNull final View view, Bundle savedInstanceState) {
         mTakeButton = view.findViewById(R.id.take);
         mTakeButton.setOnClickListener(v -> takeButtonOnClick());
+        mTakeButton.setOnLongClickListener(v -> startBurst());
+        mTakeButton.setOnTouchListener((v, event) -> {
+            int action = event.getActionMasked();
+            if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                stopBurst();
+            }
+            // let the button handle clicks and long clicks
+            return false;
+        });
         mSurfaceView = view.findViewById(R.id.surface_view);
         mSurfaceView.setZOrderOnTop(true);
         SurfaceHolder surfaceViewHolder = mSurfaceView.getHolder();
@@ -417,9 +515,9 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
             Timber.tag(TAG).d("mManualFocusEngaged %s ", mManualFocusEngaged);
 
-            CameraCharacteristics characteristics = mCameraHost.getActiveCameraCharacteristics();
+            CameraCapabilities capabilities = mCameraHost.getActiveCameraCapabilities();
 
-            Rect sensorArraySize = CharacteristicUtil.getSensorArraySize(characteristics);
+            Rect sensorArraySize = capabilities.getActiveArraySize();
 
             MeteringRectangle focusAreaTouch = FocusUtil.getMeteringRect(v, event, sensorArraySize);
 
@@ -475,7 +573,7 @@ public class PictureFragment extends Fragment implements OnBackPressed,
                         mBackgroundHandler);
 
                 //Now add a new AF trigger with focus region
-                if (CharacteristicUtil.isMeteringAreaAFSupported(characteristics)) {
+                if (capabilities.isMeteringAreaAFSupported()) {
                     mPreviewRequestBuilder.set(CONTROL_AF_REGIONS, new MeteringRectangle[]{focusAreaTouch});
                 }
 
@@ -502,8 +600,22 @@ public class PictureFragment extends Fragment implements OnBackPressed,
     @Override
     public void onResume() {
         super.onResume();
+        mResumedAt = PipelineTrace.now();
         applyUserProfile();
         startBackgroundThread();
+        mPhotoStorage = createPhotoStorage(PHOTO_STORAGE_BACKEND);
+        StorageMonitor.instance().addListener(mStorageListener);
+        StorageMonitor.instance().start();
+        LastCaptures.instance().addListener(mLastCaptureListener);
+        updateGalleryButton();
+        mPersistenceExecutor = new PersistenceExecutor("PhotoPersistence", MAX_PENDING_SAVES,
+                saturated -> mMainHandler.post(() -> {
+                    updateShutterState();
+                    if (!saturated) {
+                        continueBurst();
+                    }
+                }));
+        updateShutterState();
 
         // When the screen is turned off and turned back on, the SurfaceTexture is already
         // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
@@ -560,8 +672,19 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
     @Override
     public void onPause() {
+        stopBurst();
+        // closeCamera waits for the pending saves, their images belong to the reader it closes
         closeCamera();
         stopBackgroundThread();
+        mPersistenceExecutor.shutdown();
+        StorageMonitor.instance().removeListener(mStorageListener);
+        StorageMonitor.instance().stop();
+        LastCaptures.instance().removeListener(mLastCaptureListener);
+        PipelineTrace.instance().log();
+        Timber.tag(TAG).i("Last captures: %s", LastCaptures.instance());
+        Timber.tag(TAG).i("Fast captures: %d, focus locks: %d, timeouts: %d",
+                mStateMachine.getFastCaptureCount(), mStateMachine.getFocusLockCount(),
+                mStateMachine.getTimeoutCount());
         super.onPause();
     }
 
@@ -604,69 +727,17 @@ public class PictureFragment extends Fragment implements OnBackPressed,
         Activity activity = getActivity();
         try {
             String cameraId = mCameraHost.getActiveCameraId();
-            CameraCharacteristics characteristics = mCameraHelper.getCameraCharacteristics(cameraId);
-
-            List<Size> captureSizes = CharacteristicUtil.getCaptureOutputSizes(characteristics);
-            // For still image captures, we use the largest available size.
-            mCaptureSize = SizeUtil.getCaptureSize(captureSizes, new CompareSizesByArea());
-            Timber.tag(TAG).d("max capture size: %s", mCaptureSize);
+            CameraCapabilities capabilities = mCameraHelper.getCapabilities(cameraId);
 
             adjustPictureSize();
 
-            // Find out if we need to swap dimension to get the preview size relative to sensor
-            // coordinate.
             int displayRotation = Objects.requireNonNull(activity).getWindowManager()
                     .getDefaultDisplay().getRotation();
-
-            //noinspection ConstantConditions
-            mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-            boolean swappedDimensions = false;
-            switch (displayRotation) {
-                case Surface.ROTATION_0:
-                case Surface.ROTATION_180:
-                    if (mSensorOrientation == 90 || mSensorOrientation == 270) {
-                        swappedDimensions = true;
-                    }
-                    break;
-                case Surface.ROTATION_90:
-                case Surface.ROTATION_270:
-                    if (mSensorOrientation == 0 || mSensorOrientation == 180) {
-                        swappedDimensions = true;
-                    }
-                    break;
-                default:
-                    Timber.tag(TAG).e("Display rotation is invalid: %s", displayRotation);
-            }
-
             Point displaySize = new Point();
             activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
-            int rotatedPreviewWidth = width;
-            int rotatedPreviewHeight = height;
-            int maxPreviewWidth = displaySize.x;
-            int maxPreviewHeight = displaySize.y;
-
-            if (swappedDimensions) {
-                rotatedPreviewWidth = height;
-                rotatedPreviewHeight = width;
-                maxPreviewWidth = displaySize.y;
-                maxPreviewHeight = displaySize.x;
-            }
-
-            if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
-                maxPreviewWidth = MAX_PREVIEW_WIDTH;
-            }
 
-            if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
-                maxPreviewHeight = MAX_PREVIEW_HEIGHT;
-            }
-
-            // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
-            // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-            // garbage capture data.
-
-            List<Size> previewSizes = CharacteristicUtil.getPreviewOutputSizes(characteristics);
-            mPreviewSize = SizeUtil.chooseOptimalSize(previewSizes, rotatedPreviewWidth,
-                    rotatedPreviewHeight, maxPreviewWidth, maxPreviewHeight, mCaptureSize);
+            mSensorOrientation = capabilities.getSensorOrientation();
+            mPreviewSize = capabilities.getPreviewSize(displayRotation, width, height, displaySize);
 
             // We fit the aspect ratio of TextureView to the size of preview we picked.
             int orientation = getResources().getConfiguration().orientation;
@@ -677,9 +748,6 @@ public class PictureFragment extends Fragment implements OnBackPressed,
                 mTextureView.setAspectRatio(
                         mPreviewSize.getHeight(), mPreviewSize.getWidth());
             }
-
-            // Check if the flash is supported.
-            mFlashSupported = CharacteristicUtil.isFlashSupported(characteristics);
         } catch (NullPointerException e) {
             showError(R.string.camera_api_not_supported);
         }
@@ -721,7 +789,18 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
             resetCameraDevice();
 
+            if (null != mZslEngine) {
+                mZslEngine.close();
+                mZslEngine = null;
+            }
+
             if (null != mImageReader) {
+                // closing the reader closes the images still waiting to be saved
+                if (mPersistenceExecutor != null && !mPersistenceExecutor.awaitIdle(
+                        SAVE_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Timber.tag(TAG).w("Saves still pending, closing the reader anyway. %s",
+                            mPersistenceExecutor);
+                }
                 mImageReader.close();
                 mImageReader = null;
             }
@@ -776,6 +855,26 @@ public class PictureFragment extends Fragment implements OnBackPressed,
             // This is the output Surface we need to start preview.
             Surface surface = new Surface(texture);
 
+            if (mZslEngine == null && !mZslFailed) {
+                mZslEngine = ZeroShutterLagEngine.create(
+                        mCameraHost.getActiveCameraCapabilities(), mBackgroundHandler);
+            }
+
+            if (mZslEngine != null) {
+                // The repeating request also fills the reprocessing ring.
+                mPreviewRequestBuilder
+                        = mCameraDevice.createCaptureRequest(TEMPLATE_ZERO_SHUTTER_LAG);
+                mPreviewRequestBuilder.addTarget(surface);
+                mPreviewRequestBuilder.addTarget(mZslEngine.getRingSurface());
+
+                List<Surface> outputs = Arrays.asList(surface, mImageReader.getSurface(),
+                        mZslEngine.getRingSurface());
+                mCameraDevice.createReprocessableCaptureSession(
+                        mZslEngine.getInputConfiguration(), outputs, getPreviewStateCallback(),
+                        null);
+                return;
+            }
+
             // We set up a CaptureRequest.Builder with the output Surface.
             mPreviewRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
@@ -801,6 +900,9 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
                 // When the session is ready, we start displaying the preview.
                 mCaptureSession = cameraCaptureSession;
+                if (mZslEngine != null) {
+                    mZslEngine.onSessionConfigured(cameraCaptureSession);
+                }
                 try {
                     enableDefaultModes(mPreviewRequestBuilder);
 
@@ -816,6 +918,15 @@ public class PictureFragment extends Fragment implements OnBackPressed,
             @Override
             public void onConfigureFailed(
                     @NonNull CameraCaptureSession cameraCaptureSession) {
+                if (mZslEngine != null && null != mCameraDevice) {
+                    // fall back to a regular session
+                    Timber.tag(TAG).e("Reprocessable session configuration failed");
+                    mZslEngine.close();
+                    mZslEngine = null;
+                    mZslFailed = true;
+                    createCameraPreviewSession();
+                    return;
+                }
                 Toast.makeText(getContext(), R.string.preview_configuration_failed,
                         Toast.LENGTH_SHORT).show();
             }
@@ -827,8 +938,9 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
         builder.set(CONTROL_MODE, CONTROL_MODE_AUTO);
 
-        CameraCharacteristics characteristics = mCameraHost.getActiveCameraCharacteristics();
-        mAutoFocusSupported = CharacteristicUtil.isContinuousAutoFocusSupported(characteristics);
+        CameraCapabilities capabilities = mCameraHost.getActiveCameraCapabilities();
+        mAutoFocusSupported = capabilities.isAutoFocusModeSupported(
+                CONTROL_AF_MODE_CONTINUOUS_PICTURE);
         if (mAutoFocusSupported) {
             builder.set(CONTROL_AF_MODE, CONTROL_AF_MODE_CONTINUOUS_PICTURE);
         } else {
@@ -837,9 +949,7 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
         builder.set(COLOR_CORRECTION_MODE, COLOR_CORRECTION_ABERRATION_MODE_HIGH_QUALITY);
 
-        if (mFlashSupported) {
-            FlashUtil.adjustRequestBuilder(builder, mSettingsDatasource.getFlashMode());
-        }
+        FlashUtil.adjustRequestBuilder(builder, mSettingsDatasource.getFlashMode(), capabilities);
         addBlackAndWhiteMode(builder, mSettingsDatasource.getBlackAndWhiteMode());
     }
 
@@ -849,6 +959,7 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
         enableDefaultModes(mPreviewRequestBuilder);
         updatePreview();
+        updatePhotoEstimate();
     }
 
     public void reinitCamera() {
@@ -859,15 +970,60 @@ public class PictureFragment extends Fragment implements OnBackPressed,
     public void adjustPictureSize() {
         SizeMode sizeMode = mSettingsDatasource.getSizeMode();
 
-        int divider = 1;
-        if (sizeMode == SizeMode.SMALL) {
-            divider = 2;
-        }
-        int adjustedWidth = mCaptureSize.getWidth() / divider;
-        int adjustedHeight = mCaptureSize.getHeight() / divider;
-
-        mImageReader = ImageReader.newInstance(adjustedWidth, adjustedHeight, ImageFormat.JPEG, 1);
+        mJpegProfile = JpegProfile.forSizeMode(sizeMode);
+        CameraCapabilities capabilities =
+                mCameraHelper.getCapabilities(mCameraHost.getActiveCameraId());
+        // a size the camera supports, scaling ourselves would make the HAL fall back to software
+        Size size = Objects.requireNonNull(capabilities).getCaptureSize(sizeMode);
+        Timber.tag(TAG).d("capture size for %s: %s", sizeMode, size);
+        int adjustedWidth = size.getWidth();
+        int adjustedHeight = size.getHeight();
+
+        mImageReader = ImageReader.newInstance(adjustedWidth, adjustedHeight, ImageFormat.JPEG,
+                IMAGE_RING_DEPTH);
         mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mBackgroundHandler);
+
+        mPhotoPixels = (long) adjustedWidth * adjustedHeight;
+        updatePhotoEstimate();
+    }
+
+    /**
+     * Looks up the expected size of the next photo for the active camera and settings and moves
+     * the low space cutoff accordingly.
+     */
+    private void updatePhotoEstimate() {
+        String cameraId = mCameraHost.getActiveCameraId();
+        if (cameraId == null || mPhotoPixels == 0) return;
+
+        BlackAndWhiteMode bwMode = mSettingsDatasource.getBlackAndWhiteMode();
+        String key = CaptureSizeEstimator.photoKey(cameraId, mSettingsDatasource.getSizeMode(),
+                bwMode);
+        long photoBytes = CaptureSizeEstimator.instance().getPhotoBytes(key, mPhotoPixels,
+                bwMode);
+        mPhotoKey = key;
+        mPhotoBytes = photoBytes;
+        CaptureSizeEstimator.applyPhotoThreshold(photoBytes);
+        mMainHandler.post(this::updateRemainingShots);
+    }
+
+    private void updateGalleryButton() {
+        if (mGalleryButton == null || mGalleryIcon == null) return;
+        ThumbnailUtil.applyToButton(mGalleryButton,
+                LastCaptures.instance().getLastThumbnail(CameraMode.PICTURE), mGalleryIcon);
+    }
+
+    private void updateRemainingShots() {
+        if (mRemainingView == null || !isAdded()) return;
+
+        StorageSnapshot snapshot = StorageMonitor.instance().getSnapshot();
+        long photoBytes = mPhotoBytes;
+        if (snapshot.getState() == StorageSnapshot.State.UNKNOWN || photoBytes == 0) {
+            mRemainingView.setVisibility(View.GONE);
+            return;
+        }
+        long shots = CaptureSizeEstimator.getRemainingShots(snapshot, photoBytes);
+        mRemainingView.setText(getString(R.string.remaining_shots, shots));
+        mRemainingView.setVisibility(View.VISIBLE);
     }
 
     /**
@@ -889,17 +1045,32 @@ public class PictureFragment extends Fragment implements OnBackPressed,
     }
 
     /**
-     * Initiate a still image capture.
+     * Initiate a still image capture. Runs on the background thread, like everything else that
+     * touches {@link #mStateMachine}.
      */
     private void takePicture() {
-        // init file location
-        mFile = null;
+        if (mCaptureSession == null) {
+            // the camera was closed before the shutter got here
+            mShutterAt = 0;
+            captureEnabled(true);
+            return;
+        }
+
+        boolean forcedFlash = mCameraHost.getActiveCameraCapabilities().isFlashSupported()
+                && mSettingsDatasource.getFlashMode() == FlashMode.ON;
+        // the ring frames were taken without flash. In auto flash mode frames that would need
+        // it are already left out by the engine, since their exposure is not converged.
+        if (!forcedFlash && mZslEngine != null && captureZeroShutterLag()) {
+            return;
+        }
 
         if (mAutoFocusSupported) {
-            lockFocus();
+            // a forced flash needs the precapture sequence to meter
+            if (forcedFlash || !mStateMachine.captureIfConverged(PipelineTrace.now())) {
+                lockFocus();
+            }
         } else {
-            mState = CameraState.TAKEN;
-            captureStillPicture();
+            mStateMachine.capture(PipelineTrace.now());
         }
     }
 
@@ -911,9 +1082,11 @@ public class PictureFragment extends Fragment implements OnBackPressed,
             // This is how to tell the camera to lock focus.
             mPreviewRequestBuilder.set(CONTROL_AF_TRIGGER, CONTROL_AF_TRIGGER_START);
             // Tell #mCaptureCallback to wait for the lock.
-            mState = CameraState.WAITING_LOCK;
+            mStateMachine.lockFocus(PipelineTrace.now());
+            mFocusLocked = true;
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
+            mPreviewRequestBuilder.set(CONTROL_AF_TRIGGER, CONTROL_AF_TRIGGER_IDLE);
         } catch (CameraAccessException e) {
             handleCameraException(e, CameraOperation.LOCK_FOCUS);
         }
@@ -930,10 +1103,10 @@ public class PictureFragment extends Fragment implements OnBackPressed,
             mPreviewRequestBuilder.set(CONTROL_AE_PRECAPTURE_TRIGGER,
                     CONTROL_AE_PRECAPTURE_TRIGGER_START);
 
-            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = CameraState.WAITING_PRECAPTURE;
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
+            mPreviewRequestBuilder.set(CONTROL_AE_PRECAPTURE_TRIGGER,
+                    CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
         } catch (CameraAccessException ex) {
             handleCameraException(ex, CameraOperation.PRECAPTURE);
         }
@@ -951,26 +1124,7 @@ public class PictureFragment extends Fragment implements OnBackPressed,
                 return;
             }
             // This is the CaptureRequest.Builder that we use to take a picture.
-            final CaptureRequest.Builder captureBuilder;
-
-            CameraCharacteristics c = mCameraHost.getActiveCameraCharacteristics();
-            if (CharacteristicUtil.isZeroShutterLagSupported(c)) {
-                captureBuilder = mCameraDevice.createCaptureRequest(TEMPLATE_ZERO_SHUTTER_LAG);
-            } else {
-                captureBuilder = mCameraDevice.createCaptureRequest(TEMPLATE_STILL_CAPTURE);
-            }
-
-            captureBuilder.addTarget(mImageReader.getSurface());
-
-            CameraHelper.cloneBuilder(mPreviewRequestBuilder, captureBuilder);
-
-            // Orientation
-            int orientationDegrees = mCameraHost.getOrientationManager().getDeviceOrientation()
-                    .getDegrees();
-            int jpegOrientation = CameraUtil.getJpegRotation(orientationDegrees, c);
-
-            Timber.d("CaptureRequest.JPEG_ORIENTATION %d", jpegOrientation);
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, jpegOrientation);
+            final CaptureRequest.Builder captureBuilder = createStillCaptureBuilder();
 
             CameraCaptureSession.CaptureCallback captureCallback =
                     new CameraCaptureSession.CaptureCallback() {
@@ -978,60 +1132,325 @@ public class PictureFragment extends Fragment implements OnBackPressed,
                         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                        @NonNull CaptureRequest request,
                                                        @NonNull TotalCaptureResult result) {
-                            try {
-                                playShutterSound();
-                                File fileToSave = getFile();
-                                if (fileToSave != null) {
-                                    Toast.makeText(getContext(), R.string.picture_taken,
-                                            Toast.LENGTH_SHORT).show();
-                                    Timber.tag(TAG).d(mFile.toString());
-                                }
-                            } catch (IOException ex) {
-                                handleCameraException(ex, CameraOperation.FILE_ACCESS);
-                            }
+                            playShutterSound();
+                            mMainHandler.post(() -> Toast.makeText(getContext(),
+                                    R.string.picture_taken, Toast.LENGTH_SHORT).show());
+
+                            unlockFocus();
+                        }
 
+                        @Override
+                        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                                    @NonNull CaptureRequest request,
+                                                    @NonNull CaptureFailure failure) {
+                            Timber.tag(TAG).e("Still capture failed: %d", failure.getReason());
+                            mShutterAt = 0;
                             unlockFocus();
+                            captureEnabled(true);
                         }
                     };
 
-            mCaptureSession.stopRepeating();
-            mCaptureSession.abortCaptures();
-            mCaptureSession.capture(captureBuilder.build(), captureCallback, null);
+            // The still request is queued behind the repeating preview request, which keeps
+            // running so the viewfinder doesn't freeze.
+            markCaptureRequested();
+            mCaptureSession.capture(captureBuilder.build(), captureCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             handleCameraException(e, CameraOperation.CAPTURE_STILL_PICTURE);
         }
     }
 
+    private void onFirstPreviewFrame() {
+        PipelineTrace.instance().record(PipelineTrace.Stage.RESUME_TO_PREVIEW, mResumedAt);
+        mResumedAt = 0;
+
+        if (!sPreviewStarted) {
+            sPreviewStarted = true;
+            long coldStartMillis = SystemClock.elapsedRealtime()
+                    - Process.getStartElapsedRealtime();
+            PipelineTrace.instance().recordDuration(PipelineTrace.Stage.COLD_START_TO_PREVIEW,
+                    TimeUnit.MILLISECONDS.toNanos(coldStartMillis));
+            Timber.tag(TAG).i("Cold start to first preview frame: %d ms", coldStartMillis);
+        }
+    }
+
+    private void markCaptureRequested() {
+        if (mShutterAt != 0) {
+            mCaptureRequestedAt = PipelineTrace.now();
+            PipelineTrace.instance().record(PipelineTrace.Stage.SHUTTER_TO_CAPTURE, mShutterAt);
+        }
+    }
+
+    /**
+     * Encodes the best recent frame of {@link #mZslEngine}. Focus and exposure have already
+     * converged for that frame, so there is no lock or precapture sequence.
+     *
+     * @return false if there was no usable frame
+     */
+    private boolean captureZeroShutterLag() {
+        try {
+            CaptureRequest.Builder builder = mZslEngine.prepareReprocess(mCameraDevice);
+            if (builder == null) {
+                return false;
+            }
+
+            Timber.tag(TAG).d("captureZeroShutterLag");
+            builder.addTarget(mImageReader.getSurface());
+            builder.set(CaptureRequest.JPEG_ORIENTATION, getJpegOrientation());
+            applyJpegProfile(builder);
+
+            markCaptureRequested();
+            mCaptureSession.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    playShutterSound();
+                    mMainHandler.post(() -> Toast.makeText(getContext(),
+                            R.string.picture_taken, Toast.LENGTH_SHORT).show());
+                }
+
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    Timber.tag(TAG).e("Reprocess failed: %d", failure.getReason());
+                    mShutterAt = 0;
+                    captureEnabled(true);
+                }
+            }, mBackgroundHandler);
+            return true;
+        } catch (CameraAccessException ex) {
+            handleCameraException(ex, CameraOperation.CAPTURE_STILL_PICTURE);
+            return true;
+        }
+    }
+
+    /**
+     * Builds a still capture request targeting {@link #mImageReader} with the current preview
+     * settings and the device orientation.
+     */
+    private CaptureRequest.Builder createStillCaptureBuilder() throws CameraAccessException {
+        final CaptureRequest.Builder captureBuilder =
+                mCameraDevice.createCaptureRequest(TEMPLATE_STILL_CAPTURE);
+
+        captureBuilder.addTarget(mImageReader.getSurface());
+
+        CameraHelper.cloneBuilder(mPreviewRequestBuilder, captureBuilder);
+
+        captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getJpegOrientation());
+        applyJpegProfile(captureBuilder);
+
+        return captureBuilder;
+    }
+
+    private void applyJpegProfile(CaptureRequest.Builder builder) {
+        mJpegProfile.apply(builder, mCameraHost.getActiveCameraCapabilities(),
+                new Size(mImageReader.getWidth(), mImageReader.getHeight()));
+    }
+
+    private int getJpegOrientation() {
+        CameraCapabilities c = mCameraHost.getActiveCameraCapabilities();
+        int orientationDegrees = mCameraHost.getOrientationManager().getDeviceOrientation()
+                .getDegrees();
+        int jpegOrientation = CameraUtil.getJpegRotation(orientationDegrees, c);
+
+        Timber.d("CaptureRequest.JPEG_ORIENTATION %d", jpegOrientation);
+        return jpegOrientation;
+    }
+
+    /**
+     * Starts a burst while the shutter button is held. Focus is not locked, the repeating
+     * request keeps focusing continuously between frames.
+     *
+     * @return true to consume the long click
+     */
+    private boolean startBurst() {
+        if (!mCaptureEnabled || mCaptureSession == null || mBurstStats != null) {
+            return false;
+        }
+
+        if (!StorageMonitor.instance().getSnapshot().canCapturePicture()) {
+            // let the click path report the storage problem
+            return false;
+        }
+
+        Timber.tag(TAG).d("startBurst");
+        mBurstStats = new BurstStats(IMAGE_RING_DEPTH);
+        mBurstHeld = true;
+        mCameraHost.lockScreenRotation(true);
+        playShutterSound();
+        continueBurst();
+        return true;
+    }
+
+    /**
+     * Sends the next still requests if the shutter is still held and no burst is in flight. The
+     * burst is sized to the room left in the persistence queue.
+     */
+    private void continueBurst() {
+        final BurstStats burstStats = mBurstStats;
+        if (!mBurstHeld || mBurstInFlight || burstStats == null || mCaptureSession == null) {
+            return;
+        }
+
+        int length = Math.min(BURST_LENGTH,
+                MAX_PENDING_SAVES - mPersistenceExecutor.getQueueDepth());
+        if (length <= 0) {
+            // resumed by the persistence listener once there is room again
+            return;
+        }
+
+        try {
+            List<CaptureRequest> requests = new ArrayList<>();
+            CaptureRequest request = createStillCaptureBuilder().build();
+            for (int i = 0; i < length; i++) {
+                requests.add(request);
+            }
+
+            mBurstInFlight = true;
+            burstStats.onRequested(requests.size());
+            mCaptureSession.captureBurst(requests, new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    Timber.tag(TAG).e("Burst frame failed: %d", failure.getReason());
+                    burstStats.onFrameDropped();
+                }
+
+                @Override
+                public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session,
+                                                       int sequenceId, long frameNumber) {
+                    mMainHandler.post(() -> onBurstSequenceEnded(burstStats));
+                }
+
+                @Override
+                public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session,
+                                                     int sequenceId) {
+                    mMainHandler.post(() -> onBurstSequenceEnded(burstStats));
+                }
+            }, mBackgroundHandler);
+        } catch (CameraAccessException | IllegalStateException ex) {
+            mBurstInFlight = false;
+            stopBurst();
+            handleCameraException(ex, CameraOperation.CAPTURE_STILL_PICTURE);
+        }
+    }
+
+    private void onBurstSequenceEnded(BurstStats burstStats) {
+        mBurstInFlight = false;
+        if (mBurstHeld) {
+            continueBurst();
+        } else {
+            finishBurst(burstStats, false);
+        }
+    }
+
+    /**
+     * Called when the shutter button is released. The burst is reported once the sequence in
+     * flight has completed.
+     */
+    private void stopBurst() {
+        if (!mBurstHeld) return;
+
+        Timber.tag(TAG).d("stopBurst");
+        mBurstHeld = false;
+        mCameraHost.lockScreenRotation(false);
+        if (!mBurstInFlight) {
+            finishBurst(mBurstStats, false);
+        }
+    }
+
+    /**
+     * Reports the burst once all of its images have been delivered.
+     *
+     * @param force report even if some images haven't arrived yet, they are counted as dropped
+     */
+    private void finishBurst(BurstStats burstStats, boolean force) {
+        if (burstStats == null || burstStats != mBurstStats) return;
+
+        if (!burstStats.isSettled()) {
+            if (!force) {
+                mMainHandler.postDelayed(() -> finishBurst(burstStats, true),
+                        BURST_SETTLE_TIMEOUT_MS);
+                return;
+            }
+            burstStats.dropUnaccounted();
+        }
+
+        mBurstStats = null;
+        Timber.tag(TAG).i("Burst finished. %s", burstStats);
+        if (isAdded() && burstStats.getSaved() > 0) {
+            Toast.makeText(getContext(), getString(R.string.pictures_taken,
+                    burstStats.getSaved()), Toast.LENGTH_SHORT).show();
+        }
+    }
+
     /**
      * Unlock the focus. This method should be called when still image capture sequence is
      * finished.
      */
     private void unlockFocus() {
-        if (mState == CameraState.PREVIEW) {
+        if (mStateMachine.getState() == CameraState.PREVIEW) {
             // nothing to do already unlocked
             return;
         }
 
         try {
-            // Reset the auto-focus trigger
-            mPreviewRequestBuilder.set(CONTROL_AF_TRIGGER, CONTROL_AF_TRIGGER_CANCEL);
-            // Reset the auto-exposure trigger
-            mPreviewRequestBuilder.set(CONTROL_AE_PRECAPTURE_TRIGGER,
-                    CONTROL_AE_PRECAPTURE_TRIGGER_CANCEL);
+            if (mFocusLocked) {
+                // Reset the auto-focus trigger
+                mPreviewRequestBuilder.set(CONTROL_AF_TRIGGER, CONTROL_AF_TRIGGER_CANCEL);
+                // Reset the auto-exposure trigger
+                mPreviewRequestBuilder.set(CONTROL_AE_PRECAPTURE_TRIGGER,
+                        CONTROL_AE_PRECAPTURE_TRIGGER_CANCEL);
+                mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
+                        mBackgroundHandler);
 
-            mPreviewRequest = mPreviewRequestBuilder.build();
-            mCaptureSession.capture(mPreviewRequest, mCaptureCallback,
-                    mBackgroundHandler);
-            // After this, the camera will go back to the normal state of preview.
-            mState = CameraState.PREVIEW;
-            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
-                    mBackgroundHandler);
+                mPreviewRequestBuilder.set(CONTROL_AF_TRIGGER, CONTROL_AF_TRIGGER_IDLE);
+                mPreviewRequestBuilder.set(CONTROL_AE_PRECAPTURE_TRIGGER,
+                        CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+                mFocusLocked = false;
+            }
+            // The repeating preview request was never stopped, so there is nothing to restart.
+            mStateMachine.reset(PipelineTrace.now());
         } catch (CameraAccessException ex) {
             handleCameraException(ex, CameraOperation.UNLOCK_FOCUS);
         }
     }
 
-    private boolean mCaptureEnabled = true;
+    /**
+     * Cleared on the main thread by the shutter, set again on whichever thread ends the shot.
+     */
+    private volatile boolean mCaptureEnabled = true;
+    /**
+     * Whether a preview frame has been drawn since the process started.
+     */
+    private static boolean sPreviewStarted;
+    /**
+     * {@link PipelineTrace#now()} of the last resume, 0 once its first preview frame was drawn.
+     */
+    private long mResumedAt;
+    /**
+     * Whether the AF trigger was sent for the shot in progress and has to be cancelled.
+     */
+    private boolean mFocusLocked;
+    /**
+     * Set when a reprocessable session couldn't be configured, zero shutter lag isn't attempted
+     * again for this fragment.
+     */
+    private boolean mZslFailed;
+    /**
+     * Stats of the running burst, null when no burst is running.
+     */
+    private volatile BurstStats mBurstStats;
+    /**
+     * Whether the shutter button is held down in burst mode.
+     */
+    private boolean mBurstHeld;
+    /**
+     * Whether a {@link CameraCaptureSession#captureBurst} sequence hasn't completed yet.
+     */
+    private boolean mBurstInFlight;
 
     private void takeButtonOnClick() {
         if (!mCaptureEnabled) {
@@ -1039,12 +1458,25 @@ public class PictureFragment extends Fragment implements OnBackPressed,
             return;
         }
 
-        if (CharacteristicUtil.camera2Supported(mCameraHost.getActiveCameraCharacteristics())) {
-            if (StorageUtil.storageReady()) {
+        if (mCaptureSession == null) {
+            Timber.d("No capture session yet");
+            return;
+        }
+
+        if (mPersistenceExecutor.isSaturated()) {
+            Timber.d("Too many photos waiting to be saved. %s", mPersistenceExecutor);
+            return;
+        }
+
+        if (mCameraHost.getActiveCameraCapabilities().isCamera2Supported()) {
+            StorageSnapshot storage = StorageMonitor.instance().getSnapshot();
+            if (storage.isReady()) {
                 // check for space available
-                if (StorageUtil.hasAvailableSpaceToCapturePicture()) {
+                if (storage.hasSpaceFor(StorageMonitor.Threshold.PICTURE)) {
                     captureEnabled(false);
-                    takePicture();
+                    mShutterAt = PipelineTrace.now();
+                    // mStateMachine is driven by the capture results on the background thread
+                    mBackgroundHandler.post(this::takePicture);
                 } else {
                     Toast.makeText(getContext(), R.string.not_available_space_for_picture,
                             Toast.LENGTH_LONG).show();
@@ -1060,8 +1492,7 @@ public class PictureFragment extends Fragment implements OnBackPressed,
 
     private void addBlackAndWhiteMode(CaptureRequest.Builder builder, BlackAndWhiteMode bwMode) {
         if (bwMode == BlackAndWhiteMode.ENABLED) {
-            if (CharacteristicUtil.isBWColorModeSupported(
-                    mCameraHost.getActiveCameraCharacteristics())) {
+            if (mCameraHost.getActiveCameraCapabilities().isMonoEffectSupported()) {
                 builder.set(CONTROL_EFFECT_MODE, CameraMetadata.CONTROL_EFFECT_MODE_MONO);
             } else {
                 builder.set(CONTROL_EFFECT_MODE, CameraMetadata.CONTROL_EFFECT_MODE_OFF);
@@ -1082,7 +1513,7 @@ public class PictureFragment extends Fragment implements OnBackPressed,
             cameraId = mCameraHelper.getInitialCameraId();
         }
         mCameraHost.setActiveCameraId(cameraId);
-        mCameraHost.setActiveCameraCharacteristics(mCameraHelper.getCameraCharacteristics(cameraId));
+        mCameraHost.setActiveCameraCapabilities(mCameraHelper.getCapabilities(cameraId));
 
         mSettingsButton = view.findViewById(R.id.settings_button);
         mSettingsButton.setOnClickListener(v -> mCameraHost.showSettings(true));
@@ -1098,6 +1529,8 @@ public class PictureFragment extends Fragment implements OnBackPressed,
         FlashUtil.applyFlashMode(mFlashButton, flashMode);
 
         mGalleryButton = view.findViewById(R.id.gallery_button);
+        mGalleryIcon = mGalleryButton.getCompoundDrawables()[1];
+        mRemainingView = view.findViewById(R.id.remaining);
         mGalleryButton.setOnClickListener(v -> mCameraHost.goToGalleryApp(CameraMode.PICTURE));
 
         mSwitchModeButton = view.findViewById(R.id.switch_mode);
@@ -1117,8 +1550,9 @@ public class PictureFragment extends Fragment implements OnBackPressed,
         String nextCameraId = mCameraHelper.getNextCameraId(activeCameraId);
         if (!activeCameraId.equals(nextCameraId)) {
             mCameraHost.setActiveCameraId(nextCameraId);
-            mCameraHost.setActiveCameraCharacteristics(
-                    mCameraHelper.getCameraCharacteristics(nextCameraId));
+            mCameraHost.setActiveCameraCapabilities(
+                    mCameraHelper.getCapabilities(nextCameraId));
+            mZslFailed = false;
         }
         closeCamera();
         reopenCamera();
@@ -1140,7 +1574,8 @@ public class PictureFragment extends Fragment implements OnBackPressed,
         mSettingsDatasource.setFlashMode(flashMode);
 
         FlashUtil.applyFlashMode(mFlashButton, flashMode);
-        FlashUtil.adjustRequestBuilder(mPreviewRequestBuilder, flashMode);
+        FlashUtil.adjustRequestBuilder(mPreviewRequestBuilder, flashMode,
+                mCameraHost.getActiveCameraCapabilities());
         updatePreview();
     }
 
@@ -1171,11 +1606,76 @@ public class PictureFragment extends Fragment implements OnBackPressed,
         return true;
     }
 
-    private File getFile() throws IOException {
-        if (mFile == null) {
-            mFile = StorageUtil.getPhotoFilePath();
+    private PhotoStorage createPhotoStorage(PhotoStorage.Backend backend) {
+        switch (backend) {
+            case FILE:
+                return new FilePhotoStorage();
+            case MEDIA_STORE:
+            default:
+                return new MediaStorePhotoStorage(Objects.requireNonNull(getActivity()));
         }
-        return mFile;
+    }
+
+    /**
+     * Hands the captured image over to {@link #mPersistenceExecutor}, which stores it through
+     * {@link #mPhotoStorage}, so the calling camera thread doesn't touch the storage.
+     *
+     * @param shutterAt {@link PipelineTrace#now()} of the shutter click, 0 if not traced
+     * @return false if the image was dropped
+     */
+    private boolean saveImage(Image image, long shutterAt) {
+        final PhotoStorage storage = mPhotoStorage;
+        final String photoKey = mPhotoKey;
+        final JpegProfile jpegProfile = mJpegProfile;
+        boolean queued = mPersistenceExecutor.submit(() -> {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            ImageSaver.JpegSource source = ImageSaver.fromImage(image);
+            long bytes = source.getBuffer().remaining();
+            Bitmap thumbnail = ThumbnailUtil.fromJpeg(source.getBuffer());
+            try {
+                long saveStart = PipelineTrace.now();
+                Uri uri = storage.save(source, width, height);
+                PipelineTrace.instance().recordSave(jpegProfile.toString(), bytes,
+                        PipelineTrace.now() - saveStart);
+                Timber.d("photo saved: %s", uri);
+                LastCaptures.instance().put(CameraMode.PICTURE, uri, MediaIndexer.MIME_TYPE_JPEG,
+                        thumbnail);
+            } catch (IOException ex) {
+                mMainHandler.post(() -> {
+                    if (isAdded()) {
+                        handleCameraException(ex, CameraOperation.FILE_ACCESS);
+                    }
+                });
+                return;
+            }
+            if (shutterAt != 0) {
+                PipelineTrace.instance().record(PipelineTrace.Stage.SHUTTER_TO_FILE, shutterAt);
+            }
+            if (photoKey != null) {
+                CaptureSizeEstimator.instance().onPhotoSaved(photoKey, bytes);
+                if (photoKey.equals(mPhotoKey)) {
+                    updatePhotoEstimate();
+                }
+            }
+        });
+
+        if (!queued) {
+            Timber.e("Photo dropped, persistence queue is full");
+            image.close();
+        }
+        return queued;
+    }
+
+    /**
+     * Reflects the backpressure of {@link #mPersistenceExecutor} on the shutter button.
+     */
+    private void updateShutterState() {
+        if (mTakeButton == null || mPersistenceExecutor == null) return;
+
+        boolean saturated = mPersistenceExecutor.isSaturated();
+        mTakeButton.setEnabled(!saturated);
+        mTakeButton.setAlpha(saturated ? 0.5f : 1f);
     }
 
     private void handleCameraException(Exception e, CameraOperation op) {
@@ -22,22 +22,23 @@ import android.app.Activity;
 import android.content.res.Configuration;
 import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Point;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.graphics.drawable.Drawable;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.camera2.TotalCaptureResult;
 import android.media.MediaActionSound;
-import android.media.MediaRecorder;
-import android.media.MediaScannerConnection;
+import android.media.MediaCodec;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
@@ -53,21 +54,33 @@ import android.widget.Chronometer;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.katsuna.camera.api.CameraCapabilities;
 import com.katsuna.camera.api.CameraHelper;
-import com.katsuna.camera.api.CharacteristicUtil;
 import com.katsuna.camera.api.FlashUtil;
 import com.katsuna.camera.data.FlashMode;
 import com.katsuna.camera.data.source.SettingsDataSource;
+import com.katsuna.camera.storage.CaptureSizeEstimator;
+import com.katsuna.camera.storage.LastCaptures;
+import com.katsuna.camera.storage.StorageMonitor;
+import com.katsuna.camera.storage.StorageSnapshot;
 import com.katsuna.camera.ui.AutoFitTextureView;
 import com.katsuna.camera.ui.ConfirmationDialog;
 import com.katsuna.camera.ui.ErrorDialog;
 import com.katsuna.camera.ui.OnBackPressed;
 import com.katsuna.camera.utils.CameraUtil;
 import com.katsuna.camera.utils.ChronometerUtils;
-import com.katsuna.camera.utils.CompareSizesByArea;
 import com.katsuna.camera.utils.DepedencyUtils;
+import com.katsuna.camera.utils.MediaIndexer;
+import com.katsuna.camera.utils.PipelineTrace;
 import com.katsuna.camera.utils.ProfileUtils;
 import com.katsuna.camera.utils.StorageUtil;
+import com.katsuna.camera.utils.ThumbnailUtil;
+import com.katsuna.camera.video.CodecRecordingEngine;
+import com.katsuna.camera.video.MediaRecorderEngine;
+import com.katsuna.camera.video.RecordingEngine;
+import com.katsuna.camera.video.VideoBitratePolicy;
+import com.katsuna.camera.video.VideoProfile;
+import com.katsuna.camera.video.VideoProfileSelector;
 import com.katsuna.commons.entities.ColorProfile;
 import com.katsuna.commons.entities.ColorProfileKeyV2;
 import com.katsuna.commons.entities.UserProfile;
@@ -75,12 +88,11 @@ import com.katsuna.commons.utils.ColorCalcV2;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import timber.log.Timber;
 
@@ -96,6 +108,19 @@ public class VideoFragment extends Fragment implements
     private static final String TAG = "VideoFragment";
 
     private static final String FRAGMENT_DIALOG = "dialog";
+    /**
+     * Engine tried first, {@link RecordingEngine.Type#MEDIA_RECORDER} is the fallback when it
+     * can't be prepared.
+     */
+    private static final RecordingEngine.Type RECORDING_ENGINE = RecordingEngine.Type.CODEC;
+    /**
+     * Long recordings are split into files of at most this size, well below the FAT32 limit.
+     */
+    private static final long SEGMENT_MAX_BYTES = 1024L * 1024 * 1024;
+    /**
+     * Longest segment, so that a failure late in a long recording loses little.
+     */
+    private static final long SEGMENT_MAX_MINUTES = 10;
 
     /**
      * A {@link Semaphore} to prevent the app from exiting before closing the camera.
@@ -127,13 +152,41 @@ public class VideoFragment extends Fragment implements
      */
     private Size mVideoSize;
     /**
-     * MediaRecorder
+     * Bitrate and frame rate for {@link #mVideoSize} at the chosen quality.
+     */
+    private VideoBitratePolicy.Choice mVideoEncoding;
+    private volatile RecordingEngine mRecordingEngine;
+    /**
+     * Encoder input surface, part of the preview session from the start so that recording only
+     * changes the targets of the repeating request.
      */
-    private MediaRecorder mMediaRecorder;
+    private Surface mRecorderSurface;
+    /**
+     * Whether {@link #mRecordingEngine} is prepared for the next recording.
+     */
+    private boolean mRecorderPrepared;
+    /**
+     * Orientation hint the recorder was prepared with.
+     */
+    private int mPreparedRotation;
+    /**
+     * {@link PipelineTrace#now()} when the record button was tapped.
+     */
+    private volatile long mRecordTappedAt;
+    private volatile boolean mFirstRecordedFrameSeen;
     /**
      * Whether the app is recording video now
      */
     private boolean mIsRecordingVideo;
+    /**
+     * Whether the engine is still finalizing the last recording on the background thread.
+     */
+    private boolean mIsStoppingRecording;
+    /**
+     * Expected bytes per second of the next recording, learnt by {@link CaptureSizeEstimator}.
+     */
+    private long mVideoBytesPerSecond;
+    private TextView mRemainingView;
     /**
      * An additional thread for running tasks that shouldn't block the UI.
      */
@@ -142,8 +195,18 @@ public class VideoFragment extends Fragment implements
      * A {@link Handler} for running tasks in the background.
      */
     private Handler mBackgroundHandler;
-    private String mNextVideoAbsolutePath;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * {@link SystemClock#elapsedRealtime()} when the recording started.
+     */
+    private long mRecordingStartedAt;
+    /**
+     * Totals of the finished segments of the current recording.
+     */
+    private final AtomicLong mRecordedBytes = new AtomicLong();
+    private final AtomicLong mRecordedMillis = new AtomicLong();
     private CaptureRequest.Builder mPreviewBuilder;
+    private Surface mPreviewSurface;
     /**
      * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its status.
      */
@@ -211,6 +274,12 @@ public class VideoFragment extends Fragment implements
 
     };
     private TextView mGalleryButton;
+    private Drawable mGalleryIcon;
+    private final LastCaptures.Listener mLastCaptureListener = mode -> {
+        if (mode == CameraMode.VIDEO) {
+            updateGalleryButton();
+        }
+    };
     private TextView mSettingsButton;
     private TextView mFlashButton;
     private SettingsDataSource mSettingsDatasource;
@@ -220,55 +289,6 @@ public class VideoFragment extends Fragment implements
         return new VideoFragment();
     }
 
-    /**
-     * In this sample, we choose a video size with 3x4 aspect ratio. Also, we don't use sizes
-     * larger than 1080p, since MediaRecorder cannot handle such a high-resolution video.
-     *
-     * @param choices The list of available sizes
-     * @return The video size
-     */
-    private static Size chooseVideoSize(Size[] choices) {
-        for (Size size : choices) {
-            if (size.getWidth() == size.getHeight() * 4 / 3 && size.getWidth() <= 1080) {
-                return size;
-            }
-        }
-        Timber.tag(TAG).e("Couldn't find any suitable video size");
-        return choices[choices.length - 1];
-    }
-
-    /**
-     * Given {@code choices} of {@code Size}s supported by a camera, chooses the smallest one whose
-     * width and height are at least as large as the respective requested values, and whose aspect
-     * ratio matches with the specified value.
-     *
-     * @param choices     The list of sizes that the camera supports for the intended output class
-     * @param width       The minimum desired width
-     * @param height      The minimum desired height
-     * @param aspectRatio The aspect ratio
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
-     */
-    private static Size chooseOptimalSize(Size[] choices, int width, int height, Size aspectRatio) {
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getHeight() == option.getWidth() * h / w &&
-                    option.getWidth() >= width && option.getHeight() >= height) {
-                bigEnough.add(option);
-            }
-        }
-
-        // Pick the smallest of those, assuming we found any
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else {
-            Timber.tag(TAG).e("Couldn't find any suitable preview size");
-            return choices[0];
-        }
-    }
-
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -294,7 +314,7 @@ public class VideoFragment extends Fragment implements
             cameraId = mCameraHelper.getInitialCameraId();
         }
         mCameraHost.setActiveCameraId(cameraId);
-        mCameraHost.setActiveCameraCharacteristics(mCameraHelper.getCameraCharacteristics(cameraId));
+        mCameraHost.setActiveCameraCapabilities(mCameraHelper.getCapabilities(cameraId));
 
         mSettingsButton = view.findViewById(R.id.settings_button);
         showCameraInfo();
@@ -307,6 +327,7 @@ public class VideoFragment extends Fragment implements
         mFlashButton.setOnClickListener(v -> switchFlash());
 
         mGalleryButton = view.findViewById(R.id.gallery_button);
+        mGalleryIcon = mGalleryButton.getCompoundDrawables()[1];
         mGalleryButton.setOnClickListener(v -> mCameraHost.goToGalleryApp(CameraMode.VIDEO));
 
         mSwitchModeButton = view.findViewById(R.id.switch_mode);
@@ -328,6 +349,8 @@ public class VideoFragment extends Fragment implements
 
         mChronometer = view.findViewById(R.id.chronometer);
         ChronometerUtils.reset(mChronometer);
+        mChronometer.setOnChronometerTickListener(chronometer -> updateRemainingTime());
+        mRemainingView = view.findViewById(R.id.remaining);
         mButtonVideo = view.findViewById(R.id.take);
         mButtonVideo.setText(R.string.record_video);
         mButtonVideo.setOnClickListener(v -> recordButtonOnClick());
@@ -373,6 +396,10 @@ public class VideoFragment extends Fragment implements
         super.onResume();
         applyUserProfile();
         startBackgroundThread();
+        StorageMonitor.instance().addListener(mStorageListener);
+        StorageMonitor.instance().start();
+        LastCaptures.instance().addListener(mLastCaptureListener);
+        updateGalleryButton();
         if (mTextureView.isAvailable()) {
             openCamera(mTextureView.getWidth(), mTextureView.getHeight());
         } else {
@@ -382,7 +409,14 @@ public class VideoFragment extends Fragment implements
 
     @Override
     public void onPause() {
-        resetStorageHandler();
+        // finalizes and indexes the current segment before the engine is released
+        if (mIsRecordingVideo) {
+            stopRecordingVideo();
+        }
+        StorageMonitor.instance().removeListener(mStorageListener);
+        StorageMonitor.instance().stop();
+        StorageMonitor.instance().setExpectedFillRate(0);
+        LastCaptures.instance().removeListener(mLastCaptureListener);
         closeCamera();
         stopBackgroundThread();
         super.onPause();
@@ -403,13 +437,18 @@ public class VideoFragment extends Fragment implements
     }
 
     private void recordButtonOnClick() {
-        if (CharacteristicUtil.camera2Supported(mCameraHost.getActiveCameraCharacteristics())) {
+        if (mCameraHost.getActiveCameraCapabilities().isCamera2Supported()) {
+            if (mIsStoppingRecording) {
+                return;
+            }
             if (mIsRecordingVideo) {
                 stopRecordingVideo();
             } else {
+                mRecordTappedAt = PipelineTrace.now();
                 // check for space available
-                if (StorageUtil.storageReady()) {
-                    if (StorageUtil.hasAvailableSpaceToRecordVideo()) {
+                StorageSnapshot storage = StorageMonitor.instance().getSnapshot();
+                if (storage.isReady()) {
+                    if (storage.hasSpaceFor(StorageMonitor.Threshold.VIDEO)) {
                         startRecordingVideo();
                     } else {
                         Toast.makeText(getContext(), R.string.not_available_space_for_video,
@@ -526,15 +565,14 @@ public class VideoFragment extends Fragment implements
             String cameraId = mCameraHost.getActiveCameraId();
 
             // Choose the sizes for camera preview and video recording
-            CameraCharacteristics characteristics = mCameraHelper.getCameraCharacteristics(cameraId);
-            StreamConfigurationMap map = characteristics
-                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (map == null) {
-                throw new RuntimeException("Cannot get available preview/video sizes");
-            }
-            mVideoSize = chooseVideoSize(map.getOutputSizes(MediaRecorder.class));
-            mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                    width, height, mVideoSize);
+            CameraCapabilities capabilities = mCameraHelper.getCapabilities(cameraId);
+            VideoProfile videoProfile = VideoProfileSelector.instance().select(capabilities);
+            mVideoSize = videoProfile.getSize();
+            Point displaySize = new Point();
+            activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
+            mPreviewSize = capabilities.getPreviewSize(
+                    activity.getWindowManager().getDefaultDisplay().getRotation(), width, height,
+                    displaySize, mVideoSize);
 
             int orientation = getResources().getConfiguration().orientation;
             if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
@@ -543,7 +581,11 @@ public class VideoFragment extends Fragment implements
                 mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
             }
             configureTransform(width, height);
-            mMediaRecorder = new MediaRecorder();
+            mVideoEncoding = VideoBitratePolicy.choose(cameraId, videoProfile,
+                    mSettingsDatasource.getVideoQuality());
+            updateVideoEstimate(cameraId);
+            mRecordingEngine = createRecordingEngine(RECORDING_ENGINE);
+            mRecorderSurface = MediaCodec.createPersistentInputSurface();
             mCameraHelper.openCamera(cameraId, mStateCallback, null);
         } catch (CameraAccessException | InterruptedException ex) {
             handleCameraException(ex, CameraOperation.OPEN_CAMERA);
@@ -561,9 +603,24 @@ public class VideoFragment extends Fragment implements
                 mCameraDevice.close();
                 mCameraDevice = null;
             }
-            if (null != mMediaRecorder) {
-                mMediaRecorder.release();
-                mMediaRecorder = null;
+            // released on the background thread, after a stop that may still be running there
+            final RecordingEngine engine = mRecordingEngine;
+            final Surface recorderSurface = mRecorderSurface;
+            mRecordingEngine = null;
+            mRecorderSurface = null;
+            mRecorderPrepared = false;
+            Runnable release = () -> {
+                if (null != engine) {
+                    engine.release();
+                }
+                if (null != recorderSurface) {
+                    recorderSurface.release();
+                }
+            };
+            if (mBackgroundHandler != null) {
+                mBackgroundHandler.post(release);
+            } else {
+                release.run();
             }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.");
@@ -573,7 +630,8 @@ public class VideoFragment extends Fragment implements
     }
 
     /**
-     * Start the camera preview.
+     * Start the camera preview. The session also holds the recorder surface, which the repeating
+     * request only targets while recording.
      */
     private void startPreview() {
         if (null == mCameraDevice || !mTextureView.isAvailable() || null == mPreviewSize) {
@@ -581,15 +639,18 @@ public class VideoFragment extends Fragment implements
         }
         try {
             closePreviewSession();
+            // the surface needs its size from a prepared recorder before the session can use it
+            prepareRecorder();
             SurfaceTexture texture = mTextureView.getSurfaceTexture();
             assert texture != null;
             texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-            mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            // same template as the recording request, so toggling it doesn't change exposure
+            mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
 
-            Surface previewSurface = new Surface(texture);
-            mPreviewBuilder.addTarget(previewSurface);
+            mPreviewSurface = new Surface(texture);
+            mPreviewBuilder.addTarget(mPreviewSurface);
 
-            mCameraDevice.createCaptureSession(Collections.singletonList(previewSurface),
+            mCameraDevice.createCaptureSession(Arrays.asList(mPreviewSurface, mRecorderSurface),
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -604,7 +665,7 @@ public class VideoFragment extends Fragment implements
                                     Toast.LENGTH_SHORT).show();
                         }
                     }, mBackgroundHandler);
-        } catch (CameraAccessException ex) {
+        } catch (CameraAccessException | IOException ex) {
             handleCameraException(ex, CameraOperation.PREVIEW_CREATION);
         }
     }
@@ -661,115 +722,192 @@ public class VideoFragment extends Fragment implements
         mTextureView.setTransform(matrix);
     }
 
-    private void setUpMediaRecorder() throws IOException {
-        final Activity activity = getActivity();
-        if (null == activity) {
-            return;
-        }
-        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-        mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        if (mNextVideoAbsolutePath == null || mNextVideoAbsolutePath.isEmpty()) {
-            mNextVideoAbsolutePath = getVideoFilePath();
+    private RecordingEngine createRecordingEngine(RecordingEngine.Type type) {
+        RecordingEngine engine;
+        switch (type) {
+            case CODEC:
+                engine = new CodecRecordingEngine();
+                break;
+            case MEDIA_RECORDER:
+            default:
+                engine = new MediaRecorderEngine();
+                break;
         }
-        mMediaRecorder.setOutputFile(mNextVideoAbsolutePath);
-        mMediaRecorder.setVideoEncodingBitRate(10000000);
-        mMediaRecorder.setVideoFrameRate(30);
-        mMediaRecorder.setVideoSize(mVideoSize.getWidth(), mVideoSize.getHeight());
-        mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-        mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+        engine.setSegmentListener(mSegmentListener);
+        return engine;
+    }
+
+    /**
+     * Each segment is indexed as soon as it is finalized, so the recording shows up in the
+     * gallery piece by piece and a failure only loses the segment being written.
+     */
+    private final RecordingEngine.SegmentListener mSegmentListener =
+            new RecordingEngine.SegmentListener() {
+                @NonNull
+                @Override
+                public File onNextSegment() throws IOException {
+                    return StorageUtil.getVideoFilePath();
+                }
+
+                @Override
+                public void onSegmentFinished(@NonNull File file, long durationMillis) {
+                    Timber.tag(TAG).d("Video saved: %s", file);
+                    mRecordedBytes.addAndGet(file.length());
+                    mRecordedMillis.addAndGet(durationMillis);
+                    indexVideo(file, durationMillis);
+                }
+            };
+
+    private void indexVideo(File video, long durationMillis) {
+        MediaIndexer.instance().index(MediaIndexer.Entry.video(video, mVideoSize.getWidth(),
+                mVideoSize.getHeight(), System.currentTimeMillis(), durationMillis)
+                .setCallback((indexed, uri) -> LastCaptures.instance().put(CameraMode.VIDEO,
+                        uri != null ? uri : Uri.fromFile(indexed), MediaIndexer.MIME_TYPE_MP4,
+                        ThumbnailUtil.fromVideo(indexed))));
+    }
 
+    private void setUpRecordingEngine() throws IOException {
         // Orientation
-        CameraCharacteristics characteristics = mCameraHost.getActiveCameraCharacteristics();
+        int rotation = getVideoRotation();
+        Timber.d("setOrientationHint %d", rotation);
+        mPreparedRotation = rotation;
+
+        RecordingEngine.Config config = new RecordingEngine.Config(mRecorderSurface,
+                mVideoSize.getWidth(), mVideoSize.getHeight(), mVideoEncoding.getBitRate(),
+                mVideoEncoding.getFrameRate(), rotation,
+                mCameraHost.getActiveCameraCapabilities().isRealtimeTimestampSource())
+                .setSegmentLimits(SEGMENT_MAX_BYTES,
+                        TimeUnit.MINUTES.toMillis(SEGMENT_MAX_MINUTES));
+        try {
+            mRecordingEngine.prepare(config);
+        } catch (IOException | RuntimeException ex) {
+            if (mRecordingEngine.getType() == RecordingEngine.Type.MEDIA_RECORDER) throw ex;
+
+            Timber.tag(TAG).w(ex, "%s engine failed, falling back to MediaRecorder",
+                    mRecordingEngine.getType());
+            mRecordingEngine.release();
+            mRecordingEngine = createRecordingEngine(RecordingEngine.Type.MEDIA_RECORDER);
+            mRecordingEngine.prepare(config);
+        }
+    }
 
-        @SuppressWarnings("ConstantConditions")
-        int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    private int getVideoRotation() {
+        CameraCapabilities capabilities = mCameraHost.getActiveCameraCapabilities();
+        int sensorOrientation = capabilities.getSensorOrientation();
 
         int deviceOrientation = mCameraHost.getOrientationManager().getDeviceOrientation()
                 .getDegrees();
 
-        boolean isLensFacing = CharacteristicUtil.isLensFacing(characteristics);
+        boolean isLensFacing = capabilities.isFrontFacing();
 
-        int rotation = CameraUtil.getImageRotation(sensorOrientation, deviceOrientation,
-                isLensFacing);
-
-        Timber.d("mMediaRecorder.setOrientationHint %d", rotation);
-        mMediaRecorder.setOrientationHint(rotation);
-
-
-        mMediaRecorder.prepare();
+        return CameraUtil.getImageRotation(sensorOrientation, deviceOrientation, isLensFacing);
     }
 
-    private String getVideoFilePath() throws IOException {
-        final File dir = StorageUtil.getVideoFilePath();
-        return dir.getAbsolutePath();
+    /**
+     * Prepares the recorder for the next recording, so that starting it costs little more than
+     * creating the output file and switching the repeating request.
+     */
+    private void prepareRecorder() throws IOException {
+        if (mRecorderPrepared) return;
+
+        setUpRecordingEngine();
+        mRecorderPrepared = true;
     }
 
     private void startRecordingVideo() {
-        if (null == mCameraDevice || !mTextureView.isAvailable() || null == mPreviewSize) {
+        if (null == mCameraDevice || null == mPreviewSession || null == mPreviewSurface) {
             return;
         }
+        boolean engineStarted = false;
         try {
-            closePreviewSession();
-            setUpMediaRecorder();
-            SurfaceTexture texture = mTextureView.getSurfaceTexture();
-            assert texture != null;
-            texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-            mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-            List<Surface> surfaces = new ArrayList<>();
-
-            // Set up Surface for the camera preview
-            Surface previewSurface = new Surface(texture);
-            surfaces.add(previewSurface);
-            mPreviewBuilder.addTarget(previewSurface);
-
-            // Set up Surface for the MediaRecorder
-            Surface recorderSurface = mMediaRecorder.getSurface();
-            surfaces.add(recorderSurface);
-            mPreviewBuilder.addTarget(recorderSurface);
-
-            // Start a capture session
-            // Once the session starts, we can update the UI and start recording
-            mCameraDevice.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+            // the orientation hint can't change once prepared
+            if (mRecorderPrepared && mPreparedRotation != getVideoRotation()) {
+                mRecordingEngine.reset();
+                mRecorderPrepared = false;
+            }
+            prepareRecorder();
+
+            CaptureRequest.Builder builder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            builder.addTarget(mPreviewSurface);
+            builder.addTarget(mRecorderSurface);
+            setUpCaptureRequestBuilder(builder);
+            FlashMode flashMode = mSettingsDatasource.getFlashMode();
+            FlashUtil.adjustRequestBuilder4Video(builder, flashMode,
+                    mCameraHost.getActiveCameraCapabilities());
+
+            // the encoder must be running before the first frame reaches its surface
+            mRecordedBytes.set(0);
+            mRecordedMillis.set(0);
+            // named now, not when the engine was prepared
+            mRecordingEngine.start(StorageUtil.getVideoFilePath());
+            engineStarted = true;
+            mRecorderPrepared = false;
+            mFirstRecordedFrameSeen = false;
+            mPreviewSession.setRepeatingRequest(builder.build(), mRecordingCaptureCallback,
+                    mBackgroundHandler);
+
+            // UI
+            mButtonVideo.setText(R.string.stop);
+            ProfileUtils.enableRecMode(mButtonVideo, true, getContext());
+            mIsRecordingVideo = true;
+
+            mCameraHost.lockScreenRotation(true);
+            startChronometer();
+
+            playShutterSound();
+            StorageMonitor.instance().setExpectedFillRate(mVideoBytesPerSecond);
+        } catch (CameraAccessException | IOException | IllegalStateException ex) {
+            if (engineStarted) {
+                // no frame reached the engine, back to idle so the next tap can prepare it
+                try {
+                    mRecordingEngine.stop();
+                } catch (RuntimeException stopEx) {
+                    Timber.tag(TAG).w(stopEx, "Couldn't stop the recording engine");
+                }
+                mRecordingEngine.reset();
+            }
+            handleCameraException(ex, CameraOperation.CAPTURE_VIDEO);
+        }
+    }
 
+    /**
+     * Tells the recording engine about each frame sent to it and measures the latency from the
+     * tap on the record button to the first one.
+     */
+    private final CameraCaptureSession.CaptureCallback mRecordingCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
                 @Override
-                public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                    mPreviewSession = cameraCaptureSession;
-                    FlashMode flashMode = mSettingsDatasource.getFlashMode();
-                    FlashUtil.adjustRequestBuilder4Video(mPreviewBuilder, flashMode);
-                    updatePreview();
-                    Objects.requireNonNull(getActivity()).runOnUiThread(() -> {
-                        // UI
-                        mButtonVideo.setText(R.string.stop);
-                        ProfileUtils.enableRecMode(mButtonVideo, true, getContext());
-                        mIsRecordingVideo = true;
-
-                        // Start recording
-                        mCameraHost.lockScreenRotation(true);
-                        startChronometer();
-                        mMediaRecorder.start();
-
-                        playShutterSound();
-                        // check storage every 5secs if there is available space left
-                        storageHandler.postDelayed(checkStorageRunnable, 5000);
-                    });
+                public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                             @NonNull CaptureRequest request, long timestamp,
+                                             long frameNumber) {
+                    RecordingEngine engine = mRecordingEngine;
+                    if (engine != null) {
+                        engine.onFrameSubmitted(timestamp);
+                    }
                 }
 
                 @Override
-                public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-                    Toast.makeText(getContext(), R.string.configuration_failed, Toast.LENGTH_SHORT)
-                            .show();
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    if (mFirstRecordedFrameSeen) return;
+
+                    mFirstRecordedFrameSeen = true;
+                    long tappedAt = mRecordTappedAt;
+                    if (tappedAt == 0) return;
+
+                    PipelineTrace.instance().record(PipelineTrace.Stage.TAP_TO_RECORDED_FRAME,
+                            tappedAt);
+                    Timber.tag(TAG).d("Tap to first recorded frame: %d ms",
+                            TimeUnit.NANOSECONDS.toMillis(PipelineTrace.now() - tappedAt));
                 }
-            }, mBackgroundHandler);
-        } catch (CameraAccessException | IOException ex) {
-            handleCameraException(ex, CameraOperation.CAPTURE_VIDEO);
-        }
-
-    }
+            };
 
     private void startChronometer() {
         ChronometerUtils.adjustFormat(mChronometer);
-        mChronometer.setBase(SystemClock.elapsedRealtime());
+        mRecordingStartedAt = SystemClock.elapsedRealtime();
+        mChronometer.setBase(mRecordingStartedAt);
         mChronometer.start();
     }
 
@@ -791,22 +929,62 @@ public class VideoFragment extends Fragment implements
         stopChronometer();
         // UI
         mIsRecordingVideo = false;
+        mIsStoppingRecording = true;
         mButtonVideo.setText(R.string.record_video);
         ProfileUtils.enableRecMode(mButtonVideo, false, getContext());
+        mButtonVideo.setEnabled(false);
 
-        // Stop recording
-        mMediaRecorder.stop();
-        mMediaRecorder.reset();
-
-        Toast.makeText(getContext(), R.string.video_recorded, Toast.LENGTH_SHORT).show();
-        Timber.tag(TAG).d("Video saved: %s ", mNextVideoAbsolutePath);
+        // Stop feeding the encoder before stopping it
+        updatePreview();
+        mRecordTappedAt = 0;
+        StorageMonitor.instance().setExpectedFillRate(0);
+
+        // flushing the encoders and finalizing the file can take seconds
+        final RecordingEngine engine = mRecordingEngine;
+        final String cameraId = mCameraHost.getActiveCameraId();
+        final int bitRate = mVideoEncoding.getBitRate();
+        mBackgroundHandler.post(() -> {
+            boolean recorded = false;
+            try {
+                engine.stop();
+                recorded = true;
+            } catch (RuntimeException ex) {
+                // stopped before anything was encoded, the engine dropped the file
+                Timber.tag(TAG).e(ex, "Recording failed");
+            } finally {
+                Timber.tag(TAG).i("Recording %s: %s", engine.getType(), engine.getStats());
+                engine.reset();
+            }
+            CaptureSizeEstimator.instance().onVideoRecorded(cameraId, bitRate,
+                    mRecordedBytes.get(), mRecordedMillis.get());
+            final boolean success = recorded;
+            mMainHandler.post(() -> onRecordingStopped(engine, cameraId, success));
+        });
+    }
 
-        MediaScannerConnection.scanFile(getContext(), new String[]{mNextVideoAbsolutePath}, null,
-                (path, uri) -> {
-                });
+    /**
+     * Called on the main thread once {@code engine} has finalized the recording.
+     */
+    private void onRecordingStopped(RecordingEngine engine, String cameraId, boolean recorded) {
+        mIsStoppingRecording = false;
+        mButtonVideo.setEnabled(true);
+        // the camera was closed meanwhile, the engine is gone
+        if (engine != mRecordingEngine) return;
+
+        // the segments were indexed by mSegmentListener as they were finalized
+        if (recorded) {
+            Toast.makeText(getContext(), R.string.video_recorded, Toast.LENGTH_SHORT).show();
+        } else {
+            showError(R.string.capture_video_failed);
+        }
+        updateVideoEstimate(cameraId);
 
-        mNextVideoAbsolutePath = null;
-        startPreview();
+        try {
+            prepareRecorder();
+        } catch (IOException ex) {
+            // retried on the next tap
+            Timber.tag(TAG).w(ex, "Could not prepare the next recording");
+        }
     }
 
     @Override
@@ -847,29 +1025,65 @@ public class VideoFragment extends Fragment implements
         ErrorDialog.newInstance(message).show(getChildFragmentManager(), FRAGMENT_DIALOG);
     }
 
-    private final Handler storageHandler = new Handler();
-
-    private void resetStorageHandler() {
-        storageHandler.removeCallbacks(checkStorageRunnable);
-    }
+    /**
+     * Stops the recording before the storage drops below
+     * {@link StorageMonitor.Threshold#VIDEO}.
+     */
+    private final StorageMonitor.Listener mStorageListener = new StorageMonitor.Listener() {
+        @Override
+        public void onStorageChanged(@NonNull StorageSnapshot snapshot) {
+            if (!snapshot.canRecordVideo()) {
+                stopRecordingDueToStorage();
+            }
+            updateRemainingTime();
+        }
 
-    private final Runnable checkStorageRunnable = new Runnable() {
-        public void run() {
-            try {
-                if (StorageUtil.hasAvailableSpaceToRecordVideo()) {
-                    // try again after 5secs
-                    storageHandler.postDelayed(this, 5000);
-                } else {
-                    stopRecordingVideo();
-                    Toast.makeText(getContext(), R.string.recording_stopped_due_storage,
-                            Toast.LENGTH_LONG).show();
-                }
-            } catch (Exception e) {
-                Timber.e(e);
+        @Override
+        public void onThresholdApproaching(@NonNull StorageMonitor.Threshold threshold,
+                                           long secondsLeft) {
+            if (threshold == StorageMonitor.Threshold.VIDEO) {
+                stopRecordingDueToStorage();
             }
         }
     };
 
+    /**
+     * Looks up the expected bitrate of the camera and moves the low space cutoff accordingly.
+     */
+    private void updateVideoEstimate(String cameraId) {
+        mVideoBytesPerSecond = CaptureSizeEstimator.instance().getVideoBytesPerSecond(cameraId,
+                mVideoEncoding.getBitRate());
+        CaptureSizeEstimator.applyVideoThreshold(mVideoBytesPerSecond);
+        updateRemainingTime();
+    }
+
+    private void updateGalleryButton() {
+        if (mGalleryButton == null || mGalleryIcon == null) return;
+        ThumbnailUtil.applyToButton(mGalleryButton,
+                LastCaptures.instance().getLastThumbnail(CameraMode.VIDEO), mGalleryIcon);
+    }
+
+    private void updateRemainingTime() {
+        if (mRemainingView == null || !isAdded()) return;
+
+        StorageSnapshot snapshot = StorageMonitor.instance().getSnapshot();
+        if (snapshot.getState() == StorageSnapshot.State.UNKNOWN || mVideoBytesPerSecond == 0) {
+            mRemainingView.setVisibility(View.GONE);
+            return;
+        }
+        long minutes = CaptureSizeEstimator.getRemainingMinutes(snapshot, mVideoBytesPerSecond);
+        mRemainingView.setText(getString(R.string.remaining_minutes, minutes));
+        mRemainingView.setVisibility(View.VISIBLE);
+    }
+
+    private void stopRecordingDueToStorage() {
+        if (!mIsRecordingVideo) return;
+
+        stopRecordingVideo();
+        Toast.makeText(getContext(), R.string.recording_stopped_due_storage,
+                Toast.LENGTH_LONG).show();
+    }
+
     private MediaActionSound mMediaActionSound;
 
     private void playShutterSound() {
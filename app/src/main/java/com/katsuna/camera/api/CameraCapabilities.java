@@ -0,0 +1,398 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.api;
+
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Size;
+import android.view.Surface;
+
+import com.katsuna.camera.data.SizeMode;
+import com.katsuna.camera.utils.CompareSizesByArea;
+import com.katsuna.camera.utils.SizeUtil;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+import static android.hardware.camera2.CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES;
+import static android.hardware.camera2.CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES;
+import static android.hardware.camera2.CameraCharacteristics.CONTROL_AWB_AVAILABLE_MODES;
+import static android.hardware.camera2.CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP;
+import static android.hardware.camera2.CameraCharacteristics.SENSOR_ORIENTATION;
+
+/**
+ * Immutable snapshot of what a camera can do, computed once from its
+ * {@link CameraCharacteristics}. Obtain it with {@link CameraHelper#getCapabilities(String)}, which
+ * caches one instance per camera id.
+ */
+public final class CameraCapabilities {
+
+    private static final String NOT_SUPPORTED = "not properly supported camera2 api";
+
+    /**
+     * Max preview width that is guaranteed by Camera2 API
+     */
+    private static final int MAX_PREVIEW_WIDTH = 1920;
+    /**
+     * Max preview height that is guaranteed by Camera2 API
+     */
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
+
+    private final String mCameraId;
+    private final CameraCharacteristics mCharacteristics;
+
+    private final boolean mCamera2Supported;
+    private final boolean mFrontFacing;
+    private final boolean mFlashSupported;
+    private final int mSensorOrientation;
+    private final Rect mActiveArraySize;
+
+    private final List<Size> mCaptureSizes;
+    private final List<Size> mPreviewSizes;
+    private final List<Size> mVideoSizes;
+    private final Size mLargestCaptureSize;
+    private final List<Size> mJpegThumbnailSizes;
+    /**
+     * Still capture size of each {@link SizeMode}, resolved with a {@link SizeLadder}.
+     */
+    private final Map<SizeMode, Size> mSizeModeCaptureSizes = new EnumMap<>(SizeMode.class);
+    /**
+     * Preview sizes already chosen, by {@link #getPreviewSize} arguments.
+     */
+    private final Map<String, Size> mPreviewSizeChoices = new ConcurrentHashMap<>();
+
+    private final int[] mAfModes;
+    private final int[] mAeModes;
+    private final int[] mAwbModes;
+
+    private final boolean mZeroShutterLagSupported;
+    private final int mZeroShutterLagInputFormat;
+    private final Size mZeroShutterLagInputSize;
+    private final boolean mMonoEffectSupported;
+    private final boolean mMeteringAreaAFSupported;
+    private final boolean mRealtimeTimestampSource;
+
+    CameraCapabilities(@NonNull String cameraId, @NonNull CameraCharacteristics c) {
+        mCameraId = cameraId;
+        mCharacteristics = c;
+
+        mCamera2Supported = CharacteristicUtil.camera2Supported(c);
+        mFrontFacing = CharacteristicUtil.isLensFacing(c);
+        mFlashSupported = CharacteristicUtil.isFlashSupported(c);
+        Integer sensorOrientation = c.get(SENSOR_ORIENTATION);
+        mSensorOrientation = sensorOrientation == null ? 0 : sensorOrientation;
+        mActiveArraySize = CharacteristicUtil.getSensorArraySize(c);
+
+        StreamConfigurationMap map = c.get(SCALER_STREAM_CONFIGURATION_MAP);
+        if (map != null) {
+            mCaptureSizes = toList(map.getOutputSizes(ImageFormat.JPEG));
+            mPreviewSizes = toList(map.getOutputSizes(SurfaceTexture.class));
+            mVideoSizes = toList(map.getOutputSizes(MediaRecorder.class));
+        } else {
+            mCaptureSizes = null;
+            mPreviewSizes = null;
+            mVideoSizes = null;
+        }
+        mLargestCaptureSize = mCaptureSizes == null || mCaptureSizes.isEmpty() ? null
+                : SizeUtil.getCaptureSize(mCaptureSizes, new CompareSizesByArea());
+        if (map != null && !mCaptureSizes.isEmpty()) {
+            resolveSizeModes(map);
+        }
+
+        mJpegThumbnailSizes = toList(c.get(CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES));
+
+        mAfModes = sortedCopy(c.get(CONTROL_AF_AVAILABLE_MODES));
+        mAeModes = sortedCopy(c.get(CONTROL_AE_AVAILABLE_MODES));
+        mAwbModes = sortedCopy(c.get(CONTROL_AWB_AVAILABLE_MODES));
+
+        mZeroShutterLagSupported = CharacteristicUtil.isZeroShutterLagSupported(c);
+        mZeroShutterLagInputFormat = CharacteristicUtil.getZeroShutterLagInputFormat(c);
+        mZeroShutterLagInputSize = mZeroShutterLagInputFormat == ImageFormat.UNKNOWN ? null
+                : CharacteristicUtil.getZeroShutterLagInputSize(c, mZeroShutterLagInputFormat);
+        mMonoEffectSupported = CharacteristicUtil.isBWColorModeSupported(c);
+        mMeteringAreaAFSupported = CharacteristicUtil.isMeteringAreaAFSupported(c);
+        Integer timestampSource = c.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        mRealtimeTimestampSource = timestampSource != null && timestampSource
+                == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
+    private static List<Size> toList(Size[] sizes) {
+        return sizes == null ? Collections.emptyList()
+                : Collections.unmodifiableList(Arrays.asList(sizes.clone()));
+    }
+
+    private void resolveSizeModes(StreamConfigurationMap map) {
+        List<SizeLadder.Option> options = new ArrayList<>(mCaptureSizes.size());
+        for (Size size : mCaptureSizes) {
+            options.add(new SizeLadder.Option(size.getWidth(), size.getHeight(),
+                    map.getOutputStallDuration(ImageFormat.JPEG, size),
+                    map.getOutputMinFrameDuration(ImageFormat.JPEG, size)));
+        }
+        SizeLadder ladder = new SizeLadder(options);
+        for (SizeMode sizeMode : SizeMode.values()) {
+            SizeLadder.Option option = ladder.resolve(sizeMode);
+            mSizeModeCaptureSizes.put(sizeMode, new Size(option.getWidth(), option.getHeight()));
+        }
+        Timber.d("camera %s capture sizes: %s", mCameraId, mSizeModeCaptureSizes);
+    }
+
+    private static int[] sortedCopy(int[] modes) {
+        if (modes == null) return new int[0];
+
+        int[] output = modes.clone();
+        Arrays.sort(output);
+        return output;
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * The characteristics the snapshot was taken from, for values it doesn't cover.
+     */
+    public CameraCharacteristics getCharacteristics() {
+        return mCharacteristics;
+    }
+
+    public boolean isCamera2Supported() {
+        return mCamera2Supported;
+    }
+
+    public boolean isFrontFacing() {
+        return mFrontFacing;
+    }
+
+    public boolean isFlashSupported() {
+        return mFlashSupported;
+    }
+
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    @Nullable
+    public Rect getActiveArraySize() {
+        return mActiveArraySize == null ? null : new Rect(mActiveArraySize);
+    }
+
+    /**
+     * @throws NullPointerException if the camera has no stream configuration map
+     */
+    @NonNull
+    public List<Size> getCaptureSizes() {
+        return Objects.requireNonNull(mCaptureSizes, NOT_SUPPORTED);
+    }
+
+    /**
+     * @throws NullPointerException if the camera has no stream configuration map
+     */
+    @NonNull
+    public List<Size> getPreviewSizes() {
+        return Objects.requireNonNull(mPreviewSizes, NOT_SUPPORTED);
+    }
+
+    /**
+     * @throws NullPointerException if the camera has no stream configuration map
+     */
+    @NonNull
+    public List<Size> getVideoSizes() {
+        return Objects.requireNonNull(mVideoSizes, NOT_SUPPORTED);
+    }
+
+    /**
+     * The largest JPEG size, used for still captures.
+     *
+     * @throws NullPointerException if the camera has no JPEG output
+     */
+    @NonNull
+    public Size getLargestCaptureSize() {
+        return Objects.requireNonNull(mLargestCaptureSize, NOT_SUPPORTED);
+    }
+
+    /**
+     * Shortest frame duration in nanoseconds the camera sustains for a video stream of
+     * {@code size}, 0 if unknown.
+     */
+    public long getVideoMinFrameDuration(@NonNull Size size) {
+        StreamConfigurationMap map = mCharacteristics.get(SCALER_STREAM_CONFIGURATION_MAP);
+        return map == null ? 0 : map.getOutputMinFrameDuration(MediaRecorder.class, size);
+    }
+
+    /**
+     * The supported JPEG size closest to what {@code sizeMode} asks for.
+     *
+     * @throws NullPointerException if the camera has no JPEG output
+     */
+    @NonNull
+    public Size getCaptureSize(@NonNull SizeMode sizeMode) {
+        return Objects.requireNonNull(mSizeModeCaptureSizes.get(sizeMode), NOT_SUPPORTED);
+    }
+
+    /**
+     * Chooses the preview size for a view, matching the aspect ratio of
+     * {@link #getLargestCaptureSize()}. The choice is remembered per arguments.
+     *
+     * @param displayRotation one of the {@link Surface} rotation constants
+     * @param viewWidth       width of the view showing the preview
+     * @param viewHeight      height of the view showing the preview
+     * @param displaySize     size of the display
+     */
+    @NonNull
+    public Size getPreviewSize(int displayRotation, int viewWidth, int viewHeight,
+                               @NonNull Point displaySize) {
+        return getPreviewSize(displayRotation, viewWidth, viewHeight, displaySize,
+                getLargestCaptureSize());
+    }
+
+    /**
+     * Chooses the preview size for a view, matching the aspect ratio of {@code aspectRatio}, for
+     * instance the video size. The choice is remembered per arguments.
+     */
+    @NonNull
+    public Size getPreviewSize(int displayRotation, int viewWidth, int viewHeight,
+                               @NonNull Point displaySize, @NonNull Size aspectRatio) {
+        String key = displayRotation + ":" + viewWidth + "x" + viewHeight + ":" + displaySize.x
+                + "x" + displaySize.y + ":" + aspectRatio;
+        Size output = mPreviewSizeChoices.get(key);
+        if (output == null) {
+            output = choosePreviewSize(displayRotation, viewWidth, viewHeight, displaySize,
+                    aspectRatio);
+            mPreviewSizeChoices.put(key, output);
+        }
+        return output;
+    }
+
+    private Size choosePreviewSize(int displayRotation, int viewWidth, int viewHeight,
+                                   Point displaySize, Size aspectRatio) {
+        // Find out if we need to swap dimension to get the preview size relative to sensor
+        // coordinate.
+        boolean swappedDimensions = false;
+        switch (displayRotation) {
+            case Surface.ROTATION_0:
+            case Surface.ROTATION_180:
+                if (mSensorOrientation == 90 || mSensorOrientation == 270) {
+                    swappedDimensions = true;
+                }
+                break;
+            case Surface.ROTATION_90:
+            case Surface.ROTATION_270:
+                if (mSensorOrientation == 0 || mSensorOrientation == 180) {
+                    swappedDimensions = true;
+                }
+                break;
+            default:
+                Timber.e("Display rotation is invalid: %s", displayRotation);
+        }
+
+        int rotatedPreviewWidth = viewWidth;
+        int rotatedPreviewHeight = viewHeight;
+        int maxPreviewWidth = displaySize.x;
+        int maxPreviewHeight = displaySize.y;
+
+        if (swappedDimensions) {
+            rotatedPreviewWidth = viewHeight;
+            rotatedPreviewHeight = viewWidth;
+            maxPreviewWidth = displaySize.y;
+            maxPreviewHeight = displaySize.x;
+        }
+
+        if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
+            maxPreviewWidth = MAX_PREVIEW_WIDTH;
+        }
+
+        if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
+            maxPreviewHeight = MAX_PREVIEW_HEIGHT;
+        }
+
+        // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
+        // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
+        // garbage capture data.
+        return SizeUtil.chooseOptimalSize(getPreviewSizes(), rotatedPreviewWidth,
+                rotatedPreviewHeight, maxPreviewWidth, maxPreviewHeight, aspectRatio);
+    }
+
+    public boolean isAutoFocusModeSupported(int mode) {
+        return Arrays.binarySearch(mAfModes, mode) >= 0;
+    }
+
+    public boolean isAutoExposureModeSupported(int mode) {
+        return Arrays.binarySearch(mAeModes, mode) >= 0;
+    }
+
+    public boolean isAutoWhiteBalanceModeSupported(int mode) {
+        return Arrays.binarySearch(mAwbModes, mode) >= 0;
+    }
+
+    public boolean isZeroShutterLagSupported() {
+        return mZeroShutterLagSupported;
+    }
+
+    /**
+     * @see CharacteristicUtil#getZeroShutterLagInputFormat(CameraCharacteristics)
+     */
+    public int getZeroShutterLagInputFormat() {
+        return mZeroShutterLagInputFormat;
+    }
+
+    @Nullable
+    public Size getZeroShutterLagInputSize() {
+        return mZeroShutterLagInputSize;
+    }
+
+    /**
+     * Sizes of the thumbnail embedded in the JPEG EXIF, including 0x0 for no thumbnail.
+     */
+    @NonNull
+    public List<Size> getJpegThumbnailSizes() {
+        return mJpegThumbnailSizes;
+    }
+
+    public boolean isMonoEffectSupported() {
+        return mMonoEffectSupported;
+    }
+
+    public boolean isMeteringAreaAFSupported() {
+        return mMeteringAreaAFSupported;
+    }
+
+    /**
+     * Whether sensor timestamps are in the {@link android.os.SystemClock#elapsedRealtimeNanos()}
+     * timebase. Otherwise they are only comparable with each other, though in practice they
+     * follow {@link System#nanoTime()}.
+     */
+    public boolean isRealtimeTimestampSource() {
+        return mRealtimeTimestampSource;
+    }
+}
@@ -29,10 +29,23 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import timber.log.Timber;
 
 public class CameraHelper {
 
+    /**
+     * Capability snapshots by camera id, shared by all helpers of the process.
+     */
+    private static final Map<String, CameraCapabilities> sCapabilities =
+            new ConcurrentHashMap<>();
+    /**
+     * Camera ids of the device, read once per process.
+     */
+    private static volatile String[] sCameraIds;
+
     private final Context mContext;
     private final CameraManager mCameraManager;
 
@@ -42,7 +55,12 @@ public class CameraHelper {
     }
 
     public String[] getCameraIdList() throws CameraAccessException {
-        return mCameraManager.getCameraIdList();
+        String[] output = sCameraIds;
+        if (output == null) {
+            output = mCameraManager.getCameraIdList();
+            sCameraIds = output;
+        }
+        return output.clone();
     }
 
     public CameraCharacteristics getCameraCharacteristics(@NonNull String cameraId) {
@@ -56,6 +74,28 @@ public class CameraHelper {
         return output;
     }
 
+    /**
+     * The capabilities of a camera. The characteristics are fetched from the camera service only
+     * the first time a camera is asked for.
+     *
+     * @return null if the characteristics couldn't be read
+     */
+    @Nullable
+    public CameraCapabilities getCapabilities(@NonNull String cameraId) {
+        CameraCapabilities output = sCapabilities.get(cameraId);
+        if (output == null) {
+            CameraCharacteristics characteristics = getCameraCharacteristics(cameraId);
+            if (characteristics == null) return null;
+
+            output = new CameraCapabilities(cameraId, characteristics);
+            CameraCapabilities previous = sCapabilities.putIfAbsent(cameraId, output);
+            if (previous != null) {
+                output = previous;
+            }
+        }
+        return output;
+    }
+
     @RequiresPermission(android.Manifest.permission.CAMERA)
     public void openCamera(@NonNull String cameraId,
                            @NonNull final CameraDevice.StateCallback callback,
@@ -79,7 +119,7 @@ public class CameraHelper {
     public String getInitialCameraId() {
         String output = null;
         try {
-            String[] cameras = mCameraManager.getCameraIdList();
+            String[] cameras = getCameraIdList();
             if (cameras.length > 0) {
                 // get first available
                 output = cameras[0];
@@ -94,7 +134,7 @@ public class CameraHelper {
         // use current cameraId if somethings goes wrong or we don't have other camera.
         String output = cameraId;
         try {
-            String[] cameras = mCameraManager.getCameraIdList();
+            String[] cameras = getCameraIdList();
 
             // calc current index
             int currentIndex = 0;
@@ -0,0 +1,65 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.api;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import timber.log.Timber;
+
+/**
+ * Fetches the camera ids and the capabilities of every camera on a background thread at
+ * application start, while the activity inflates, so that opening the first camera finds them
+ * cached in {@link CameraHelper}.
+ */
+public class CameraPrewarm implements Runnable {
+
+    private static final String TAG = "CameraPrewarm";
+
+    private final Context mContext;
+
+    private CameraPrewarm(Context context) {
+        mContext = context;
+    }
+
+    public static void start(@NonNull Context context) {
+        Thread thread = new Thread(new CameraPrewarm(context.getApplicationContext()), TAG);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            CameraHelper cameraHelper = new CameraHelper(mContext);
+            for (String cameraId : cameraHelper.getCameraIdList()) {
+                // the preview size depends on the texture view, which isn't laid out yet
+                cameraHelper.getCapabilities(cameraId);
+            }
+            Timber.tag(TAG).d("Camera metadata prefetched in %d ms",
+                    SystemClock.elapsedRealtime() - start);
+        } catch (CameraAccessException | RuntimeException ex) {
+            // the fragments fetch everything again on their own
+            Timber.tag(TAG).e(ex, "Camera prewarm failed");
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.api;
+
+import android.support.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+import static android.hardware.camera2.CameraMetadata.CONTROL_AE_STATE_CONVERGED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AE_STATE_FLASH_REQUIRED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AE_STATE_PRECAPTURE;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_ACTIVE_SCAN;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_INACTIVE;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_PASSIVE_FOCUSED;
+
+/**
+ * Focus lock and precapture state machine of a still capture. It is driven only by the AF and AE
+ * states of the capture results and by the time they arrive, so every waiting state is bounded by
+ * a deadline in frames and in time. When a deadline passes the picture is taken anyway.
+ * <p>
+ * Not thread safe, use it from the thread that receives the capture results.
+ */
+public class CaptureStateMachine {
+
+    public static final int DEFAULT_MAX_FRAMES = 30;
+    public static final long DEFAULT_MAX_MILLIS = 1000;
+    /**
+     * Preview results older than this are not trusted by {@link #captureIfConverged(long)}.
+     */
+    public static final long MAX_PREVIEW_RESULT_AGE_MILLIS = 200;
+
+    public interface Callback {
+        /**
+         * Send the AE precapture trigger. The state is already {@link CameraState#WAITING_PRECAPTURE}.
+         */
+        void runPrecaptureSequence();
+
+        /**
+         * Send the still capture request. The state is already {@link CameraState#TAKEN}.
+         */
+        void captureStillPicture();
+
+        /**
+         * Called on every transition with the time spent in the previous state.
+         */
+        void onStateChanged(CameraState previous, CameraState state, long durationNanos);
+    }
+
+    private static class Deadline {
+        final int maxFrames;
+        final long maxNanos;
+
+        Deadline(int maxFrames, long maxNanos) {
+            this.maxFrames = maxFrames;
+            this.maxNanos = maxNanos;
+        }
+    }
+
+    private final Callback mCallback;
+    private final Map<CameraState, Deadline> mDeadlines = new EnumMap<>(CameraState.class);
+
+    private CameraState mState = CameraState.PREVIEW;
+    private long mEnteredAt;
+    private int mFrames;
+    private int mTimeouts;
+    private int mFastCaptures;
+    private int mFocusLocks;
+
+    private Integer mPreviewAfState;
+    private Integer mPreviewAeState;
+    private long mPreviewResultAt;
+
+    public CaptureStateMachine(@NonNull Callback callback) {
+        mCallback = callback;
+        Deadline deadline = new Deadline(DEFAULT_MAX_FRAMES,
+                TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_MILLIS));
+        mDeadlines.put(CameraState.WAITING_LOCK, deadline);
+        mDeadlines.put(CameraState.WAITING_PRECAPTURE, deadline);
+        mDeadlines.put(CameraState.WAITING_NON_PRECAPTURE, deadline);
+    }
+
+    /**
+     * Overrides the deadline of a waiting state. The picture is forced after {@code maxFrames}
+     * completed results or {@code maxMillis}, whichever comes first.
+     */
+    public void setDeadline(@NonNull CameraState state, int maxFrames, long maxMillis) {
+        if (!mDeadlines.containsKey(state)) {
+            throw new IllegalArgumentException(state + " is not a waiting state");
+        }
+        mDeadlines.put(state, new Deadline(maxFrames, TimeUnit.MILLISECONDS.toNanos(maxMillis)));
+    }
+
+    public CameraState getState() {
+        return mState;
+    }
+
+    /**
+     * Number of captures forced by a deadline.
+     */
+    public int getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    /**
+     * Number of pictures taken by {@link #captureIfConverged(long)}.
+     */
+    public int getFastCaptureCount() {
+        return mFastCaptures;
+    }
+
+    /**
+     * Number of pictures that went through the focus lock sequence.
+     */
+    public int getFocusLockCount() {
+        return mFocusLocks;
+    }
+
+    /**
+     * The AF trigger has been sent, wait for the focus to lock.
+     */
+    public void lockFocus(long nowNanos) {
+        mFocusLocks++;
+        moveTo(CameraState.WAITING_LOCK, nowNanos);
+    }
+
+    /**
+     * Takes the picture right away if the latest preview result reports that continuous AF has
+     * focused and AE has converged, so locking the focus would only add round trips.
+     *
+     * @return false if the focus lock sequence is needed
+     */
+    public boolean captureIfConverged(long nowNanos) {
+        if (mState != CameraState.PREVIEW || mPreviewAfState == null
+                || nowNanos - mPreviewResultAt > TimeUnit.MILLISECONDS.toNanos(
+                MAX_PREVIEW_RESULT_AGE_MILLIS)
+                || mPreviewAfState != CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || (mPreviewAeState != null && mPreviewAeState != CONTROL_AE_STATE_CONVERGED)) {
+            return false;
+        }
+
+        mFastCaptures++;
+        capture(nowNanos);
+        return true;
+    }
+
+    /**
+     * Takes the picture right away, without focus lock or precapture.
+     */
+    public void capture(long nowNanos) {
+        moveTo(CameraState.TAKEN, nowNanos);
+        mCallback.captureStillPicture();
+    }
+
+    /**
+     * The preview has been restored.
+     */
+    public void reset(long nowNanos) {
+        // the AF and AE triggers were cancelled, wait for fresh preview results
+        mPreviewAfState = null;
+        mPreviewAeState = null;
+        moveTo(CameraState.PREVIEW, nowNanos);
+    }
+
+    /**
+     * Feeds a capture result.
+     *
+     * @param afState   {@code CONTROL_AF_STATE} of the result, null if missing
+     * @param aeState   {@code CONTROL_AE_STATE} of the result, null if missing
+     * @param completed false for partial results, which don't count as frames
+     * @param nowNanos  monotonic arrival time of the result
+     */
+    public void process(Integer afState, Integer aeState, boolean completed, long nowNanos) {
+        if (mState == CameraState.PREVIEW) {
+            if (completed) {
+                mPreviewAfState = afState;
+                mPreviewAeState = aeState;
+                mPreviewResultAt = nowNanos;
+            }
+            return;
+        }
+
+        Deadline deadline = mDeadlines.get(mState);
+        if (deadline == null) {
+            // nothing to wait for
+            return;
+        }
+
+        if (completed) {
+            mFrames++;
+        }
+
+        CameraState state = mState;
+        switch (mState) {
+            case WAITING_LOCK: {
+                if (afState == null) {
+                    precapture(nowNanos);
+                } else if (afState == CONTROL_AF_STATE_INACTIVE ||
+                        afState == CONTROL_AF_STATE_FOCUSED_LOCKED ||
+                        afState == CONTROL_AF_STATE_NOT_FOCUSED_LOCKED) {
+                    // CONTROL_AE_STATE can be null on some devices
+                    if (aeState == null || aeState == CONTROL_AE_STATE_CONVERGED) {
+                        capture(nowNanos);
+                    } else {
+                        precapture(nowNanos);
+                    }
+                } else if (afState != CONTROL_AF_STATE_ACTIVE_SCAN) {
+                    // the trigger was not honoured, don't wait for a lock that won't come
+                    capture(nowNanos);
+                }
+                break;
+            }
+            case WAITING_PRECAPTURE: {
+                // CONTROL_AE_STATE can be null on some devices
+                if (aeState == null ||
+                        aeState == CONTROL_AE_STATE_PRECAPTURE ||
+                        aeState == CONTROL_AE_STATE_FLASH_REQUIRED ||
+                        aeState == CONTROL_AE_STATE_CONVERGED) {
+                    moveTo(CameraState.WAITING_NON_PRECAPTURE, nowNanos);
+                }
+                break;
+            }
+            case WAITING_NON_PRECAPTURE: {
+                // CONTROL_AE_STATE can be null on some devices
+                if (aeState == null || aeState != CONTROL_AE_STATE_PRECAPTURE) {
+                    capture(nowNanos);
+                }
+                break;
+            }
+        }
+
+        if (mState == state
+                && (mFrames >= deadline.maxFrames || nowNanos - mEnteredAt >= deadline.maxNanos)) {
+            mTimeouts++;
+            Timber.w("%s timed out after %d frames, forcing capture", state, mFrames);
+            capture(nowNanos);
+        }
+    }
+
+    private void precapture(long nowNanos) {
+        moveTo(CameraState.WAITING_PRECAPTURE, nowNanos);
+        mCallback.runPrecaptureSequence();
+    }
+
+    private void moveTo(CameraState state, long nowNanos) {
+        CameraState previous = mState;
+        long duration = nowNanos - mEnteredAt;
+        mState = state;
+        mEnteredAt = nowNanos;
+        mFrames = 0;
+        if (previous != state) {
+            mCallback.onStateChanged(previous, state, duration);
+        }
+    }
+}
@@ -26,7 +26,10 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.support.annotation.NonNull;
 import android.util.Size;
 
+import com.katsuna.camera.utils.CompareSizesByArea;
+
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import timber.log.Timber;
@@ -137,6 +140,59 @@ public class CharacteristicUtil {
         return output;
     }
 
+    /**
+     * The format of the frames kept for zero shutter lag reprocessing. PRIVATE is preferred since
+     * it needs no format conversion, YUV_420_888 is used otherwise.
+     *
+     * @return {@link ImageFormat#UNKNOWN} if the camera can't reprocess any frame to JPEG
+     */
+    public static int getZeroShutterLagInputFormat(@NonNull CameraCharacteristics c) {
+        StreamConfigurationMap map = c.get(SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) return ImageFormat.UNKNOWN;
+
+        if (isSupported(c, REQUEST_AVAILABLE_CAPABILITIES,
+                REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING)
+                && canReprocessToJpeg(map, ImageFormat.PRIVATE)) {
+            return ImageFormat.PRIVATE;
+        }
+
+        if (isSupported(c, REQUEST_AVAILABLE_CAPABILITIES,
+                REQUEST_AVAILABLE_CAPABILITIES_YUV_REPROCESSING)
+                && canReprocessToJpeg(map, ImageFormat.YUV_420_888)) {
+            return ImageFormat.YUV_420_888;
+        }
+
+        return ImageFormat.UNKNOWN;
+    }
+
+    private static boolean canReprocessToJpeg(@NonNull StreamConfigurationMap map, int format) {
+        int[] outputFormats = map.getValidOutputFormatsForInput(format);
+        if (outputFormats == null) return false;
+
+        for (int f : outputFormats) {
+            if (f == ImageFormat.JPEG) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The largest input size the camera accepts for reprocessing frames of {@code format}.
+     */
+    public static Size getZeroShutterLagInputSize(@NonNull CameraCharacteristics c, int format) {
+        StreamConfigurationMap map = c.get(SCALER_STREAM_CONFIGURATION_MAP);
+
+        if (map == null) {
+            throw new NullPointerException("not properly supported camera2 api");
+        }
+
+        Size[] sizes = map.getInputSizes(format);
+        if (sizes == null || sizes.length == 0) return null;
+
+        return Collections.max(Arrays.asList(sizes), new CompareSizesByArea());
+    }
+
     public static boolean isBWColorModeSupported(@NonNull CameraCharacteristics r) {
         boolean output = isSupported(r, CONTROL_AVAILABLE_EFFECTS, CONTROL_EFFECT_MODE_MONO);
 
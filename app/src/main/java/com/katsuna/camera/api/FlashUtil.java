@@ -37,7 +37,10 @@ import static android.hardware.camera2.CaptureRequest.FLASH_MODE;
 
 public class FlashUtil {
 
-    public static void adjustRequestBuilder(CaptureRequest.Builder builder, FlashMode flashMode) {
+    public static void adjustRequestBuilder(CaptureRequest.Builder builder, FlashMode flashMode,
+                                            CameraCapabilities capabilities) {
+        if (!capabilities.isFlashSupported()) return;
+
         switch (flashMode) {
             case ON:
                 builder.set(CONTROL_AE_MODE, CONTROL_AE_MODE_ON_ALWAYS_FLASH);
@@ -53,7 +56,10 @@ public class FlashUtil {
         }
     }
 
-    public static void adjustRequestBuilder4Video(CaptureRequest.Builder builder, FlashMode flashMode) {
+    public static void adjustRequestBuilder4Video(CaptureRequest.Builder builder, FlashMode flashMode,
+                                                  CameraCapabilities capabilities) {
+        if (!capabilities.isFlashSupported()) return;
+
         switch (flashMode) {
             case ON:
                 builder.set(CONTROL_AE_MODE, CONTROL_AE_MODE_ON);
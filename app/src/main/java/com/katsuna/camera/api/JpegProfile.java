@@ -0,0 +1,111 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.api;
+
+import android.hardware.camera2.CaptureRequest;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Size;
+
+import com.katsuna.camera.data.SizeMode;
+
+import java.util.List;
+
+/**
+ * JPEG encoding settings of a {@link SizeMode}. Without them every shot gets the HAL default
+ * quality, so SMALL photos are only smaller by their resolution, and possibly no EXIF thumbnail
+ * for galleries to show without decoding the whole image.
+ */
+public enum JpegProfile {
+    LARGE(95, 320),
+    SMALL(80, 240);
+
+    private final byte mQuality;
+    private final int mMaxThumbnailSide;
+
+    JpegProfile(int quality, int maxThumbnailSide) {
+        mQuality = (byte) quality;
+        mMaxThumbnailSide = maxThumbnailSide;
+    }
+
+    @NonNull
+    public static JpegProfile forSizeMode(@NonNull SizeMode sizeMode) {
+        return sizeMode == SizeMode.SMALL ? SMALL : LARGE;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Sets the quality and thumbnail of a still capture request.
+     *
+     * @param captureSize size of the JPEG, the thumbnail is chosen to match its aspect ratio
+     */
+    public void apply(@NonNull CaptureRequest.Builder builder,
+                      @NonNull CameraCapabilities capabilities, @NonNull Size captureSize) {
+        builder.set(CaptureRequest.JPEG_QUALITY, mQuality);
+        builder.set(CaptureRequest.JPEG_THUMBNAIL_QUALITY, mQuality);
+        Size thumbnailSize = chooseThumbnailSize(capabilities.getJpegThumbnailSizes(),
+                captureSize);
+        if (thumbnailSize != null) {
+            builder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, thumbnailSize);
+        }
+    }
+
+    /**
+     * The largest thumbnail within {@link #mMaxThumbnailSide} with the aspect ratio closest to
+     * the capture. Thumbnails with another aspect ratio are cropped by the HAL.
+     *
+     * @return null if the camera only supports 0x0, which is no thumbnail
+     */
+    @Nullable
+    Size chooseThumbnailSize(@NonNull List<Size> available, @NonNull Size captureSize) {
+        double captureRatio = ratio(captureSize);
+        Size best = null;
+        double bestRatioError = Double.MAX_VALUE;
+        for (Size size : available) {
+            if (size.getWidth() == 0 || size.getHeight() == 0) continue;
+            if (Math.max(size.getWidth(), size.getHeight()) > mMaxThumbnailSide) continue;
+
+            double ratioError = Math.abs(ratio(size) - captureRatio);
+            boolean closer = ratioError < bestRatioError - 0.01;
+            boolean asClose = Math.abs(ratioError - bestRatioError) <= 0.01;
+            if (best == null || closer || (asClose && area(size) > area(best))) {
+                best = size;
+                bestRatioError = ratioError;
+            }
+        }
+        return best;
+    }
+
+    private static double ratio(Size size) {
+        return Math.max(size.getWidth(), size.getHeight())
+                / (double) Math.min(size.getWidth(), size.getHeight());
+    }
+
+    private static long area(Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+
+    @Override
+    public String toString() {
+        return name() + " q" + mQuality;
+    }
+}
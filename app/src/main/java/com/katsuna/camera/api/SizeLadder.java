@@ -0,0 +1,157 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.api;
+
+import android.support.annotation.NonNull;
+
+import com.katsuna.camera.data.SizeMode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps each {@link SizeMode} to an output size the camera actually supports. Plain java so it can
+ * be checked against size tables recorded from real devices.
+ * <p>
+ * {@link SizeMode#LARGE} is the largest size. {@link SizeMode#SMALL} aims at a quarter of its
+ * area, with the same aspect ratio. Within half an octave of that target the size with the lowest
+ * stall duration wins, then the one with the lowest minimum frame duration, so the HAL encodes
+ * it in hardware instead of scaling in software.
+ */
+public class SizeLadder {
+
+    /**
+     * Aspect ratios differing by less than this fraction are considered equal.
+     */
+    private static final double ASPECT_TOLERANCE = 0.02;
+    /**
+     * Area fraction of the largest size aimed at by {@link SizeMode#SMALL}.
+     */
+    private static final int SMALL_AREA_DIVIDER = 4;
+    /**
+     * Sizes whose area is within this factor of the target are equally good.
+     */
+    private static final double AREA_BAND = Math.sqrt(2);
+
+    /**
+     * One output size with its durations in nanoseconds, as reported by the
+     * {@code StreamConfigurationMap}.
+     */
+    public static class Option {
+        final int mWidth;
+        final int mHeight;
+        final long mStallNanos;
+        final long mMinFrameNanos;
+
+        public Option(int width, int height, long stallNanos, long minFrameNanos) {
+            mWidth = width;
+            mHeight = height;
+            mStallNanos = stallNanos;
+            mMinFrameNanos = minFrameNanos;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        long getArea() {
+            return (long) mWidth * mHeight;
+        }
+
+        @Override
+        public String toString() {
+            return mWidth + "x" + mHeight;
+        }
+    }
+
+    private final List<Option> mOptions;
+    private final Option mLargest;
+
+    /**
+     * @throws IllegalArgumentException if there are no options
+     */
+    public SizeLadder(@NonNull List<Option> options) {
+        if (options.isEmpty()) {
+            throw new IllegalArgumentException("no output sizes");
+        }
+        mOptions = Collections.unmodifiableList(new ArrayList<>(options));
+
+        Option largest = null;
+        for (Option option : mOptions) {
+            if (largest == null || option.getArea() > largest.getArea()
+                    || (option.getArea() == largest.getArea() && isFaster(option, largest))) {
+                largest = option;
+            }
+        }
+        mLargest = largest;
+    }
+
+    @NonNull
+    public Option resolve(@NonNull SizeMode sizeMode) {
+        if (sizeMode == SizeMode.LARGE) {
+            return mLargest;
+        }
+
+        double target = mLargest.getArea() / (double) SMALL_AREA_DIVIDER;
+        Option best = null;
+        Option closest = null;
+        for (Option option : mOptions) {
+            if (option.getArea() >= mLargest.getArea() || !isSameAspectRatio(option, mLargest)) {
+                continue;
+            }
+            double distance = distance(option, target);
+            if (closest == null || distance < distance(closest, target)) {
+                closest = option;
+            }
+            if (distance > Math.log(AREA_BAND)) continue;
+
+            if (best == null || isFaster(option, best)
+                    || (!isFaster(best, option) && distance < distance(best, target))) {
+                best = option;
+            }
+        }
+        if (best != null) return best;
+        // nothing near the target, the closest smaller size still beats an unsupported one
+        return closest != null ? closest : mLargest;
+    }
+
+    private static boolean isFaster(Option a, Option b) {
+        if (a.mStallNanos != b.mStallNanos) return a.mStallNanos < b.mStallNanos;
+        return a.mMinFrameNanos < b.mMinFrameNanos;
+    }
+
+    private static boolean isSameAspectRatio(Option a, Option b) {
+        double ratioA = a.mWidth / (double) a.mHeight;
+        double ratioB = b.mWidth / (double) b.mHeight;
+        return Math.abs(ratioA - ratioB) <= ratioB * ASPECT_TOLERANCE;
+    }
+
+    /**
+     * Distance of the area of {@code option} from {@code target}, in log scale so halving and
+     * doubling are equally far.
+     */
+    private static double distance(Option option, double target) {
+        return Math.abs(Math.log(option.getArea() / target));
+    }
+}
@@ -0,0 +1,319 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.api;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.InputConfiguration;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import timber.log.Timber;
+
+import static android.hardware.camera2.CameraMetadata.CONTROL_AE_STATE_CONVERGED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AE_STATE_LOCKED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_OFF;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_PASSIVE_FOCUSED;
+import static android.hardware.camera2.CameraMetadata.LENS_STATE_STATIONARY;
+
+/**
+ * Zero shutter lag capture through reprocessing.
+ * <p>
+ * The repeating request also targets {@link #getRingSurface()}, so the most recent full
+ * resolution frames are kept in a ring together with their {@link TotalCaptureResult}. At shutter
+ * time the best converged frame is sent back to the camera with a reprocess request and encoded
+ * to JPEG, without waiting for focus or exposure.
+ */
+public class ZeroShutterLagEngine {
+
+    private static final String TAG = "ZeroShutterLagEngine";
+
+    /**
+     * Frames kept in the ring.
+     */
+    private static final int RING_DEPTH = 3;
+    /**
+     * Images the reader can hand out: the ring, one waiting for its result and one in flight to
+     * the {@link ImageWriter}.
+     */
+    private static final int MAX_IMAGES = RING_DEPTH + 2;
+    /**
+     * Unmatched images or results older than this many entries are dropped.
+     */
+    private static final int MAX_UNMATCHED = 2;
+
+    private final Object mLock = new Object();
+    private final ImageReader mRingReader;
+    private final InputConfiguration mInputConfiguration;
+    private final ArrayDeque<Frame> mRing = new ArrayDeque<>();
+    private final Map<Long, Image> mPendingImages = new HashMap<>();
+    private final Map<Long, TotalCaptureResult> mPendingResults = new HashMap<>();
+    private ImageWriter mImageWriter;
+    private boolean mClosed;
+
+    /**
+     * @return an engine for the camera or null if the camera can't reprocess frames to JPEG
+     */
+    @Nullable
+    public static ZeroShutterLagEngine create(@NonNull CameraCapabilities capabilities,
+                                              @NonNull Handler handler) {
+        int format = capabilities.getZeroShutterLagInputFormat();
+        if (format == ImageFormat.UNKNOWN) return null;
+
+        Size size = capabilities.getZeroShutterLagInputSize();
+        if (size == null) return null;
+
+        Timber.tag(TAG).d("zero shutter lag input format: %d size: %s", format, size);
+        return new ZeroShutterLagEngine(size, format, handler);
+    }
+
+    private ZeroShutterLagEngine(Size size, int format, Handler handler) {
+        mInputConfiguration = new InputConfiguration(size.getWidth(), size.getHeight(), format);
+        mRingReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), format,
+                MAX_IMAGES);
+        mRingReader.setOnImageAvailableListener(this::onImageAvailable, handler);
+    }
+
+    public InputConfiguration getInputConfiguration() {
+        return mInputConfiguration;
+    }
+
+    /**
+     * The surface the repeating request fills the ring with.
+     */
+    public Surface getRingSurface() {
+        return mRingReader.getSurface();
+    }
+
+    /**
+     * Must be called with the reprocessable session created with
+     * {@link #getInputConfiguration()}.
+     */
+    public void onSessionConfigured(@NonNull CameraCaptureSession session) {
+        synchronized (mLock) {
+            if (mImageWriter != null) {
+                mImageWriter.close();
+            }
+            mImageWriter = ImageWriter.newInstance(session.getInputSurface(), 1);
+        }
+    }
+
+    /**
+     * Feeds the results of the repeating request.
+     */
+    public void onCaptureCompleted(@NonNull TotalCaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null) return;
+
+        synchronized (mLock) {
+            if (mClosed) return;
+
+            Image image = mPendingImages.remove(timestamp);
+            if (image != null) {
+                push(new Frame(image, result));
+            } else {
+                mPendingResults.put(timestamp, result);
+                trimResults();
+            }
+        }
+    }
+
+    private void onImageAvailable(ImageReader reader) {
+        synchronized (mLock) {
+            Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException ex) {
+                // all images are held, make room for the fresh frame
+                evictOldest();
+                image = reader.acquireNextImage();
+            }
+            if (image == null) return;
+
+            if (mClosed) {
+                image.close();
+                return;
+            }
+
+            TotalCaptureResult result = mPendingResults.remove(image.getTimestamp());
+            if (result != null) {
+                push(new Frame(image, result));
+            } else {
+                mPendingImages.put(image.getTimestamp(), image);
+                trimImages(MAX_UNMATCHED);
+            }
+        }
+    }
+
+    private void push(Frame frame) {
+        mRing.addLast(frame);
+        while (mRing.size() > RING_DEPTH) {
+            mRing.removeFirst().mImage.close();
+        }
+    }
+
+    private void evictOldest() {
+        Frame oldest = mRing.pollFirst();
+        if (oldest != null) {
+            oldest.mImage.close();
+        } else if (!mPendingImages.isEmpty()) {
+            trimImages(0);
+        }
+    }
+
+    private void trimImages(int maxSize) {
+        while (mPendingImages.size() > maxSize) {
+            long oldest = Long.MAX_VALUE;
+            for (long timestamp : mPendingImages.keySet()) {
+                oldest = Math.min(oldest, timestamp);
+            }
+            mPendingImages.remove(oldest).close();
+        }
+    }
+
+    private void trimResults() {
+        while (mPendingResults.size() > MAX_UNMATCHED) {
+            long oldest = Long.MAX_VALUE;
+            for (long timestamp : mPendingResults.keySet()) {
+                oldest = Math.min(oldest, timestamp);
+            }
+            mPendingResults.remove(oldest);
+        }
+    }
+
+    /**
+     * Picks the best frame of the ring, queues it as reprocessing input and returns the request
+     * that encodes it. The caller adds the JPEG target and submits the request.
+     *
+     * @return null if the ring holds no converged frame, the regular capture sequence should be
+     * used then
+     */
+    @Nullable
+    public CaptureRequest.Builder prepareReprocess(@NonNull CameraDevice device)
+            throws CameraAccessException {
+        synchronized (mLock) {
+            if (mClosed || mImageWriter == null) return null;
+
+            Frame best = null;
+            int bestScore = -1;
+            // newest first, so ties are resolved in favor of the most recent frame
+            Iterator<Frame> it = mRing.descendingIterator();
+            while (it.hasNext()) {
+                Frame frame = it.next();
+                int score = score(frame.mResult);
+                if (score > bestScore) {
+                    best = frame;
+                    bestScore = score;
+                }
+            }
+
+            if (best == null) {
+                Timber.tag(TAG).d("No converged frame in ring of %d", mRing.size());
+                return null;
+            }
+
+            mRing.remove(best);
+            CaptureRequest.Builder builder = device.createReprocessCaptureRequest(best.mResult);
+            // the writer takes over the image and closes it
+            mImageWriter.queueInputImage(best.mImage);
+            return builder;
+        }
+    }
+
+    /**
+     * Rates how suitable a frame is for a still picture judging from its metadata, since private
+     * frames can't be inspected. Frames with focus or exposure still converging are not usable
+     * and neither are frames that need flash. A lens that was not moving is preferred.
+     *
+     * @return -1 if the frame can't be used
+     */
+    private static int score(TotalCaptureResult result) {
+        Integer afMode = result.get(CaptureResult.CONTROL_AF_MODE);
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        Integer lensState = result.get(CaptureResult.LENS_STATE);
+
+        boolean focused = afState == null
+                || (afMode != null && afMode == CONTROL_AF_MODE_OFF)
+                || afState == CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || afState == CONTROL_AF_STATE_FOCUSED_LOCKED;
+        boolean exposed = aeState == null
+                || aeState == CONTROL_AE_STATE_CONVERGED
+                || aeState == CONTROL_AE_STATE_LOCKED;
+        if (!focused || !exposed) {
+            return -1;
+        }
+
+        int score = 0;
+        if (lensState == null || lensState == LENS_STATE_STATIONARY) {
+            score += 2;
+        }
+        if (afState != null && afState == CONTROL_AF_STATE_FOCUSED_LOCKED) {
+            score += 1;
+        }
+        return score;
+    }
+
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            for (Frame frame : mRing) {
+                frame.mImage.close();
+            }
+            mRing.clear();
+            for (Image image : mPendingImages.values()) {
+                image.close();
+            }
+            mPendingImages.clear();
+            mPendingResults.clear();
+            if (mImageWriter != null) {
+                mImageWriter.close();
+                mImageWriter = null;
+            }
+            mRingReader.close();
+        }
+    }
+
+    private static class Frame {
+        final Image mImage;
+        final TotalCaptureResult mResult;
+
+        Frame(Image image, TotalCaptureResult result) {
+            mImage = image;
+            mResult = result;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.data;
+
+/**
+ * Quality tier of the recorded video, as a fraction of the bitrate the device itself uses for
+ * the resolution.
+ */
+public enum VideoQuality {
+    LOW(0.45f), STANDARD(0.7f), HIGH(1f);
+
+    private final float mBitRateFactor;
+
+    VideoQuality(float bitRateFactor) {
+        mBitRateFactor = bitRateFactor;
+    }
+
+    public float getBitRateFactor() {
+        return mBitRateFactor;
+    }
+
+    public static VideoQuality toEnum(String videoQualityStr) {
+        try {
+            return valueOf(videoQualityStr);
+        } catch (Exception ex) {
+            // For error cases
+            return defaultMode();
+        }
+    }
+
+    public static VideoQuality defaultMode() {
+        return STANDARD;
+    }
+}
@@ -23,6 +23,7 @@ import android.support.annotation.NonNull;
 import com.katsuna.camera.data.BlackAndWhiteMode;
 import com.katsuna.camera.data.FlashMode;
 import com.katsuna.camera.data.SizeMode;
+import com.katsuna.camera.data.VideoQuality;
 
 public interface SettingsDataSource {
 
@@ -41,4 +42,9 @@ public interface SettingsDataSource {
 
     void setBlackAndWhiteMode(@NonNull BlackAndWhiteMode blackAndWhiteMode);
 
+    @NonNull
+    VideoQuality getVideoQuality();
+
+    void setVideoQuality(@NonNull VideoQuality videoQuality);
+
 }
@@ -26,12 +26,14 @@ import android.support.annotation.NonNull;
 import com.katsuna.camera.data.BlackAndWhiteMode;
 import com.katsuna.camera.data.FlashMode;
 import com.katsuna.camera.data.SizeMode;
+import com.katsuna.camera.data.VideoQuality;
 
 public class SettingsPreferenceDataSource implements SettingsDataSource {
 
     private static final String FLASH_MODE = "FLASH_MODE";
     private static final String SIZE_MODE = "SIZE_MODE";
     private static final String BW_MODE = "BW_MODE";
+    private static final String VIDEO_QUALITY = "VIDEO_QUALITY";
 
     private final SharedPreferences mSharedPrefs;
     private final Context mContext;
@@ -88,4 +90,19 @@ public class SettingsPreferenceDataSource implements SettingsDataSource {
         editor.putString(BW_MODE, blackAndWhiteMode.toString());
         editor.apply();
     }
+
+    @NonNull
+    @Override
+    public VideoQuality getVideoQuality() {
+        String modeStr = mSharedPrefs.getString(VIDEO_QUALITY,
+                VideoQuality.defaultMode().toString());
+        return VideoQuality.toEnum(modeStr);
+    }
+
+    @Override
+    public void setVideoQuality(@NonNull VideoQuality videoQuality) {
+        SharedPreferences.Editor editor = mSharedPrefs.edit();
+        editor.putString(VIDEO_QUALITY, videoQuality.toString());
+        editor.apply();
+    }
 }
@@ -0,0 +1,438 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.storage;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+
+import com.katsuna.camera.utils.AndroidContext;
+import com.katsuna.camera.utils.ApiHelper;
+import com.katsuna.camera.utils.MediaIndexer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Append-only journal of the photos being saved, so that a save cut short by the process dying
+ * doesn't leave a truncated JPEG behind.
+ * <p>
+ * A capture is recorded with {@link #begin} before any byte of it is written and with
+ * {@link #commit} or {@link #abort} once it is done. File outputs are written to a temp file that
+ * is renamed to the target when complete. Media store outputs are journaled before their row is
+ * inserted. On the next start {@link #recover()} finishes the captures whose output is
+ * complete, deletes the partial ones and compacts the journal.
+ * <p>
+ * Each record is appended with a single write, which survives the process dying. The fsyncs
+ * that protect against power loss are batched, so they don't slow down bursts.
+ * <p>
+ * An id holds the generation of the run in its upper half and a sequence in its lower half. The
+ * generation is a persisted counter, so the captures of earlier runs are told apart from the
+ * current ones whatever the clock does.
+ */
+public class CaptureJournal {
+
+    private static final String TAG = "CaptureJournal";
+    private static final String FILE_NAME = "capture.journal";
+    private static final String PREFERENCES = "capture_journal";
+    private static final String KEY_GENERATION = "generation";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char BEGIN = 'B';
+    private static final char COMMIT = 'C';
+    private static final char ABORT = 'A';
+    private static final String SEPARATOR = "\t";
+    /**
+     * MediaStore.MediaColumns.IS_PENDING, added in Q.
+     */
+    private static final String IS_PENDING = "is_pending";
+    /**
+     * MediaStore.PARAM_INCLUDE_PENDING, added in Q.
+     */
+    private static final String INCLUDE_PENDING = "includePending";
+
+    /**
+     * Records appended before the journal is synced.
+     */
+    private static final int SYNC_BATCH = 16;
+    private static final long SYNC_DELAY_MILLIS = 1000;
+
+    public enum Kind {
+        /**
+         * The target is a file written through its temp file.
+         */
+        FILE,
+        /**
+         * The target is a media store row, see {@link #getMediaStoreTarget}.
+         */
+        MEDIA_STORE
+    }
+
+    private static class Singleton {
+        private static final CaptureJournal INSTANCE =
+                new CaptureJournal(AndroidContext.instance().get());
+    }
+
+    public static CaptureJournal instance() {
+        return Singleton.INSTANCE;
+    }
+
+    private final File mFile;
+    private final ContentResolver mResolver;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, TAG));
+    /**
+     * Ids of this run have it in their upper half, the journal may hold earlier ones.
+     */
+    private final int mGeneration;
+    private final AtomicLong mNextId;
+    private final Object mLock = new Object();
+
+    // accessed with mLock held
+    private FileOutputStream mStream;
+    private int mUnsynced;
+    private boolean mSyncScheduled;
+
+    private CaptureJournal(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mResolver = context.getContentResolver();
+
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        mGeneration = preferences.getInt(KEY_GENERATION, 0) + 1;
+        // committed before any id is handed out, a reused generation would hide the last run
+        if (!preferences.edit().putInt(KEY_GENERATION, mGeneration).commit()) {
+            Timber.tag(TAG).w("Couldn't persist journal generation %d", mGeneration);
+        }
+        mNextId = new AtomicLong((long) mGeneration << 32);
+    }
+
+    private static int getGeneration(long id) {
+        return (int) (id >>> 32);
+    }
+
+    /**
+     * The file a target is written to before it is complete, in the same directory so that the
+     * rename is atomic.
+     */
+    public static File getTempFile(@NonNull File target) {
+        return new File(target.getParentFile(), "." + target.getName() + ".tmp");
+    }
+
+    /**
+     * The target of a media store row that may not be inserted yet, found by its display name.
+     */
+    @NonNull
+    public static String getMediaStoreTarget(@NonNull Uri collection, @NonNull String name) {
+        return collection + SEPARATOR + name;
+    }
+
+    /**
+     * Records a capture about to be written.
+     *
+     * @param target        the file or media store uri the capture ends up in
+     * @param expectedBytes size of the complete output
+     * @return the id to commit or abort the capture with
+     */
+    public long begin(@NonNull Kind kind, @NonNull String target, long expectedBytes) {
+        long id = mNextId.incrementAndGet();
+        append(BEGIN + SEPARATOR + id + SEPARATOR + kind + SEPARATOR + expectedBytes + SEPARATOR
+                + target);
+        return id;
+    }
+
+    public void commit(long id) {
+        append(COMMIT + SEPARATOR + id);
+    }
+
+    /**
+     * Records a capture whose partial output has already been removed.
+     */
+    public void abort(long id) {
+        append(ABORT + SEPARATOR + id);
+    }
+
+    private void append(String record) {
+        ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(UTF_8));
+        synchronized (mLock) {
+            try {
+                if (mStream == null) {
+                    mStream = new FileOutputStream(mFile, true);
+                }
+                FileChannel channel = mStream.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException ex) {
+                // the capture itself can still succeed
+                Timber.tag(TAG).e(ex, "Couldn't append to the journal");
+                return;
+            }
+
+            mUnsynced++;
+            if (mUnsynced >= SYNC_BATCH) {
+                mExecutor.execute(this::sync);
+            } else if (!mSyncScheduled) {
+                mSyncScheduled = true;
+                mExecutor.schedule(this::sync, SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void sync() {
+        FileChannel channel;
+        synchronized (mLock) {
+            mSyncScheduled = false;
+            if (mStream == null || mUnsynced == 0) return;
+            mUnsynced = 0;
+            channel = mStream.getChannel();
+        }
+        try {
+            channel.force(false);
+        } catch (IOException ex) {
+            Timber.tag(TAG).e(ex, "Couldn't sync the journal");
+        }
+    }
+
+    /**
+     * Settles the captures of a previous run that were not committed, on the journal thread.
+     * Call it once at start, before any capture.
+     */
+    public void recover() {
+        mExecutor.execute(this::recoverNow);
+    }
+
+    private void recoverNow() {
+        synchronized (mLock) {
+            if (!mFile.exists()) return;
+
+            Map<Long, String[]> open = read();
+            for (Map.Entry<Long, String[]> entry : open.entrySet()) {
+                if (getGeneration(entry.getKey()) == mGeneration) continue;
+
+                String[] begin = entry.getValue();
+                try {
+                    settle(Kind.valueOf(begin[2]), Long.parseLong(begin[3]), begin[4]);
+                } catch (RuntimeException ex) {
+                    Timber.tag(TAG).e(ex, "Couldn't settle capture %d", entry.getKey());
+                }
+            }
+
+            compact(open);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the captures of this run still in progress, so that the
+     * settled ones are not replayed on the next start.
+     */
+    private void compact(Map<Long, String[]> open) {
+        closeStream();
+        File compacted = new File(mFile.getPath() + ".tmp");
+        boolean empty = true;
+        try (FileOutputStream stream = new FileOutputStream(compacted)) {
+            FileChannel channel = stream.getChannel();
+            for (Map.Entry<Long, String[]> entry : open.entrySet()) {
+                if (getGeneration(entry.getKey()) != mGeneration) continue;
+                empty = false;
+                ByteBuffer buffer = ByteBuffer.wrap(
+                        (join(entry.getValue()) + "\n").getBytes(UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            Timber.tag(TAG).e(ex, "Couldn't compact the journal");
+            compacted.delete();
+            return;
+        }
+
+        boolean replaced;
+        if (empty) {
+            // nothing left, start over with an empty journal
+            compacted.delete();
+            replaced = mFile.delete();
+        } else {
+            replaced = compacted.renameTo(mFile);
+        }
+        if (!replaced) {
+            Timber.tag(TAG).w("Couldn't replace the journal");
+        }
+    }
+
+    private void closeStream() {
+        if (mStream == null) return;
+        try {
+            mStream.close();
+        } catch (IOException ex) {
+            Timber.tag(TAG).e(ex, "Couldn't close the journal");
+        }
+        mStream = null;
+        mUnsynced = 0;
+    }
+
+    private static String join(String[] fields) {
+        StringBuilder builder = new StringBuilder();
+        for (String field : fields) {
+            if (builder.length() > 0) builder.append(SEPARATOR);
+            builder.append(field);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the begin records without a matching commit or abort, by id
+     */
+    private Map<Long, String[]> read() {
+        Map<Long, String[]> open = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mFile), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, 5);
+                try {
+                    long id = Long.parseLong(fields[1]);
+                    if (fields[0].charAt(0) == BEGIN && fields.length == 5) {
+                        open.put(id, fields);
+                    } else {
+                        open.remove(id);
+                    }
+                } catch (RuntimeException ex) {
+                    // a record torn by power loss, only the last one can be
+                    Timber.tag(TAG).w("Skipping journal record: %s", line);
+                }
+            }
+        } catch (IOException ex) {
+            Timber.tag(TAG).e(ex, "Couldn't read the journal");
+        }
+        return open;
+    }
+
+    private void settle(Kind kind, long expectedBytes, String target) {
+        switch (kind) {
+            case FILE:
+                settleFile(new File(target), expectedBytes);
+                break;
+            case MEDIA_STORE:
+                String[] parts = target.split(SEPARATOR, 2);
+                if (parts.length == 2) {
+                    settleMediaStore(Uri.parse(parts[0]), parts[1], expectedBytes);
+                }
+                break;
+        }
+    }
+
+    private void settleMediaStore(Uri collection, String name, long expectedBytes) {
+        Uri query = collection;
+        if (ApiHelper.isQOrHigher()) {
+            query = collection.buildUpon().appendQueryParameter(INCLUDE_PENDING, "1").build();
+        }
+        try (Cursor cursor = mResolver.query(query, new String[]{BaseColumns._ID},
+                MediaStore.MediaColumns.DISPLAY_NAME + "=?", new String[]{name}, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                settleRow(ContentUris.withAppendedId(collection, cursor.getLong(0)),
+                        expectedBytes);
+            }
+        }
+    }
+
+    /**
+     * Publishes a row whose file was written in full and deletes it otherwise. Before Q deleting
+     * the row also deletes its file, so a complete one must not be deleted.
+     */
+    private void settleRow(Uri uri, long expectedBytes) {
+        long size = -1;
+        try (ParcelFileDescriptor descriptor = mResolver.openFileDescriptor(uri, "r")) {
+            if (descriptor != null) {
+                size = descriptor.getStatSize();
+            }
+        } catch (IOException | RuntimeException ex) {
+            Timber.tag(TAG).w(ex, "Couldn't open %s", uri);
+        }
+
+        if (size == expectedBytes) {
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.MediaColumns.SIZE, size);
+            if (ApiHelper.isQOrHigher()) {
+                values.put(IS_PENDING, 0);
+            }
+            mResolver.update(uri, values, null, null);
+            Timber.tag(TAG).i("Recovered %s", uri);
+        } else {
+            int deleted = mResolver.delete(uri, null, null);
+            Timber.tag(TAG).i("Deleted %d partial media store rows for %s", deleted, uri);
+        }
+    }
+
+    private void settleFile(File target, long expectedBytes) {
+        File temp = getTempFile(target);
+        if (temp.exists()) {
+            if (temp.length() == expectedBytes && temp.renameTo(target)) {
+                Timber.tag(TAG).i("Recovered %s", target);
+                index(target);
+            } else {
+                Timber.tag(TAG).i("Deleting partial %s", temp);
+                if (!temp.delete()) {
+                    Timber.tag(TAG).w("Couldn't delete %s", temp);
+                }
+            }
+        } else if (target.exists() && !isIndexed(target)) {
+            // renamed but not committed before it was indexed
+            index(target);
+        }
+    }
+
+    private boolean isIndexed(File file) {
+        Uri collection = MediaStore.Images.Media.getContentUri(
+                StorageTargets.instance().getMediaStoreVolume(file));
+        try (Cursor cursor = mResolver.query(collection, new String[]{BaseColumns._ID},
+                MediaStore.MediaColumns.DATA + "=?", new String[]{file.getAbsolutePath()},
+                null)) {
+            return cursor != null && cursor.moveToFirst();
+        }
+    }
+
+    private static void index(File file) {
+        MediaIndexer.instance().index(MediaIndexer.Entry.image(file, 0, 0, file.lastModified()));
+    }
+}
@@ -0,0 +1,205 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+import com.katsuna.camera.data.BlackAndWhiteMode;
+import com.katsuna.camera.data.SizeMode;
+import com.katsuna.camera.utils.AndroidContext;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Learns how much storage captures really take: the JPEG size per camera, {@link SizeMode} and
+ * {@link BlackAndWhiteMode} from completed saves and the bytes per second per camera from
+ * finished recordings. The averages survive restarts.
+ * <p>
+ * The estimates turn the free space into remaining shots and minutes and set the
+ * {@link StorageMonitor} thresholds, so a capture is refused only when it really won't fit.
+ */
+public class CaptureSizeEstimator {
+
+    private static final String TAG = "CaptureSizeEstimator";
+    private static final String PREFERENCES = "capture_size_estimates";
+
+    /**
+     * Kept free for the system and the media store on top of the thresholds.
+     */
+    private static final long RESERVE_BYTES = 10 * StorageMonitor.MB;
+    /**
+     * Photos that must still fit when the shutter is pressed: the one being taken plus the ones
+     * that may be waiting to be saved.
+     */
+    private static final int PHOTO_MARGIN = 5;
+    /**
+     * Recording time kept in hand, so that a recording stopped at the threshold can still be
+     * finalized.
+     */
+    private static final long VIDEO_MARGIN_SECONDS = 10;
+    /**
+     * Samples averaged before older ones start to fade.
+     */
+    private static final int MAX_SAMPLES = 20;
+    /**
+     * Recordings shorter than this are not representative of the bitrate.
+     */
+    private static final long MIN_RECORDING_MILLIS = 3000;
+
+    /**
+     * Initial guess of the JPEG size in bytes per pixel.
+     */
+    private static final double COLOR_BYTES_PER_PIXEL = 0.35;
+    private static final double MONO_BYTES_PER_PIXEL = 0.2;
+
+    private static class Singleton {
+        private static final CaptureSizeEstimator INSTANCE =
+                new CaptureSizeEstimator(AndroidContext.instance().get());
+    }
+
+    public static CaptureSizeEstimator instance() {
+        return Singleton.INSTANCE;
+    }
+
+    private final SharedPreferences mPreferences;
+    private final ConcurrentHashMap<String, Average> mAverages = new ConcurrentHashMap<>();
+
+    private CaptureSizeEstimator(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    public static String photoKey(@NonNull String cameraId, @NonNull SizeMode sizeMode,
+                                  @NonNull BlackAndWhiteMode bwMode) {
+        return "photo_" + cameraId + "_" + sizeMode + "_" + bwMode;
+    }
+
+    private static String videoKey(@NonNull String cameraId, int bitRate) {
+        return "video_" + cameraId + "_" + bitRate;
+    }
+
+    /**
+     * @param pixels resolution of the photo, used until a photo of the key has been saved
+     * @return the expected size of the next photo in bytes
+     */
+    public long getPhotoBytes(@NonNull String key, long pixels, @NonNull BlackAndWhiteMode bwMode) {
+        long guess = (long) (pixels * (bwMode == BlackAndWhiteMode.ENABLED
+                ? MONO_BYTES_PER_PIXEL : COLOR_BYTES_PER_PIXEL));
+        return getAverage(key).get(guess);
+    }
+
+    public void onPhotoSaved(@NonNull String key, long bytes) {
+        if (bytes <= 0) return;
+        getAverage(key).add(bytes);
+    }
+
+    /**
+     * @param bitRate the configured bitrate, used until a recording of the camera at this bitrate
+     *                has finished
+     */
+    public long getVideoBytesPerSecond(@NonNull String cameraId, int bitRate) {
+        return getAverage(videoKey(cameraId, bitRate)).get(bitRate / 8);
+    }
+
+    public void onVideoRecorded(@NonNull String cameraId, int bitRate, long bytes,
+                                long durationMillis) {
+        if (bytes <= 0 || durationMillis < MIN_RECORDING_MILLIS) return;
+        getAverage(videoKey(cameraId, bitRate)).add(bytes * 1000 / durationMillis);
+    }
+
+    /**
+     * Sets the {@link StorageMonitor.Threshold#PICTURE} threshold for photos of this size.
+     */
+    public static void applyPhotoThreshold(long photoBytes) {
+        StorageMonitor.instance().setThresholdBytes(StorageMonitor.Threshold.PICTURE,
+                RESERVE_BYTES + PHOTO_MARGIN * photoBytes);
+    }
+
+    /**
+     * Sets the {@link StorageMonitor.Threshold#VIDEO} threshold for this bitrate.
+     */
+    public static void applyVideoThreshold(long bytesPerSecond) {
+        StorageMonitor.instance().setThresholdBytes(StorageMonitor.Threshold.VIDEO,
+                RESERVE_BYTES + VIDEO_MARGIN_SECONDS * bytesPerSecond);
+    }
+
+    /**
+     * Photos that still fit before the threshold is reached.
+     */
+    public static long getRemainingShots(@NonNull StorageSnapshot snapshot, long photoBytes) {
+        if (photoBytes <= 0) return 0;
+        return snapshot.getHeadroomBytes(StorageMonitor.Threshold.PICTURE) / photoBytes;
+    }
+
+    /**
+     * Recording minutes left before the threshold is reached.
+     */
+    public static long getRemainingMinutes(@NonNull StorageSnapshot snapshot,
+                                           long bytesPerSecond) {
+        if (bytesPerSecond <= 0) return 0;
+        return TimeUnit.SECONDS.toMinutes(
+                snapshot.getHeadroomBytes(StorageMonitor.Threshold.VIDEO) / bytesPerSecond);
+    }
+
+    private Average getAverage(String key) {
+        Average average = mAverages.get(key);
+        if (average == null) {
+            average = new Average(key, mPreferences.getLong(key, 0),
+                    mPreferences.getInt(key + "_count", 0));
+            Average existing = mAverages.putIfAbsent(key, average);
+            if (existing != null) {
+                average = existing;
+            }
+        }
+        return average;
+    }
+
+    /**
+     * Running mean that weighs the last {@link #MAX_SAMPLES} samples.
+     */
+    private class Average {
+        private final String mKey;
+        private long mValue;
+        private int mCount;
+
+        Average(String key, long value, int count) {
+            mKey = key;
+            mValue = value;
+            mCount = count;
+        }
+
+        synchronized long get(long guess) {
+            return mCount == 0 ? guess : mValue;
+        }
+
+        synchronized void add(long sample) {
+            mCount = Math.min(mCount + 1, MAX_SAMPLES);
+            mValue += (sample - mValue) / mCount;
+            mPreferences.edit()
+                    .putLong(mKey, mValue)
+                    .putInt(mKey + "_count", mCount)
+                    .apply();
+            Timber.tag(TAG).d("%s: %d bytes after %d samples", mKey, mValue, mCount);
+        }
+    }
+}
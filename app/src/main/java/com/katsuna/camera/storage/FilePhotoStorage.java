@@ -0,0 +1,80 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.storage;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.katsuna.camera.utils.ImageSaver;
+import com.katsuna.camera.utils.MediaIndexer;
+import com.katsuna.camera.utils.PipelineTrace;
+import com.katsuna.camera.utils.StorageUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Writes every photo to a file in the media directory and hands it to the {@link MediaIndexer}
+ * once complete.
+ */
+public class FilePhotoStorage implements PhotoStorage {
+
+    @NonNull
+    @Override
+    public Uri save(@NonNull ImageSaver.JpegSource source, int width, int height)
+            throws IOException {
+        long start = PipelineTrace.now();
+        File file;
+        try {
+            file = StorageUtil.getPhotoFilePath();
+        } catch (IOException ex) {
+            source.close();
+            throw ex;
+        }
+
+        // written under a temp name, the journal lets a restart finish or remove it
+        File temp = CaptureJournal.getTempFile(file);
+        CaptureJournal journal = CaptureJournal.instance();
+        long id = journal.begin(CaptureJournal.Kind.FILE, file.getPath(),
+                source.getBuffer().remaining());
+        long size;
+        try {
+            size = ImageSaver.write(source, temp);
+            if (!temp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + temp + " to " + file);
+            }
+        } catch (IOException ex) {
+            if (temp.exists() && !temp.delete()) {
+                Timber.w("Couldn't delete %s", temp);
+            }
+            journal.abort(id);
+            throw ex;
+        }
+        journal.commit(id);
+        StorageMonitor.instance().onBytesWritten(size);
+        MediaIndexer.instance().index(MediaIndexer.Entry.image(file, width, height,
+                System.currentTimeMillis())
+                .setCallback((indexed, uri) ->
+                        LastCaptures.instance().onIndexed(Uri.fromFile(indexed), uri)));
+        PipelineTrace.instance().record(PipelineTrace.Stage.SAVE_FILE_BACKEND, start);
+        return Uri.fromFile(file);
+    }
+}
@@ -0,0 +1,172 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.storage;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.katsuna.camera.CameraMode;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Remembers the last photo and video taken and keeps their thumbnails in a small in memory LRU
+ * cache, so the gallery button can show and open them without touching the storage.
+ */
+public class LastCaptures {
+
+    /**
+     * Bytes of thumbnails kept in memory.
+     */
+    private static final int CACHE_BYTES = 2 * 1024 * 1024;
+
+    public interface Listener {
+        /**
+         * Called on the main thread.
+         */
+        void onLastCaptureChanged(@NonNull CameraMode mode);
+    }
+
+    public static class Capture {
+        private final Uri mUri;
+        private final String mMimeType;
+
+        Capture(Uri uri, String mimeType) {
+            mUri = uri;
+            mMimeType = mimeType;
+        }
+
+        public Uri getUri() {
+            return mUri;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+    }
+
+    private static class Singleton {
+        private static final LastCaptures INSTANCE = new LastCaptures();
+    }
+
+    public static LastCaptures instance() {
+        return Singleton.INSTANCE;
+    }
+
+    private final LruCache<Uri, Bitmap> mThumbnails = new LruCache<Uri, Bitmap>(CACHE_BYTES) {
+        @Override
+        protected int sizeOf(Uri key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+    private final Map<CameraMode, Capture> mLast = new EnumMap<>(CameraMode.class);
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private LastCaptures() {
+    }
+
+    /**
+     * Records a capture that has just been stored.
+     *
+     * @param thumbnail null if none could be made
+     */
+    public void put(@NonNull CameraMode mode, @NonNull Uri uri, @NonNull String mimeType,
+                    @Nullable Bitmap thumbnail) {
+        if (thumbnail != null) {
+            mThumbnails.put(uri, thumbnail);
+        }
+        synchronized (mLast) {
+            mLast.put(mode, new Capture(uri, mimeType));
+        }
+        notifyChanged(mode);
+    }
+
+    /**
+     * Swaps the file uri of a capture for its content uri once it has been indexed, so other
+     * apps can open it.
+     */
+    public void onIndexed(@NonNull Uri fileUri, @Nullable Uri contentUri) {
+        if (contentUri == null) return;
+
+        Bitmap thumbnail = mThumbnails.remove(fileUri);
+        if (thumbnail != null) {
+            mThumbnails.put(contentUri, thumbnail);
+        }
+        synchronized (mLast) {
+            for (Map.Entry<CameraMode, Capture> entry : mLast.entrySet()) {
+                Capture capture = entry.getValue();
+                if (capture.mUri.equals(fileUri)) {
+                    entry.setValue(new Capture(contentUri, capture.mMimeType));
+                }
+            }
+        }
+    }
+
+    @Nullable
+    public Capture getLast(@NonNull CameraMode mode) {
+        synchronized (mLast) {
+            return mLast.get(mode);
+        }
+    }
+
+    /**
+     * @return the thumbnail of the last capture, null if there is none in memory
+     */
+    @Nullable
+    public Bitmap getLastThumbnail(@NonNull CameraMode mode) {
+        Capture capture = getLast(mode);
+        return capture == null ? null : mThumbnails.get(capture.mUri);
+    }
+
+    @MainThread
+    public void addListener(@NonNull Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    @MainThread
+    public void removeListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyChanged(CameraMode mode) {
+        mMainHandler.post(() -> {
+            for (Listener listener : mListeners) {
+                listener.onLastCaptureChanged(mode);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        int hits = mThumbnails.hitCount();
+        int lookups = hits + mThumbnails.missCount();
+        return String.format(Locale.US, "thumbnails: %d KB hits: %d/%d (%d%%)",
+                mThumbnails.size() / 1024, hits, lookups, lookups == 0 ? 0 : hits * 100 / lookups);
+    }
+}
@@ -0,0 +1,156 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.storage;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+
+import com.katsuna.camera.utils.ApiHelper;
+import com.katsuna.camera.utils.ImageSaver;
+import com.katsuna.camera.utils.MediaIndexer;
+import com.katsuna.camera.utils.PipelineTrace;
+import com.katsuna.camera.utils.StorageUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Inserts a media store row for every photo and streams the JPEG into the output descriptor of
+ * the row in one pass, so there is no separate file creation and no scan afterwards.
+ * <p>
+ * From Android Q the row is inserted as pending and only published once the write completes.
+ * Older releases have no pending rows, the row points to its file under DCIM.
+ */
+public class MediaStorePhotoStorage implements PhotoStorage {
+
+    /**
+     * MediaStore.MediaColumns.RELATIVE_PATH, added in Q.
+     */
+    private static final String RELATIVE_PATH = "relative_path";
+    /**
+     * MediaStore.MediaColumns.IS_PENDING, added in Q.
+     */
+    private static final String IS_PENDING = "is_pending";
+
+    private final ContentResolver mResolver;
+
+    public MediaStorePhotoStorage(@NonNull Context context) {
+        mResolver = context.getApplicationContext().getContentResolver();
+    }
+
+    @NonNull
+    @Override
+    public Uri save(@NonNull ImageSaver.JpegSource source, int width, int height)
+            throws IOException {
+        long start = PipelineTrace.now();
+        String name = StorageUtil.getPhotoFileName();
+        Uri collection;
+        try {
+            // same volume as the videos, chosen by StorageTargets
+            collection = MediaStore.Images.Media.getContentUri(StorageTargets.instance()
+                    .getMediaStoreVolume(StorageUtil.getMediaDirectory()));
+        } catch (IOException ex) {
+            source.close();
+            throw ex;
+        }
+
+        // journaled before the insert, a row left by a crash right after it is found by name
+        CaptureJournal journal = CaptureJournal.instance();
+        long id = journal.begin(CaptureJournal.Kind.MEDIA_STORE,
+                CaptureJournal.getMediaStoreTarget(collection, name),
+                source.getBuffer().remaining());
+        Uri uri;
+        try {
+            uri = insertPendingRow(collection, name, width, height);
+        } catch (IOException | RuntimeException ex) {
+            source.close();
+            journal.abort(id);
+            throw ex;
+        }
+
+        try {
+            ParcelFileDescriptor descriptor = mResolver.openFileDescriptor(uri, "w");
+            if (descriptor == null) {
+                source.close();
+                throw new IOException("Couldn't open " + uri);
+            }
+            long size = ImageSaver.write(source,
+                    new ParcelFileDescriptor.AutoCloseOutputStream(descriptor));
+            StorageMonitor.instance().onBytesWritten(size);
+
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.MediaColumns.SIZE, size);
+            if (ApiHelper.isQOrHigher()) {
+                values.put(IS_PENDING, 0);
+            }
+            mResolver.update(uri, values, null, null);
+        } catch (IOException | RuntimeException ex) {
+            source.close();
+            Timber.e(ex, "Couldn't write %s", uri);
+            mResolver.delete(uri, null, null);
+            journal.abort(id);
+            throw ex;
+        }
+        journal.commit(id);
+
+        PipelineTrace.instance().record(PipelineTrace.Stage.SAVE_MEDIA_STORE_BACKEND, start);
+        return uri;
+    }
+
+    private Uri insertPendingRow(Uri collection, String name, int width, int height)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(now);
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, name);
+        values.put(MediaStore.MediaColumns.MIME_TYPE, MediaIndexer.MIME_TYPE_JPEG);
+        values.put(MediaStore.MediaColumns.DATE_ADDED, seconds);
+        values.put(MediaStore.MediaColumns.DATE_MODIFIED, seconds);
+        values.put(MediaStore.Images.ImageColumns.DATE_TAKEN, now);
+        if (width > 0 && height > 0) {
+            values.put(MediaStore.MediaColumns.WIDTH, width);
+            values.put(MediaStore.MediaColumns.HEIGHT, height);
+        }
+
+        if (ApiHelper.isQOrHigher()) {
+            values.put(RELATIVE_PATH, Environment.DIRECTORY_DCIM + File.separator
+                    + StorageUtil.KATSUNA_CAMERA);
+            values.put(IS_PENDING, 1);
+        } else {
+            File file = new File(StorageUtil.getMediaDirectory(), name);
+            values.put(MediaStore.MediaColumns.DATA, file.getAbsolutePath());
+        }
+
+        Uri uri = mResolver.insert(collection, values);
+        if (uri == null) {
+            throw new IOException("Couldn't insert media store row for " + name);
+        }
+        return uri;
+    }
+}
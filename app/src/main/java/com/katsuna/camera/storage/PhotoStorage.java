@@ -0,0 +1,54 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.storage;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.katsuna.camera.utils.ImageSaver;
+
+import java.io.IOException;
+
+/**
+ * Where captured photos are written to.
+ */
+public interface PhotoStorage {
+
+    enum Backend {
+        /**
+         * Plain files under DCIM, indexed once written.
+         */
+        FILE,
+        /**
+         * Streams written straight into media store rows.
+         */
+        MEDIA_STORE
+    }
+
+    /**
+     * Writes a photo and makes it visible to other apps. Called on the persistence thread. The
+     * source is always released.
+     *
+     * @param width  width of the photo, 0 if unknown
+     * @param height height of the photo, 0 if unknown
+     * @return the uri of the stored photo
+     */
+    @NonNull
+    Uri save(@NonNull ImageSaver.JpegSource source, int width, int height) throws IOException;
+}
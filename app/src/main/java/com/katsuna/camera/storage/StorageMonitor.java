@@ -0,0 +1,355 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.storage;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+
+import com.katsuna.camera.utils.AndroidContext;
+import com.katsuna.camera.utils.StorageUtil;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Watches the media storage on a background thread and publishes a {@link StorageSnapshot} that
+ * can be read from any thread without blocking.
+ * <p>
+ * The filesystem is sampled on mount events and then again at an interval that shrinks as the
+ * free space approaches a {@link Threshold}. Between samples the free space is estimated from
+ * the writes reported with {@link #onBytesWritten(long)} and the fill rate learnt from previous
+ * samples, so listeners hear about a threshold before it is crossed.
+ */
+public class StorageMonitor {
+
+    private static final String TAG = "StorageMonitor";
+
+    static final long MB = 1024 * 1024;
+
+    /**
+     * Free space needed to capture. The defaults apply until {@link #setThresholdBytes} adjusts
+     * them to the media actually being written.
+     */
+    public enum Threshold {
+        PICTURE(20 * MB),
+        VIDEO(200 * MB);
+
+        private final long mDefaultBytes;
+
+        Threshold(long defaultBytes) {
+            mDefaultBytes = defaultBytes;
+        }
+
+        public long getDefaultBytes() {
+            return mDefaultBytes;
+        }
+    }
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * The state of the storage or the space for one of the thresholds changed.
+         */
+        void onStorageChanged(@NonNull StorageSnapshot snapshot);
+
+        /**
+         * At the current fill rate the threshold is crossed before the next sample.
+         */
+        void onThresholdApproaching(@NonNull Threshold threshold, long secondsLeft);
+    }
+
+    private static final long MIN_INTERVAL_MILLIS = 1000;
+    private static final long MAX_INTERVAL_MILLIS = 30000;
+    /**
+     * Weight of the newest measurement in the fill rate average.
+     */
+    private static final double FILL_RATE_WEIGHT = 0.5;
+
+    private static class Singleton {
+        private static final StorageMonitor INSTANCE = new StorageMonitor();
+    }
+
+    public static StorageMonitor instance() {
+        return Singleton.INSTANCE;
+    }
+
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, TAG));
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Object mLock = new Object();
+
+    private volatile StorageSnapshot mSnapshot;
+    /**
+     * Callers of {@link #start()} that haven't called {@link #stop()} yet.
+     */
+    private int mStartCount;
+    private ScheduledFuture<?> mNextSample;
+    private final BroadcastReceiver mMountReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Timber.tag(TAG).d("%s", intent.getAction());
+            requestSample();
+        }
+    };
+
+    // accessed with mLock held
+    private long mLastSampleFreeBytes = -1;
+    private long mLastSampleAt;
+    private long mFillBytesPerSecond;
+    private long mExpectedBytesPerSecond;
+    private final long[] mThresholdBytes = new long[Threshold.values().length];
+
+    private StorageMonitor() {
+        for (Threshold threshold : Threshold.values()) {
+            mThresholdBytes[threshold.ordinal()] = threshold.getDefaultBytes();
+        }
+        mSnapshot = StorageSnapshot.unknown(mThresholdBytes);
+    }
+
+    /**
+     * Takes a sample and starts listening for mount events, for as long as a screen that captures
+     * is visible. Each call must be paired with {@link #stop()}.
+     */
+    @MainThread
+    public void start() {
+        synchronized (mLock) {
+            mStartCount++;
+            if (mStartCount > 1) return;
+        }
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addDataScheme("file");
+        AndroidContext.instance().get().registerReceiver(mMountReceiver, filter);
+
+        requestSample();
+    }
+
+    /**
+     * Stops sampling once every {@link #start()} is matched. The last snapshot stays available.
+     */
+    @MainThread
+    public void stop() {
+        synchronized (mLock) {
+            if (mStartCount == 0) return;
+            mStartCount--;
+            if (mStartCount > 0) return;
+
+            if (mNextSample != null) {
+                mNextSample.cancel(false);
+                mNextSample = null;
+            }
+        }
+        AndroidContext.instance().get().unregisterReceiver(mMountReceiver);
+    }
+
+    /**
+     * The latest snapshot. Never blocks.
+     */
+    @NonNull
+    public StorageSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Samples the filesystem as soon as possible, for example when the storage permission may have
+     * just been granted.
+     */
+    public void requestSample() {
+        schedule(0);
+    }
+
+    @MainThread
+    public void addListener(@NonNull Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    @MainThread
+    public void removeListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Reports a completed write so the estimate follows it before the next sample.
+     */
+    public void onBytesWritten(long bytes) {
+        if (bytes <= 0) return;
+
+        StorageSnapshot previous;
+        StorageSnapshot current;
+        synchronized (mLock) {
+            previous = mSnapshot;
+            current = previous.minus(bytes, getFillRateLocked());
+            mSnapshot = current;
+        }
+        publish(previous, current);
+    }
+
+    /**
+     * Moves a threshold, for example once the size of the next photo is known. The current
+     * snapshot is republished with it right away.
+     */
+    public void setThresholdBytes(@NonNull Threshold threshold, long bytes) {
+        StorageSnapshot previous;
+        StorageSnapshot current;
+        synchronized (mLock) {
+            if (mThresholdBytes[threshold.ordinal()] == bytes) return;
+            mThresholdBytes[threshold.ordinal()] = bytes;
+            previous = mSnapshot;
+            current = previous.withThresholds(mThresholdBytes);
+            mSnapshot = current;
+        }
+        Timber.tag(TAG).d("%s threshold: %d MB", threshold, bytes / MB);
+        publish(previous, current);
+    }
+
+    /**
+     * Tells how fast an ongoing write is expected to fill the storage, for example the bitrate
+     * of a recording, until the samples catch up with it. Pass 0 once it ends.
+     */
+    public void setExpectedFillRate(long bytesPerSecond) {
+        synchronized (mLock) {
+            mExpectedBytesPerSecond = Math.max(0, bytesPerSecond);
+        }
+        requestSample();
+    }
+
+    private void schedule(long delayMillis) {
+        synchronized (mLock) {
+            if (mStartCount == 0) return;
+            if (mNextSample != null) {
+                if (mNextSample.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) return;
+                mNextSample.cancel(false);
+            }
+            mNextSample = mExecutor.schedule(this::sample, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sample() {
+        synchronized (mLock) {
+            mNextSample = null;
+        }
+
+        StorageSnapshot.State state = StorageUtil.getExternalStorageState();
+        boolean directoryReady = false;
+        long freeBytes = 0;
+        if (state != StorageSnapshot.State.NOT_AVAILABLE) {
+            directoryReady = StorageUtil.ensureMediaDirectory();
+            freeBytes = StorageUtil.getFreeBytes();
+        }
+        long now = SystemClock.elapsedRealtime();
+
+        StorageSnapshot previous;
+        StorageSnapshot current;
+        synchronized (mLock) {
+            learnFillRate(freeBytes, now);
+            previous = mSnapshot;
+            current = new StorageSnapshot(state, directoryReady, freeBytes, getFillRateLocked(),
+                    now, mThresholdBytes);
+            mSnapshot = current;
+        }
+        Timber.tag(TAG).d("%s", current);
+
+        long interval = getInterval(current);
+        publish(previous, current);
+        schedule(interval);
+    }
+
+    /**
+     * Averages the drop of free space between samples. Space that was freed resets the rate.
+     */
+    private void learnFillRate(long freeBytes, long now) {
+        if (mLastSampleFreeBytes >= 0 && now > mLastSampleAt) {
+            long consumed = mLastSampleFreeBytes - freeBytes;
+            long rate = consumed > 0 ? consumed * 1000 / (now - mLastSampleAt) : 0;
+            mFillBytesPerSecond = (long) (FILL_RATE_WEIGHT * rate
+                    + (1 - FILL_RATE_WEIGHT) * mFillBytesPerSecond);
+        }
+        mLastSampleFreeBytes = freeBytes;
+        mLastSampleAt = now;
+    }
+
+    private long getFillRateLocked() {
+        return Math.max(mFillBytesPerSecond, mExpectedBytesPerSecond);
+    }
+
+    /**
+     * Samples often enough to catch the nearest threshold at the current fill rate.
+     */
+    private static long getInterval(StorageSnapshot snapshot) {
+        long seconds = Long.MAX_VALUE;
+        for (Threshold threshold : Threshold.values()) {
+            if (snapshot.hasSpaceFor(threshold)) {
+                seconds = Math.min(seconds, snapshot.getSecondsUntil(threshold));
+            }
+        }
+        if (seconds == Long.MAX_VALUE) return MAX_INTERVAL_MILLIS;
+        long millis = TimeUnit.SECONDS.toMillis(seconds) / 2;
+        return Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_INTERVAL_MILLIS, millis));
+    }
+
+    private void publish(StorageSnapshot previous, StorageSnapshot current) {
+        if (mListeners.isEmpty()) return;
+
+        boolean changed = previous.getState() != current.getState()
+                || previous.isReady() != current.isReady();
+        for (Threshold threshold : Threshold.values()) {
+            changed |= previous.hasSpaceFor(threshold) != current.hasSpaceFor(threshold);
+        }
+        if (changed) {
+            mMainHandler.post(() -> {
+                for (Listener listener : mListeners) {
+                    listener.onStorageChanged(current);
+                }
+            });
+        }
+
+        long horizon = TimeUnit.MILLISECONDS.toSeconds(getInterval(current));
+        for (Threshold threshold : Threshold.values()) {
+            if (!current.hasSpaceFor(threshold)) continue;
+            long secondsLeft = current.getSecondsUntil(threshold);
+            if (secondsLeft <= horizon) {
+                mMainHandler.post(() -> {
+                    for (Listener listener : mListeners) {
+                        listener.onThresholdApproaching(threshold, secondsLeft);
+                    }
+                });
+            }
+        }
+    }
+}
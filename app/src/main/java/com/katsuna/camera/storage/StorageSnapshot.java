@@ -0,0 +1,148 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.storage;
+
+import java.util.Locale;
+
+/**
+ * Immutable view of the media storage published by the {@link StorageMonitor}. Reading it never
+ * touches the filesystem.
+ */
+public final class StorageSnapshot {
+
+    public enum State {
+        /**
+         * Not sampled yet.
+         */
+        UNKNOWN,
+        NOT_AVAILABLE,
+        READ_ONLY,
+        WRITEABLE
+    }
+
+    /**
+     * Published until the first sample completes. Captures are allowed, a failing write is
+     * reported by the save path anyway.
+     */
+    static StorageSnapshot unknown(long[] thresholdBytes) {
+        return new StorageSnapshot(State.UNKNOWN, true, Long.MAX_VALUE, 0, 0, thresholdBytes);
+    }
+
+    private final State mState;
+    private final boolean mDirectoryReady;
+    private final long mFreeBytes;
+    private final long mFillBytesPerSecond;
+    private final long mSampledAt;
+    private final long[] mThresholdBytes;
+
+    StorageSnapshot(State state, boolean directoryReady, long freeBytes, long fillBytesPerSecond,
+                    long sampledAt, long[] thresholdBytes) {
+        mState = state;
+        mDirectoryReady = directoryReady;
+        mFreeBytes = freeBytes;
+        mFillBytesPerSecond = fillBytesPerSecond;
+        mSampledAt = sampledAt;
+        mThresholdBytes = thresholdBytes.clone();
+    }
+
+    /**
+     * A copy with the given bytes taken from the free space.
+     */
+    StorageSnapshot minus(long bytes, long fillBytesPerSecond) {
+        return new StorageSnapshot(mState, mDirectoryReady, Math.max(0, mFreeBytes - bytes),
+                fillBytesPerSecond, mSampledAt, mThresholdBytes);
+    }
+
+    StorageSnapshot withThresholds(long[] thresholdBytes) {
+        return new StorageSnapshot(mState, mDirectoryReady, mFreeBytes, mFillBytesPerSecond,
+                mSampledAt, thresholdBytes);
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return true if media can be written, regardless of the free space
+     */
+    public boolean isReady() {
+        return mState == State.UNKNOWN || (mState == State.WRITEABLE && mDirectoryReady);
+    }
+
+    /**
+     * Free bytes of the last sample minus the bytes written since.
+     */
+    public long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    /**
+     * How fast the storage is currently filling up, 0 if it is idle.
+     */
+    public long getFillBytesPerSecond() {
+        return mFillBytesPerSecond;
+    }
+
+    /**
+     * {@link android.os.SystemClock#elapsedRealtime()} of the last filesystem sample.
+     */
+    public long getSampledAt() {
+        return mSampledAt;
+    }
+
+    public long getThresholdBytes(StorageMonitor.Threshold threshold) {
+        return mThresholdBytes[threshold.ordinal()];
+    }
+
+    /**
+     * Free bytes above the threshold, 0 if it has been crossed.
+     */
+    public long getHeadroomBytes(StorageMonitor.Threshold threshold) {
+        return Math.max(0, mFreeBytes - getThresholdBytes(threshold));
+    }
+
+    public boolean hasSpaceFor(StorageMonitor.Threshold threshold) {
+        return mFreeBytes > getThresholdBytes(threshold);
+    }
+
+    public boolean canCapturePicture() {
+        return isReady() && hasSpaceFor(StorageMonitor.Threshold.PICTURE);
+    }
+
+    public boolean canRecordVideo() {
+        return isReady() && hasSpaceFor(StorageMonitor.Threshold.VIDEO);
+    }
+
+    /**
+     * @return the seconds until the free space drops to the threshold at the current fill rate,
+     * {@link Long#MAX_VALUE} if the storage is not filling up
+     */
+    public long getSecondsUntil(StorageMonitor.Threshold threshold) {
+        long headroom = getHeadroomBytes(threshold);
+        if (headroom == 0) return 0;
+        if (mFillBytesPerSecond <= 0) return Long.MAX_VALUE;
+        return headroom / mFillBytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "state: %s dir: %b free: %d MB fill: %d KB/s", mState,
+                mDirectoryReady, mFreeBytes / StorageMonitor.MB, mFillBytesPerSecond / 1024);
+    }
+}
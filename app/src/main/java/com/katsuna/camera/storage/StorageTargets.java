@@ -0,0 +1,380 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.os.StatFs;
+import android.support.annotation.NonNull;
+
+import com.katsuna.camera.utils.AndroidContext;
+import com.katsuna.camera.utils.ApiHelper;
+import com.katsuna.camera.utils.StorageUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Chooses the volume media are stored on. Every mounted volume is benchmarked once for its
+ * sequential write throughput and fsync latency, the results are cached per volume and the
+ * fastest volume with room for video, or at least for photos, is handed to {@link StorageUtil}.
+ * <p>
+ * Media are only stored in public directories, never in app specific ones which are deleted
+ * with the app. A secondary volume is offered only if its public DCIM directory is writable,
+ * which rules out removable cards on releases that keep them read only. Photos stored through
+ * the media store follow the same volume, see {@link #getMediaStoreVolume}.
+ */
+public class StorageTargets {
+
+    private static final String TAG = "StorageTargets";
+    private static final String PREFERENCES = "storage_benchmark";
+    /**
+     * MediaStore.VOLUME_EXTERNAL, which spans every volume before Q and is the primary one after.
+     */
+    private static final String VOLUME_EXTERNAL = "external";
+    /**
+     * Where app specific media directories live below the root of their volume.
+     */
+    private static final String APP_MEDIA_PATH = File.separator + "Android" + File.separator
+            + "media" + File.separator;
+
+    /**
+     * Written in {@link #CHUNK_BYTES} chunks, close to a burst of large photos.
+     */
+    private static final int SEQUENTIAL_BYTES = 4 * 1024 * 1024;
+    private static final int CHUNK_BYTES = 256 * 1024;
+    private static final int SYNC_BYTES = 4 * 1024;
+    private static final int SYNC_ROUNDS = 8;
+    /**
+     * Cached results older than this are measured again.
+     */
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    /**
+     * Benchmark of one volume.
+     */
+    public static class Volume {
+        private final File mDirectory;
+        private final boolean mPrimary;
+        private final long mWriteBytesPerSecond;
+        private final long mSyncMicros;
+        private final long mFreeBytes;
+        private final long mTotalBytes;
+
+        Volume(File directory, boolean primary, long writeBytesPerSecond, long syncMicros,
+               long freeBytes, long totalBytes) {
+            mDirectory = directory;
+            mPrimary = primary;
+            mWriteBytesPerSecond = writeBytesPerSecond;
+            mSyncMicros = syncMicros;
+            mFreeBytes = freeBytes;
+            mTotalBytes = totalBytes;
+        }
+
+        /**
+         * The directory media are stored in on this volume.
+         */
+        public File getDirectory() {
+            return mDirectory;
+        }
+
+        public boolean isPrimary() {
+            return mPrimary;
+        }
+
+        /**
+         * @return 0 if the volume couldn't be measured
+         */
+        public long getWriteBytesPerSecond() {
+            return mWriteBytesPerSecond;
+        }
+
+        /**
+         * Median latency of a small write followed by fsync.
+         */
+        public long getSyncMicros() {
+            return mSyncMicros;
+        }
+
+        public long getFreeBytes() {
+            return mFreeBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s%s\n  write: %.1f MB/s fsync: %.1f ms"
+                            + " free: %d/%d MB", mDirectory, mPrimary ? " (primary)" : "",
+                    mWriteBytesPerSecond / (double) StorageMonitor.MB, mSyncMicros / 1000.0,
+                    mFreeBytes / StorageMonitor.MB, mTotalBytes / StorageMonitor.MB);
+        }
+    }
+
+    private static class Singleton {
+        private static final StorageTargets INSTANCE =
+                new StorageTargets(AndroidContext.instance().get());
+    }
+
+    public static StorageTargets instance() {
+        return Singleton.INSTANCE;
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private volatile List<Volume> mVolumes = Collections.emptyList();
+    private volatile Volume mSelected;
+    private boolean mStarted;
+
+    private StorageTargets(Context context) {
+        mContext = context;
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Measures the volumes not benchmarked yet on a background thread and selects the target.
+     * Until then media go to the primary volume.
+     */
+    public synchronized void start() {
+        if (mStarted) return;
+        mStarted = true;
+
+        Thread thread = new Thread(this::select, TAG);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    /**
+     * The benchmarked volumes, empty until the selection completes.
+     */
+    @NonNull
+    public List<Volume> getVolumes() {
+        return mVolumes;
+    }
+
+    /**
+     * @return null until the selection completes
+     */
+    public Volume getSelected() {
+        return mSelected;
+    }
+
+    private void select() {
+        List<Volume> volumes = new ArrayList<>();
+        File primary = StorageUtil.getDefaultMediaDirectory();
+        volumes.add(measure(primary, primary.getParentFile(), true));
+
+        File[] mediaDirs = mContext.getExternalMediaDirs();
+        for (int i = 1; i < mediaDirs.length; i++) {
+            File mediaDir = mediaDirs[i];
+            if (mediaDir == null
+                    || !Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState(mediaDir))) {
+                continue;
+            }
+            File root = getVolumeRoot(mediaDir);
+            if (root == null) continue;
+            // a directory that can't be written fails the benchmark and is never selected
+            File publicDir = new File(new File(root, Environment.DIRECTORY_DCIM),
+                    StorageUtil.KATSUNA_CAMERA);
+            volumes.add(measure(publicDir, root, false));
+        }
+
+        Volume selected = null;
+        // without the storage permission the primary volume can't be measured, don't move away
+        // from it on a partial benchmark
+        if (volumes.get(0).getWriteBytesPerSecond() > 0) {
+            selected = choose(volumes, StorageMonitor.Threshold.VIDEO);
+            if (selected == null) {
+                selected = choose(volumes, StorageMonitor.Threshold.PICTURE);
+            }
+        }
+        if (selected == null) {
+            selected = volumes.get(0);
+        }
+
+        mVolumes = Collections.unmodifiableList(volumes);
+        mSelected = selected;
+        Timber.tag(TAG).i("Storing media in %s", selected);
+        StorageUtil.setMediaDirectory(selected.getDirectory());
+        StorageMonitor.instance().requestSample();
+    }
+
+    /**
+     * The media store volume holding {@code file}, to build the content uris of its rows. From
+     * Android Q secondary volumes are named after their lowercase file system id.
+     */
+    @NonNull
+    public String getMediaStoreVolume(@NonNull File file) {
+        if (!ApiHelper.isQOrHigher()) return VOLUME_EXTERNAL;
+
+        File[] mediaDirs = mContext.getExternalMediaDirs();
+        String path = file.getAbsolutePath() + File.separator;
+        for (int i = 1; i < mediaDirs.length; i++) {
+            File root = mediaDirs[i] == null ? null : getVolumeRoot(mediaDirs[i]);
+            if (root != null && path.startsWith(root.getAbsolutePath() + File.separator)) {
+                return root.getName().toLowerCase(Locale.US);
+            }
+        }
+        return VOLUME_EXTERNAL;
+    }
+
+    /**
+     * @param mediaDir an app specific media directory
+     * @return the root of its volume, null if the path has an unexpected layout
+     */
+    private static File getVolumeRoot(File mediaDir) {
+        String path = mediaDir.getAbsolutePath();
+        int index = path.indexOf(APP_MEDIA_PATH);
+        return index > 0 ? new File(path.substring(0, index)) : null;
+    }
+
+    /**
+     * @return the fastest volume with room above the default threshold, null if none has
+     */
+    private static Volume choose(List<Volume> volumes, StorageMonitor.Threshold threshold) {
+        Volume best = null;
+        for (Volume volume : volumes) {
+            if (volume.getWriteBytesPerSecond() == 0
+                    || volume.getFreeBytes() <= threshold.getDefaultBytes()) continue;
+            if (best == null || volume.getWriteBytesPerSecond() > best.getWriteBytesPerSecond()) {
+                best = volume;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param root an existing directory on the volume to stat
+     */
+    private Volume measure(File directory, File root, boolean primary) {
+        long freeBytes = 0;
+        long totalBytes = 0;
+        try {
+            StatFs stat = new StatFs(root.getPath());
+            freeBytes = stat.getAvailableBytes();
+            totalBytes = stat.getTotalBytes();
+        } catch (IllegalArgumentException ex) {
+            Timber.tag(TAG).e(ex, "Couldn't stat %s", root);
+        }
+
+        // a different card mounted at the same path has a different size
+        String key = directory.getAbsolutePath() + "_" + totalBytes;
+        long[] cached = parse(mPreferences.getString(key, null));
+        if (cached != null && System.currentTimeMillis() - cached[2] < MAX_AGE_MILLIS) {
+            return new Volume(directory, primary, cached[0], cached[1], freeBytes, totalBytes);
+        }
+
+        long writeBytesPerSecond = 0;
+        long syncMicros = 0;
+        if (freeBytes > SEQUENTIAL_BYTES * 4L) {
+            try {
+                long[] result = benchmark(directory);
+                writeBytesPerSecond = result[0];
+                syncMicros = result[1];
+                mPreferences.edit()
+                        .putString(key, writeBytesPerSecond + "," + syncMicros + ","
+                                + System.currentTimeMillis())
+                        .apply();
+            } catch (IOException | SecurityException ex) {
+                Timber.tag(TAG).e(ex, "Couldn't benchmark %s", directory);
+            }
+        }
+        Volume volume = new Volume(directory, primary, writeBytesPerSecond, syncMicros, freeBytes,
+                totalBytes);
+        Timber.tag(TAG).d("%s", volume);
+        return volume;
+    }
+
+    /**
+     * @return the write throughput in bytes per second and the median fsync latency in
+     * microseconds
+     */
+    private static long[] benchmark(File directory) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+
+        File file = new File(directory, ".benchmark");
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+        // incompressible content, in case the storage compresses
+        byte[] random = new byte[CHUNK_BYTES];
+        new Random(0).nextBytes(random);
+        chunk.put(random);
+
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            FileChannel channel = stream.getChannel();
+
+            long start = System.nanoTime();
+            for (int written = 0; written < SEQUENTIAL_BYTES; written += CHUNK_BYTES) {
+                chunk.rewind();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            }
+            channel.force(true);
+            long sequentialNanos = Math.max(1, System.nanoTime() - start);
+
+            long[] syncNanos = new long[SYNC_ROUNDS];
+            for (int i = 0; i < SYNC_ROUNDS; i++) {
+                chunk.rewind();
+                chunk.limit(SYNC_BYTES);
+                start = System.nanoTime();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                channel.force(false);
+                syncNanos[i] = System.nanoTime() - start;
+                chunk.limit(CHUNK_BYTES);
+            }
+            Arrays.sort(syncNanos);
+
+            return new long[]{
+                    SEQUENTIAL_BYTES * TimeUnit.SECONDS.toNanos(1) / sequentialNanos,
+                    TimeUnit.NANOSECONDS.toMicros(syncNanos[SYNC_ROUNDS / 2])
+            };
+        } finally {
+            if (!file.delete()) {
+                Timber.tag(TAG).w("Couldn't delete %s", file);
+            }
+        }
+    }
+
+    private static long[] parse(String value) {
+        if (value == null) return null;
+        String[] parts = value.split(",");
+        if (parts.length != 3) return null;
+        try {
+            return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                    Long.parseLong(parts[2])};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
@@ -120,4 +120,12 @@ public class ApiHelper {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
                 || "MNC".equals(Build.VERSION.CODENAME);
     }
+
+    public static boolean isOOrHigher() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    public static boolean isQOrHigher() {
+        return Build.VERSION.SDK_INT >= 29; // Q
+    }
 }
@@ -0,0 +1,105 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.utils;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters of a single burst sequence. Used to tune the depth of the image ring per device.
+ */
+public class BurstStats {
+
+    private final int mRingDepth;
+    private final long mStartedAt = System.nanoTime();
+    private final AtomicInteger mRequested = new AtomicInteger();
+    private final AtomicInteger mSaved = new AtomicInteger();
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private volatile long mLastFrameAt;
+
+    public BurstStats(int ringDepth) {
+        mRingDepth = ringDepth;
+    }
+
+    public void onRequested(int count) {
+        mRequested.addAndGet(count);
+    }
+
+    /**
+     * A frame reached the persistence queue.
+     */
+    public void onFrameSaved() {
+        mSaved.incrementAndGet();
+        mLastFrameAt = System.nanoTime();
+    }
+
+    /**
+     * A frame was lost: the capture failed, the ring was full or the save queue rejected it.
+     */
+    public void onFrameDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Whether every requested frame has been either saved or dropped.
+     */
+    public boolean isSettled() {
+        return mSaved.get() + mDropped.get() >= mRequested.get();
+    }
+
+    /**
+     * Counts the frames that never arrived as dropped.
+     */
+    public void dropUnaccounted() {
+        int missing = mRequested.get() - mSaved.get() - mDropped.get();
+        if (missing > 0) {
+            mDropped.addAndGet(missing);
+        }
+    }
+
+    public int getRequested() {
+        return mRequested.get();
+    }
+
+    public int getSaved() {
+        return mSaved.get();
+    }
+
+    public int getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Sustained rate of frames that made it to the persistence queue.
+     */
+    public float getFramesPerSecond() {
+        long elapsed = mLastFrameAt - mStartedAt;
+        if (mSaved.get() == 0 || elapsed <= 0) return 0;
+
+        return mSaved.get() * (float) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "ring depth: %d requested: %d saved: %d dropped: %d fps: %.1f",
+                mRingDepth, getRequested(), getSaved(), getDropped(), getFramesPerSecond());
+    }
+}
@@ -18,12 +18,12 @@
 */
 package com.katsuna.camera.utils;
 
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraMetadata;
 import android.view.OrientationEventListener;
 import android.view.Surface;
 import android.view.WindowManager;
 
+import com.katsuna.camera.api.CameraCapabilities;
+
 @SuppressWarnings("ALL")
 public class CameraUtil {
 
@@ -45,7 +45,7 @@ public class CameraUtil {
     }
 
     /**
-     * Given the device orientation and Camera2 characteristics, this returns
+     * Given the device orientation and camera capabilities, this returns
      * the required JPEG rotation for this camera.
      *
      * @param deviceOrientationDegrees the clockwise angle of the device orientation from its
@@ -53,14 +53,12 @@ public class CameraUtil {
      * @return The angle to rotate image clockwise in degrees. It should be 0, 90, 180, or 270.
      */
     public static int getJpegRotation(int deviceOrientationDegrees,
-                                      CameraCharacteristics characteristics) {
+                                      CameraCapabilities capabilities) {
         if (deviceOrientationDegrees == OrientationEventListener.ORIENTATION_UNKNOWN) {
             return 0;
         }
-        boolean isFrontCamera = characteristics.get(CameraCharacteristics.LENS_FACING) ==
-                CameraMetadata.LENS_FACING_FRONT;
-        int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-        return getImageRotation(sensorOrientation, deviceOrientationDegrees, isFrontCamera);
+        return getImageRotation(capabilities.getSensorOrientation(), deviceOrientationDegrees,
+                capabilities.isFrontFacing());
     }
 
     /**
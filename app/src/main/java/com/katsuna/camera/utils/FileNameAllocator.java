@@ -0,0 +1,121 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.utils;
+
+import android.annotation.SuppressLint;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out unique, increasing media file names of the form {@code yyyyMMdd_HHmmss.SSS} from any
+ * thread without locking.
+ * <p>
+ * The millisecond field doubles as a sequence: a name requested within the same millisecond as
+ * the previous one gets the next millisecond, so a burst can't produce the same name twice. The
+ * date part is formatted once per second and shared.
+ */
+public class FileNameAllocator {
+
+    @VisibleForTesting
+    interface TimeSource {
+        long currentTimeMillis();
+    }
+
+    private static final String DATE_PATTERN = "yyyyMMdd_HHmmss";
+
+    private final TimeSource mTimeSource;
+    private final ThreadLocal<SimpleDateFormat> mFormat;
+    private final AtomicLong mLastMillis = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicReference<Prefix> mPrefix = new AtomicReference<>();
+
+    public FileNameAllocator() {
+        this(System::currentTimeMillis, TimeZone.getDefault());
+    }
+
+    @VisibleForTesting
+    FileNameAllocator(TimeSource timeSource, TimeZone timeZone) {
+        mTimeSource = timeSource;
+        mFormat = new ThreadLocal<SimpleDateFormat>() {
+            @SuppressLint("SimpleDateFormat")
+            @Override
+            protected SimpleDateFormat initialValue() {
+                SimpleDateFormat format = new SimpleDateFormat(DATE_PATTERN);
+                format.setTimeZone(timeZone);
+                return format;
+            }
+        };
+    }
+
+    /**
+     * @param extension appended as is, for example ".jpg"
+     */
+    @NonNull
+    public String next(@NonNull String extension) {
+        return format(nextMillis()) + extension;
+    }
+
+    /**
+     * The current time, or one past the last allocated time if the clock hasn't moved on.
+     */
+    @VisibleForTesting
+    long nextMillis() {
+        long now = mTimeSource.currentTimeMillis();
+        while (true) {
+            long last = mLastMillis.get();
+            long next = Math.max(now, last + 1);
+            if (mLastMillis.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    String format(long millis) {
+        long second = Math.floorDiv(millis, 1000L);
+        Prefix prefix = mPrefix.get();
+        if (prefix == null || prefix.mSecond != second) {
+            prefix = new Prefix(second, mFormat.get().format(new Date(second * 1000)));
+            mPrefix.set(prefix);
+        }
+
+        int fraction = (int) Math.floorMod(millis, 1000L);
+        StringBuilder name = new StringBuilder(prefix.mText.length() + 4)
+                .append(prefix.mText)
+                .append('.');
+        if (fraction < 100) name.append('0');
+        if (fraction < 10) name.append('0');
+        return name.append(fraction).toString();
+    }
+
+    private static class Prefix {
+        final long mSecond;
+        final String mText;
+
+        Prefix(long second, String text) {
+            mSecond = second;
+            mText = text;
+        }
+    }
+}
@@ -18,64 +18,102 @@
 */
 package com.katsuna.camera.utils;
 
-import android.content.Context;
 import android.media.Image;
-import android.media.MediaScannerConnection;
+import android.support.annotation.NonNull;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import timber.log.Timber;
 
-public class ImageSaver implements Runnable {
+public class ImageSaver {
 
     /**
-     * The JPEG image
+     * Provides the encoded JPEG bytes of a single shot.
      */
-    private final Image mImage;
+    public interface JpegSource {
 
-    private final Context mContext;
+        /**
+         * The buffer holding the JPEG. For camera images this is the direct buffer of the
+         * {@link Image} plane, owned by the {@link android.media.ImageReader} pool.
+         */
+        ByteBuffer getBuffer();
+
+        /**
+         * Returns the underlying buffer to its owner.
+         */
+        void close();
+    }
+
+    @NonNull
+    public static JpegSource fromImage(@NonNull Image image) {
+        return new ImageJpegSource(image);
+    }
 
     /**
-     * The file we save the image into.
+     * Writes the JPEG to a new file and releases the source, even if the file can't be opened.
+     *
+     * @return the number of bytes written
      */
-    private final File mFile;
-
-    public ImageSaver(Context context, Image image, File file) {
-        mContext = context;
-        mImage = image;
-        mFile = new File(file.getPath());
+    public static long write(@NonNull JpegSource source, @NonNull File file) throws IOException {
+        FileOutputStream output;
+        try {
+            output = new FileOutputStream(file);
+        } catch (IOException ex) {
+            source.close();
+            throw ex;
+        }
+        return write(source, output);
     }
 
-    @Override
-    public void run() {
-        ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
-        FileOutputStream output = null;
+    /**
+     * Writes the JPEG to {@code output}, then closes the stream and releases the source.
+     * <p>
+     * The plane buffer is handed to the {@link FileChannel} of the stream as is. Since it is a
+     * direct buffer the channel writes it without staging the bytes on the Java heap, so a shot
+     * costs no garbage proportional to its size.
+     *
+     * @return the number of bytes written
+     */
+    public static long write(@NonNull JpegSource source, @NonNull FileOutputStream output)
+            throws IOException {
         try {
-            output = new FileOutputStream(mFile);
-            output.write(bytes);
-            scanFile(mFile);
-        } catch (IOException e) {
-            Timber.e(e);
+            FileChannel channel = output.getChannel();
+            ByteBuffer buffer = source.getBuffer();
+            long written = 0;
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            return written;
         } finally {
-            mImage.close();
-            if (null != output) {
-                try {
-                    output.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            source.close();
+            try {
+                output.close();
+            } catch (IOException e) {
+                Timber.e(e);
             }
         }
     }
 
-    private void scanFile(File file) {
-        MediaScannerConnection.scanFile(mContext, new String[]{file.toString()}, null,
-                (path, uri) -> {
-                });
+    private static class ImageJpegSource implements JpegSource {
+
+        private final Image mImage;
+
+        ImageJpegSource(Image image) {
+            mImage = image;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mImage.getPlanes()[0].getBuffer();
+        }
+
+        @Override
+        public void close() {
+            mImage.close();
+        }
     }
 }
@@ -0,0 +1,71 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.utils;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples of a stage and computes percentiles over them.
+ */
+public class LatencyHistogram {
+
+    private final long[] mSamples;
+    private int mNext;
+    private int mSize;
+    private long mTotalCount;
+
+    public LatencyHistogram(int window) {
+        mSamples = new long[window];
+    }
+
+    public synchronized void record(long value) {
+        mSamples[mNext] = value;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mSize < mSamples.length) {
+            mSize++;
+        }
+        mTotalCount++;
+    }
+
+    /**
+     * Samples recorded since creation, including the ones that left the window.
+     */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Nearest rank percentiles of the samples in the window.
+     *
+     * @param percentiles values in the range (0, 100]
+     * @return one value per requested percentile, all zero if there are no samples
+     */
+    public synchronized long[] getPercentiles(double... percentiles) {
+        long[] output = new long[percentiles.length];
+        if (mSize == 0) return output;
+
+        long[] sorted = Arrays.copyOf(mSamples, mSize);
+        Arrays.sort(sorted);
+        for (int i = 0; i < percentiles.length; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100 * mSize);
+            output[i] = sorted[Math.max(0, Math.min(mSize, rank) - 1)];
+        }
+        return output;
+    }
+}
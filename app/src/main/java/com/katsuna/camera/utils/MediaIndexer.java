@@ -0,0 +1,222 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.utils;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.katsuna.camera.storage.StorageTargets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Registers saved media in the {@link MediaStore}. Instead of asking the media scanner to bind and
+ * parse every file, the rows are inserted directly with the values we already know. Files that
+ * arrive within {@link #WINDOW_MILLIS} of each other are inserted in one batch.
+ */
+public class MediaIndexer {
+
+    private static final String TAG = "MediaIndexer";
+
+    /**
+     * How long the first file of a batch waits for others.
+     */
+    private static final long WINDOW_MILLIS = 300;
+
+    public static final String MIME_TYPE_JPEG = "image/jpeg";
+    public static final String MIME_TYPE_MP4 = "video/mp4";
+
+    public interface Callback {
+        /**
+         * Called on the indexer thread.
+         *
+         * @param uri the content uri of the file or null if it couldn't be inserted
+         */
+        void onIndexed(@NonNull File file, @Nullable Uri uri);
+    }
+
+    /**
+     * A file waiting to be indexed.
+     */
+    public static class Entry {
+        private final File mFile;
+        private final Uri mCollection;
+        private final ContentValues mValues;
+        private final String mMimeType;
+        private Callback mCallback;
+
+        private Entry(File file, Uri collection, String mimeType, long dateTaken) {
+            mFile = file;
+            mCollection = collection;
+            mMimeType = mimeType;
+            mValues = new ContentValues();
+
+            String name = file.getName();
+            int extension = name.lastIndexOf('.');
+            mValues.put(MediaStore.MediaColumns.DATA, file.getAbsolutePath());
+            mValues.put(MediaStore.MediaColumns.DISPLAY_NAME, name);
+            mValues.put(MediaStore.MediaColumns.TITLE,
+                    extension > 0 ? name.substring(0, extension) : name);
+            mValues.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+            mValues.put(MediaStore.MediaColumns.SIZE, file.length());
+            long seconds = TimeUnit.MILLISECONDS.toSeconds(dateTaken);
+            mValues.put(MediaStore.MediaColumns.DATE_ADDED, seconds);
+            mValues.put(MediaStore.MediaColumns.DATE_MODIFIED, seconds);
+        }
+
+        public static Entry image(@NonNull File file, int width, int height, long dateTaken) {
+            Entry entry = new Entry(file, MediaStore.Images.Media.getContentUri(
+                    StorageTargets.instance().getMediaStoreVolume(file)),
+                    MIME_TYPE_JPEG, dateTaken);
+            entry.putSize(width, height);
+            entry.mValues.put(MediaStore.Images.ImageColumns.DATE_TAKEN, dateTaken);
+            return entry;
+        }
+
+        public static Entry video(@NonNull File file, int width, int height, long dateTaken,
+                                  long durationMillis) {
+            Entry entry = new Entry(file, MediaStore.Video.Media.getContentUri(
+                    StorageTargets.instance().getMediaStoreVolume(file)),
+                    MIME_TYPE_MP4, dateTaken);
+            entry.putSize(width, height);
+            entry.mValues.put(MediaStore.Video.VideoColumns.DATE_TAKEN, dateTaken);
+            entry.mValues.put(MediaStore.Video.VideoColumns.DURATION, durationMillis);
+            return entry;
+        }
+
+        private void putSize(int width, int height) {
+            if (width > 0 && height > 0) {
+                mValues.put(MediaStore.MediaColumns.WIDTH, width);
+                mValues.put(MediaStore.MediaColumns.HEIGHT, height);
+            }
+        }
+
+        public Entry setCallback(@Nullable Callback callback) {
+            mCallback = callback;
+            return this;
+        }
+    }
+
+    private static class Singleton {
+        private static final MediaIndexer INSTANCE =
+                new MediaIndexer(AndroidContext.instance().get());
+    }
+
+    public static MediaIndexer instance() {
+        return Singleton.INSTANCE;
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, TAG));
+
+    private final List<Entry> mPending = new ArrayList<>();
+    private boolean mFlushScheduled;
+
+    private MediaIndexer(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Queues a saved file for indexing. The file must be complete.
+     */
+    public void index(@NonNull Entry entry) {
+        synchronized (mPending) {
+            mPending.add(entry);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mExecutor.schedule(this::flush, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void flush() {
+        List<Entry> batch;
+        synchronized (mPending) {
+            batch = new ArrayList<>(mPending);
+            mPending.clear();
+            mFlushScheduled = false;
+        }
+
+        long start = System.nanoTime();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            operations.add(ContentProviderOperation.newInsert(entry.mCollection)
+                    .withValues(entry.mValues)
+                    .build());
+        }
+
+        try {
+            ContentProviderResult[] results = mResolver.applyBatch(MediaStore.AUTHORITY,
+                    operations);
+            for (int i = 0; i < batch.size(); i++) {
+                notifyIndexed(batch.get(i), results[i].uri);
+            }
+        } catch (RemoteException | OperationApplicationException | RuntimeException ex) {
+            Timber.tag(TAG).e(ex, "Batch insert failed, falling back to the media scanner");
+            scan(batch);
+        }
+
+        long nanos = System.nanoTime() - start;
+        PipelineTrace.instance().recordDuration(PipelineTrace.Stage.MEDIA_INDEX_BATCH, nanos);
+        Timber.tag(TAG).d("Indexed %d files in %d ms", batch.size(),
+                TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    private void scan(List<Entry> batch) {
+        String[] paths = new String[batch.size()];
+        String[] mimeTypes = new String[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            paths[i] = batch.get(i).mFile.getAbsolutePath();
+            mimeTypes[i] = batch.get(i).mMimeType;
+        }
+        MediaScannerConnection.scanFile(mContext, paths, mimeTypes, (path, uri) -> {
+            for (Entry entry : batch) {
+                if (entry.mFile.getAbsolutePath().equals(path)) {
+                    notifyIndexed(entry, uri);
+                }
+            }
+        });
+    }
+
+    private static void notifyIndexed(Entry entry, Uri uri) {
+        if (entry.mCallback != null) {
+            entry.mCallback.onIndexed(entry.mFile, uri);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Single threaded executor dedicated to persisting captured media. It keeps file I/O away from
+ * the camera control thread and bounds the number of pending saves so that a slow storage
+ * applies backpressure to the shutter instead of piling up images in memory.
+ */
+public class PersistenceExecutor {
+
+    /**
+     * Notified whenever the executor becomes full or gets room again. Called on the thread that
+     * caused the change.
+     */
+    public interface Listener {
+        void onSaturationChanged(boolean saturated);
+    }
+
+    private final int mCapacity;
+    private final ThreadPoolExecutor mExecutor;
+    private final Listener mListener;
+
+    /**
+     * Tasks queued or running.
+     */
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicInteger mMaxPending = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mTotalWriteNanos = new AtomicLong();
+    private final AtomicLong mMaxWriteNanos = new AtomicLong();
+    private final Object mIdleLock = new Object();
+
+    public PersistenceExecutor(String name, int capacity, Listener listener) {
+        mCapacity = capacity;
+        mListener = listener;
+        mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), r -> new Thread(r, name));
+    }
+
+    /**
+     * Queues a task unless the executor is full.
+     *
+     * @return false if the task was rejected. The caller still owns any resource the task was
+     * supposed to release.
+     */
+    public boolean submit(@NonNull Runnable task) {
+        int pending = mPending.incrementAndGet();
+        if (pending > mCapacity) {
+            mPending.decrementAndGet();
+            mRejected.incrementAndGet();
+            Timber.w("Persistence queue full, rejecting task. %s", this);
+            return false;
+        }
+        updateMax(mMaxPending, pending);
+
+        final long queuedAt = System.nanoTime();
+        try {
+            mExecutor.execute(() -> run(task, queuedAt));
+        } catch (RejectedExecutionException ex) {
+            mPending.decrementAndGet();
+            mRejected.incrementAndGet();
+            Timber.e(ex, "Persistence executor is shut down");
+            return false;
+        }
+
+        if (pending == mCapacity) {
+            notifySaturation(true);
+        }
+        return true;
+    }
+
+    private void run(Runnable task, long queuedAt) {
+        long startedAt = System.nanoTime();
+        try {
+            task.run();
+        } catch (RuntimeException ex) {
+            // one failed save must not take the others down with the thread
+            Timber.e(ex, "Persistence task failed");
+        } finally {
+            long writeNanos = System.nanoTime() - startedAt;
+            long waitNanos = startedAt - queuedAt;
+            mTotalWaitNanos.addAndGet(waitNanos);
+            mTotalWriteNanos.addAndGet(writeNanos);
+            updateMax(mMaxWriteNanos, writeNanos);
+            mCompleted.incrementAndGet();
+            PipelineTrace.instance().recordDuration(PipelineTrace.Stage.SAVE_QUEUE, waitNanos);
+            PipelineTrace.instance().recordDuration(PipelineTrace.Stage.SAVE_WRITE, writeNanos);
+
+            int pending = mPending.decrementAndGet();
+            Timber.d("Persisted in %d ms. %s", TimeUnit.NANOSECONDS.toMillis(writeNanos), this);
+            if (pending == mCapacity - 1) {
+                notifySaturation(false);
+            }
+            if (pending == 0) {
+                synchronized (mIdleLock) {
+                    mIdleLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks until every queued task has run, so that resources the tasks use can be released.
+     *
+     * @return false if tasks were still pending when the timeout expired
+     */
+    public boolean awaitIdle(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mIdleLock) {
+            while (mPending.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(mIdleLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    private void notifySaturation(boolean saturated) {
+        if (mListener != null) {
+            mListener.onSaturationChanged(saturated);
+        }
+    }
+
+    public boolean isSaturated() {
+        return mPending.get() >= mCapacity;
+    }
+
+    public int getQueueDepth() {
+        return mPending.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxPending.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    public long getAverageWriteMillis() {
+        long completed = mCompleted.get();
+        return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(mTotalWriteNanos.get() / completed);
+    }
+
+    public long getMaxWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxWriteNanos.get());
+    }
+
+    public long getAverageWaitMillis() {
+        long completed = mCompleted.get();
+        return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos.get() / completed);
+    }
+
+    /**
+     * Stops accepting tasks. Tasks already queued are still executed.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        do {
+            current = max.get();
+        } while (value > current && !max.compareAndSet(current, value));
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        do {
+            current = max.get();
+        } while (value > current && !max.compareAndSet(current, value));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "depth: %d/%d max depth: %d completed: %d rejected: %d"
+                        + " avg wait: %d ms avg write: %d ms max write: %d ms",
+                getQueueDepth(), mCapacity, getMaxQueueDepth(), getCompletedCount(),
+                getRejectedCount(), getAverageWaitMillis(), getAverageWriteMillis(),
+                getMaxWriteMillis());
+    }
+}
@@ -0,0 +1,207 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.utils;
+
+import android.support.annotation.NonNull;
+
+import com.katsuna.camera.api.CameraState;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * In memory latency histograms of the capture pipeline stages and of the time spent in each
+ * {@link CameraState}. Timestamps come from the monotonic {@link #now()} clock.
+ */
+public class PipelineTrace {
+
+    private static final String TAG = "PipelineTrace";
+
+    /**
+     * Samples kept per stage.
+     */
+    private static final int WINDOW = 256;
+
+    public enum Stage {
+        /**
+         * Process start until the first preview frame is drawn.
+         */
+        COLD_START_TO_PREVIEW,
+        /**
+         * Fragment resume until the first preview frame is drawn.
+         */
+        RESUME_TO_PREVIEW,
+        /**
+         * Shutter button click until the still capture request is sent.
+         */
+        SHUTTER_TO_CAPTURE,
+        /**
+         * Still capture request sent until the JPEG is available.
+         */
+        CAPTURE_TO_IMAGE,
+        /**
+         * Shutter button click until the shutter accepts the next shot.
+         */
+        SHUTTER_TO_READY,
+        /**
+         * Time a photo waits in the persistence queue.
+         */
+        SAVE_QUEUE,
+        /**
+         * Time spent writing a photo.
+         */
+        SAVE_WRITE,
+        /**
+         * Shutter button click until the photo is written.
+         */
+        SHUTTER_TO_FILE,
+        /**
+         * A photo stored as a plain file and queued for indexing.
+         */
+        SAVE_FILE_BACKEND,
+        /**
+         * A photo streamed into a media store row.
+         */
+        SAVE_MEDIA_STORE_BACKEND,
+        /**
+         * One batch of media store inserts.
+         */
+        MEDIA_INDEX_BATCH,
+        /**
+         * Building the thumbnail of a capture for the gallery button.
+         */
+        THUMBNAIL_DECODE,
+        /**
+         * Record button tap until the first frame is sent to the video encoder.
+         */
+        TAP_TO_RECORDED_FRAME
+    }
+
+    private static class Singleton {
+        private static final PipelineTrace INSTANCE = new PipelineTrace();
+    }
+
+    public static PipelineTrace instance() {
+        return Singleton.INSTANCE;
+    }
+
+    private final Map<String, LatencyHistogram> mHistograms = new LinkedHashMap<>();
+    /**
+     * Count, total bytes and total nanos of the saves of each JPEG profile.
+     */
+    private final Map<String, long[]> mSaves = new LinkedHashMap<>();
+
+    private PipelineTrace() {
+    }
+
+    /**
+     * Monotonic timestamp in nanoseconds.
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}.
+     */
+    public void record(@NonNull Stage stage, long startNanos) {
+        recordDuration(stage, now() - startNanos);
+    }
+
+    public void recordDuration(@NonNull Stage stage, long durationNanos) {
+        getHistogram(stage.name()).record(durationNanos);
+    }
+
+    /**
+     * Records the time spent in {@code state}.
+     */
+    public void recordStateDuration(@NonNull CameraState state, long durationNanos) {
+        getHistogram("STATE_" + state.name()).record(durationNanos);
+    }
+
+    /**
+     * Records a saved photo, to compare the file size and save time of the JPEG profiles.
+     */
+    public void recordSave(@NonNull String profile, long bytes, long durationNanos) {
+        synchronized (mSaves) {
+            long[] totals = mSaves.get(profile);
+            if (totals == null) {
+                totals = new long[3];
+                mSaves.put(profile, totals);
+            }
+            totals[0]++;
+            totals[1] += bytes;
+            totals[2] += durationNanos;
+        }
+    }
+
+    private LatencyHistogram getHistogram(String name) {
+        synchronized (mHistograms) {
+            LatencyHistogram histogram = mHistograms.get(name);
+            if (histogram == null) {
+                histogram = new LatencyHistogram(WINDOW);
+                mHistograms.put(name, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * One line per stage with the p50, p95 and p99 latencies in milliseconds, followed by one
+     * line per JPEG profile with the average file size and save time.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (mHistograms) {
+            for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                long[] p = histogram.getPercentiles(50, 95, 99);
+                builder.append(String.format(Locale.US,
+                        "%s n=%d p50=%.1f p95=%.1f p99=%.1f ms%n", entry.getKey(),
+                        histogram.getTotalCount(), toMillis(p[0]), toMillis(p[1]),
+                        toMillis(p[2])));
+            }
+        }
+        synchronized (mSaves) {
+            for (Map.Entry<String, long[]> entry : mSaves.entrySet()) {
+                long[] totals = entry.getValue();
+                builder.append(String.format(Locale.US, "JPEG %s n=%d avg=%d KB save=%.1f ms%n",
+                        entry.getKey(), totals[0], totals[1] / totals[0] / 1024,
+                        toMillis(totals[2] / totals[0])));
+            }
+        }
+        return builder.toString();
+    }
+
+    public void log() {
+        for (String line : dump().split("\n")) {
+            if (!line.isEmpty()) {
+                Timber.tag(TAG).i(line);
+            }
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
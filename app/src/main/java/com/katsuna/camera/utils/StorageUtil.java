@@ -18,14 +18,14 @@
 */
 package com.katsuna.camera.utils;
 
-import android.annotation.SuppressLint;
 import android.os.Environment;
 import android.os.StatFs;
 
+import com.katsuna.camera.storage.StorageSnapshot;
+import com.katsuna.camera.storage.StorageTargets;
+
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 import timber.log.Timber;
 
@@ -36,29 +36,75 @@ public class StorageUtil {
     public static final String KATSUNA_CAMERA = "KatsunaCamera";
     private static final File KATSUNA_CAMERA_DIRECTORY = new File(PICTURES_DIRECTORY, KATSUNA_CAMERA);
 
-    private static final long VIDEO_SIZE_THRESHOLD_MB = 200;
-    private static final long PICTURE_SIZE_THRESHOLD_MB = 20;
+    /**
+     * Where media are stored, chosen by {@link StorageTargets}.
+     */
+    private static volatile File sMediaDirectory = KATSUNA_CAMERA_DIRECTORY;
+    /**
+     * The media directory last seen to exist, so that new files don't need a check each.
+     */
+    private static volatile File sCheckedDirectory;
+
+    private static final FileNameAllocator NAMES = new FileNameAllocator();
+
+    /**
+     * The media directory on the primary volume.
+     */
+    public static File getDefaultMediaDirectory() {
+        return KATSUNA_CAMERA_DIRECTORY;
+    }
+
+    public static void setMediaDirectory(File directory) {
+        sMediaDirectory = directory;
+    }
+
+    /**
+     * Hidden file a recorder that needs its output before the recording starts writes to. It is
+     * renamed once the recording is named and reused by the next one.
+     */
+    public static File getPendingVideoFile() throws IOException {
+        return new File(getMediaDirectory(), ".pending.mp4");
+    }
 
     public static File getVideoFilePath() throws IOException {
-        tryToCreateDirectory(KATSUNA_CAMERA_DIRECTORY);
-        return new File(KATSUNA_CAMERA_DIRECTORY, getTimestamp() + ".mp4");
+        File directory = getMediaDirectory();
+        return new File(directory, NAMES.next(".mp4"));
     }
 
+    /**
+     * The path of a new photo. The file itself is not created, so that a failed save leaves
+     * nothing behind.
+     */
     public static File getPhotoFilePath() throws IOException {
-        tryToCreateDirectory(KATSUNA_CAMERA_DIRECTORY);
-
-        File file = new File(KATSUNA_CAMERA_DIRECTORY, getTimestamp() + ".jpg");
+        File directory = getMediaDirectory();
 
-        boolean fileCreated = file.createNewFile();
-        if (!fileCreated) {
-            String fileNotCreated = "Couldn't create file: " + file.getAbsolutePath();
-            Timber.e(fileNotCreated);
-            throw new IOException(fileNotCreated);
+        File file = new File(directory, getPhotoFileName());
+        if (file.exists()) {
+            String fileExists = "File already exists: " + file.getAbsolutePath();
+            Timber.e(fileExists);
+            throw new IOException(fileExists);
         }
 
         return file;
     }
 
+    public static String getPhotoFileName() {
+        return NAMES.next(".jpg");
+    }
+
+    /**
+     * The directory photos and videos are stored in, created if missing. The directory is only
+     * checked when it changes, {@link #ensureMediaDirectory()} checks it again.
+     */
+    public static File getMediaDirectory() throws IOException {
+        File directory = sMediaDirectory;
+        if (directory != sCheckedDirectory) {
+            tryToCreateDirectory(directory);
+            sCheckedDirectory = directory;
+        }
+        return directory;
+    }
+
     private static void tryToCreateDirectory(File file) throws IOException {
         if (!file.exists()) {
             boolean pathCreated = file.mkdirs();
@@ -71,67 +117,47 @@ public class StorageUtil {
         }
     }
 
-    @SuppressLint("SimpleDateFormat")
-    private static String getTimestamp() {
-        return new SimpleDateFormat("yyyyMMdd_HHmmss.SSS").format(new Date());
-    }
-
-    // result in MB
-    public static long getAvailableSpace() {
-        StatFs stat = new StatFs(PICTURES_DIRECTORY.getPath());
-        stat.getFreeBytes();
-        long megAvailable = stat.getFreeBytes() / 1048576;
-        Timber.d("free space %d", megAvailable);
-        return megAvailable;
-    }
-
-    public static boolean hasAvailableSpaceToRecordVideo() {
-        long freeSpace = getAvailableSpace();
-        return (freeSpace > VIDEO_SIZE_THRESHOLD_MB);
-    }
-
-    public static boolean hasAvailableSpaceToCapturePicture() {
-        long freeSpace = getAvailableSpace();
-        return (freeSpace > PICTURE_SIZE_THRESHOLD_MB);
-    }
-
-    public static boolean storageReady() {
-        boolean storageWritable = false;
-        boolean directoryExists = false;
-
-        // check storage state
-        StorageState storageState = getExternalStorageState();
-        if (storageState == StorageState.WRITEABLE) {
-            storageWritable = true;
-        } else {
-            Timber.e("External storage not writable.");
+    /**
+     * Free bytes of the volume media are stored on. Touches the filesystem, call it off the main
+     * thread.
+     */
+    public static long getFreeBytes() {
+        File directory = sMediaDirectory;
+        // the media directory may not have been created yet
+        File existing = directory.exists() ? directory : directory.getParentFile();
+        try {
+            return new StatFs(existing.getPath()).getAvailableBytes();
+        } catch (IllegalArgumentException ex) {
+            Timber.e(ex, "Couldn't stat %s", existing);
+            return 0;
         }
+    }
 
-        // check media container folder and create if needed
-        if (KATSUNA_CAMERA_DIRECTORY.exists()) {
-            directoryExists = true;
-        } else {
-            try {
-                tryToCreateDirectory(KATSUNA_CAMERA_DIRECTORY);
-                directoryExists = true;
-            } catch (IOException ex) {
-                Timber.e("Couldn't create KATSUNA_CAMERA_DIRECTORY.");
-            }
+    /**
+     * Creates the media directory if needed. Touches the filesystem, call it off the main thread.
+     *
+     * @return true if the directory exists
+     */
+    public static boolean ensureMediaDirectory() {
+        File directory = sMediaDirectory;
+        try {
+            tryToCreateDirectory(directory);
+            sCheckedDirectory = directory;
+            return true;
+        } catch (IOException ex) {
+            sCheckedDirectory = null;
+            Timber.e("Couldn't create KATSUNA_CAMERA_DIRECTORY.");
+            return false;
         }
-
-        return storageWritable && directoryExists;
     }
 
-    private enum StorageState {NOT_AVAILABLE, WRITEABLE, READ_ONLY}
-
-    private static StorageState getExternalStorageState() {
-        StorageState result = StorageState.NOT_AVAILABLE;
-        String state = Environment.getExternalStorageState();
+    public static StorageSnapshot.State getExternalStorageState() {
+        String state = Environment.getExternalStorageState(sMediaDirectory);
         if (Environment.MEDIA_MOUNTED.equals(state)) {
-            return StorageState.WRITEABLE;
+            return StorageSnapshot.State.WRITEABLE;
         } else if (Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
-            return StorageState.READ_ONLY;
+            return StorageSnapshot.State.READ_ONLY;
         }
-        return result;
+        return StorageSnapshot.State.NOT_AVAILABLE;
     }
 }
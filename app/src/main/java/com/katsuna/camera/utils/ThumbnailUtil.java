@@ -0,0 +1,199 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.utils;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.media.ExifInterface;
+import android.media.ThumbnailUtils;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import timber.log.Timber;
+
+/**
+ * Small previews of captured media.
+ */
+public class ThumbnailUtil {
+
+    /**
+     * Longest side of the thumbnails, in pixels.
+     */
+    public static final int THUMBNAIL_SIZE = 256;
+
+    /**
+     * Builds a thumbnail of a JPEG that is still in memory, from its EXIF thumbnail if it has one
+     * or else from a subsampled decode. The buffer is left untouched.
+     *
+     * @return null if the JPEG can't be decoded
+     */
+    @Nullable
+    public static Bitmap fromJpeg(@NonNull ByteBuffer jpeg) {
+        long start = PipelineTrace.now();
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        Bitmap bitmap = null;
+        try {
+            ExifInterface exif = new ExifInterface(new ByteBufferInputStream(jpeg));
+            orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+            // getThumbnailBitmap() would need API 26
+            byte[] thumbnail = exif.getThumbnail();
+            if (thumbnail != null) {
+                bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Timber.w(ex, "Couldn't read EXIF");
+        }
+
+        if (bitmap == null) {
+            bitmap = decodeSubsampled(jpeg);
+        }
+        if (bitmap == null) return null;
+
+        bitmap = rotate(bitmap, orientation);
+        PipelineTrace.instance().record(PipelineTrace.Stage.THUMBNAIL_DECODE, start);
+        return bitmap;
+    }
+
+    /**
+     * Builds a thumbnail of a recorded video from one of its frames. Reads the file, call it off
+     * the main thread.
+     *
+     * @return null if no frame can be decoded
+     */
+    @Nullable
+    public static Bitmap fromVideo(@NonNull File video) {
+        long start = PipelineTrace.now();
+        Bitmap frame = ThumbnailUtils.createVideoThumbnail(video.getPath(),
+                MediaStore.Video.Thumbnails.MINI_KIND);
+        if (frame == null) return null;
+
+        float scale = THUMBNAIL_SIZE / (float) Math.max(frame.getWidth(), frame.getHeight());
+        Bitmap bitmap = frame;
+        if (scale < 1) {
+            bitmap = Bitmap.createScaledBitmap(frame, Math.round(frame.getWidth() * scale),
+                    Math.round(frame.getHeight() * scale), true);
+            frame.recycle();
+        }
+        PipelineTrace.instance().record(PipelineTrace.Stage.THUMBNAIL_DECODE, start);
+        return bitmap;
+    }
+
+    private static Bitmap decodeSubsampled(ByteBuffer jpeg) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg), null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        int sampleSize = 1;
+        int longest = Math.max(options.outWidth, options.outHeight);
+        while (longest / (sampleSize * 2) >= THUMBNAIL_SIZE) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(jpeg), null, options);
+    }
+
+    private static Bitmap rotate(Bitmap bitmap, int orientation) {
+        int degrees;
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                degrees = 90;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                degrees = 180;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                degrees = 270;
+                break;
+            default:
+                return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix,
+                true);
+    }
+
+    /**
+     * Shows the thumbnail in place of the top drawable of a button, at the size of that drawable.
+     * Restores the original drawable when the thumbnail is null.
+     */
+    public static void applyToButton(@NonNull TextView button, @Nullable Bitmap thumbnail,
+                                     @NonNull Drawable original) {
+        Drawable top = original;
+        if (thumbnail != null) {
+            Resources resources = button.getResources();
+            top = new BitmapDrawable(resources, thumbnail);
+            int size = Math.max(original.getIntrinsicWidth(), original.getIntrinsicHeight());
+            top.setBounds(0, 0, size, size);
+        } else {
+            top.setBounds(0, 0, original.getIntrinsicWidth(), original.getIntrinsicHeight());
+        }
+        button.setCompoundDrawablesRelative(null, top, null, null);
+    }
+
+    /**
+     * Reads a buffer from its current position without moving it.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer.duplicate();
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] bytes, int offset, int length) {
+            if (!mBuffer.hasRemaining()) return -1;
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.min(Math.max(n, 0), mBuffer.remaining());
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
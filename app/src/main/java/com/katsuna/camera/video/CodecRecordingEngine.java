@@ -0,0 +1,495 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaRecorder;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import timber.log.Timber;
+
+/**
+ * {@link RecordingEngine} with an H.264 {@link MediaCodec} fed by the persistent input surface,
+ * an AAC {@link MediaCodec} fed from an {@link AudioRecord} and a {@link MediaMuxer}. Each encoder
+ * is drained by an {@link EncoderDrainer} on its own thread into an {@link InterleavingMuxer}, so
+ * frame counts, encode latency and muxer write times end up in {@link #getStats()}.
+ * <p>
+ * If the microphone can't be opened the video is recorded without sound.
+ * <p>
+ * With a {@link SegmentListener} the muxer rolls over to a new file at the first video key frame
+ * past the segment limits. Finished segments are finalized on a separate thread so the encoders
+ * keep draining meanwhile.
+ */
+public class CodecRecordingEngine implements RecordingEngine {
+
+    private static final String TAG = "CodecRecordingEngine";
+
+    private static final int I_FRAME_INTERVAL_SECONDS = 1;
+    static final int AUDIO_SAMPLE_RATE = 44100;
+    static final int AUDIO_BIT_RATE = 128000;
+    private static final int AUDIO_CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
+    private static final int AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int AUDIO_BYTES_PER_FRAME = 2;
+    private static final long DEQUEUE_TIMEOUT_US = TimeUnit.MILLISECONDS.toMicros(10);
+    /**
+     * How long {@link #stop()} waits for each encoder to flush.
+     */
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    private final ExecutorService mSegmentFinalizer = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "SegmentFinalizer"));
+    private Config mConfig;
+    private MediaCodec mVideoCodec;
+    private MediaCodec mAudioCodec;
+    private AudioRecord mAudioRecord;
+    private InterleavingMuxer<MediaFormat> mMuxer;
+    private volatile SegmentListener mSegmentListener;
+    private RecordingStats mStats = new RecordingStats();
+    private EncoderDrainer<MediaFormat> mVideoDrainer;
+    private EncoderDrainer<MediaFormat> mAudioDrainer;
+    private Thread mVideoThread;
+    private Thread mAudioDrainThread;
+    private Thread mAudioFeedThread;
+    private volatile boolean mRecording;
+
+    @NonNull
+    @Override
+    public Type getType() {
+        return Type.CODEC;
+    }
+
+    @Override
+    public void setSegmentListener(@Nullable SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    @Override
+    public void prepare(@NonNull Config config) throws IOException {
+        mConfig = config;
+        mStats = new RecordingStats();
+        try {
+            mVideoCodec = createVideoCodec(config);
+            createAudio();
+        } catch (IOException | RuntimeException ex) {
+            reset();
+            throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
+        }
+    }
+
+    private MuxerSink createSink(File file) throws IOException {
+        MediaMuxer muxer = new MediaMuxer(file.getAbsolutePath(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        muxer.setOrientationHint(mConfig.mOrientationHint);
+        return new MuxerSink(muxer, file);
+    }
+
+    private static long saturatedMillisToMicros(long millis) {
+        return millis >= Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : millis * 1000;
+    }
+
+    private final InterleavingMuxer.Rollover<MediaFormat> mRollover =
+            new InterleavingMuxer.Rollover<MediaFormat>() {
+                @Nullable
+                @Override
+                public InterleavingMuxer.Sink<MediaFormat> openNextSink() {
+                    SegmentListener listener = mSegmentListener;
+                    if (listener == null) return null;
+                    try {
+                        return createSink(listener.onNextSegment());
+                    } catch (IOException | RuntimeException ex) {
+                        Timber.tag(TAG).e(ex, "Could not open the next segment");
+                        return null;
+                    }
+                }
+
+                @Override
+                public void finishSink(@NonNull InterleavingMuxer.Sink<MediaFormat> sink,
+                                       long durationUs, long bytes) {
+                    MuxerSink finished = (MuxerSink) sink;
+                    mSegmentFinalizer.execute(() -> {
+                        try {
+                            finished.stop();
+                        } catch (IllegalStateException ex) {
+                            Timber.tag(TAG).e(ex, "Could not finalize %s", finished.mFile);
+                            return;
+                        } finally {
+                            finished.release();
+                        }
+                        onSegmentFinished(finished.mFile, durationUs);
+                    });
+                }
+            };
+
+    private void onSegmentFinished(File file, long durationUs) {
+        SegmentListener listener = mSegmentListener;
+        if (listener != null) {
+            listener.onSegmentFinished(file, TimeUnit.MICROSECONDS.toMillis(durationUs));
+        }
+    }
+
+    private static MediaCodec createVideoCodec(Config config) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+                config.mWidth, config.mHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS);
+
+        MediaCodec codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.setInputSurface(config.mInputSurface);
+        } catch (RuntimeException ex) {
+            codec.release();
+            throw ex;
+        }
+        return codec;
+    }
+
+    private void createAudio() {
+        int minBuffer = AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE, AUDIO_CHANNEL_CONFIG,
+                AUDIO_ENCODING);
+        if (minBuffer <= 0) {
+            Timber.tag(TAG).w("No audio input, recording without sound");
+            return;
+        }
+        AudioRecord audioRecord = null;
+        MediaCodec audioCodec = null;
+        try {
+            audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, AUDIO_SAMPLE_RATE,
+                    AUDIO_CHANNEL_CONFIG, AUDIO_ENCODING, minBuffer * 2);
+            if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                throw new IllegalStateException("audio record not initialized");
+            }
+
+            MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                    AUDIO_SAMPLE_RATE, 1);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                    MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, minBuffer);
+            audioCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            audioCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            mAudioRecord = audioRecord;
+            mAudioCodec = audioCodec;
+        } catch (IOException | RuntimeException ex) {
+            Timber.tag(TAG).w(ex, "Audio setup failed, recording without sound");
+            if (audioCodec != null) {
+                audioCodec.release();
+            }
+            if (audioRecord != null) {
+                audioRecord.release();
+            }
+        }
+    }
+
+    /**
+     * Creates the output file, which the muxer needs before the encoders start.
+     */
+    @Override
+    public void start(@NonNull File output) throws IOException {
+        int trackCount = mAudioCodec != null ? 2 : 1;
+        mMuxer = new InterleavingMuxer<>(createSink(output), trackCount, mStats);
+        if (mSegmentListener != null) {
+            mMuxer.setRollover(0, mConfig.mMaxSegmentBytes,
+                    saturatedMillisToMicros(mConfig.mMaxSegmentDurationMillis), mRollover);
+        }
+
+        mVideoCodec.start();
+        mVideoDrainer = new EncoderDrainer<>("video", new CodecOutput(mVideoCodec), mMuxer, 0,
+                (sample, nowNanos) -> mStats.onFrameOut(sample.getPresentationTimeUs(), nowNanos));
+        mVideoThread = new Thread(mVideoDrainer, "VideoEncoderDrain");
+
+        if (mAudioCodec != null) {
+            mAudioCodec.start();
+            mAudioRecord.startRecording();
+            mAudioDrainer = new EncoderDrainer<>("audio", new CodecOutput(mAudioCodec), mMuxer, 1,
+                    (sample, nowNanos) -> mStats.onAudioSampleOut());
+            mAudioDrainThread = new Thread(mAudioDrainer, "AudioEncoderDrain");
+            mAudioFeedThread = new Thread(this::feedAudio, "AudioEncoderFeed");
+        }
+
+        mRecording = true;
+        mVideoThread.start();
+        if (mAudioCodec != null) {
+            mAudioDrainThread.start();
+            mAudioFeedThread.start();
+        }
+    }
+
+    /**
+     * Moves microphone samples into the audio encoder until the recording stops, stamping them
+     * in the clock of the camera timestamps so the tracks line up.
+     */
+    private void feedAudio() {
+        int timebase = mConfig.mRealtimeTimestamps ? AudioTimestamp.TIMEBASE_BOOTTIME
+                : AudioTimestamp.TIMEBASE_MONOTONIC;
+        AudioTimestamp timestamp = new AudioTimestamp();
+        long framesRead = 0;
+        try {
+            while (true) {
+                boolean recording = mRecording;
+                int index = mAudioCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                if (index < 0) {
+                    // keep waiting for a buffer even when stopping, the end of stream must be
+                    // queued or the audio drainer never finishes
+                    continue;
+                }
+                long pts = presentationTimeUs(timestamp, timebase, framesRead);
+                if (!recording) {
+                    mAudioCodec.queueInputBuffer(index, 0, 0, pts,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    break;
+                }
+                ByteBuffer buffer = mAudioCodec.getInputBuffer(index);
+                int read = buffer == null ? 0 : mAudioRecord.read(buffer, buffer.remaining());
+                if (read < 0) {
+                    Timber.tag(TAG).w("audio read failed: %d", read);
+                    read = 0;
+                }
+                mAudioCodec.queueInputBuffer(index, 0, read, pts, 0);
+                framesRead += read / AUDIO_BYTES_PER_FRAME;
+            }
+        } catch (RuntimeException ex) {
+            Timber.tag(TAG).e(ex, "audio feed failed");
+        }
+    }
+
+    private long presentationTimeUs(AudioTimestamp timestamp, int timebase, long frame) {
+        long nanos;
+        if (mAudioRecord.getTimestamp(timestamp, timebase) == AudioRecord.SUCCESS) {
+            nanos = timestamp.nanoTime + (frame - timestamp.framePosition)
+                    * TimeUnit.SECONDS.toNanos(1) / AUDIO_SAMPLE_RATE;
+        } else {
+            // no timestamp yet, the samples being read are about as old as the read itself
+            nanos = mConfig.mRealtimeTimestamps ? SystemClock.elapsedRealtimeNanos()
+                    : System.nanoTime();
+        }
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public void stop() {
+        mRecording = false;
+        try {
+            if (mAudioFeedThread != null) {
+                join(mAudioFeedThread, null);
+                mAudioRecord.stop();
+            }
+            mVideoCodec.signalEndOfInputStream();
+            join(mVideoThread, mVideoDrainer);
+            if (mAudioDrainThread != null) {
+                join(mAudioDrainThread, mAudioDrainer);
+            }
+            mMuxer.stop();
+            awaitSegmentFinalizer();
+            MuxerSink last = (MuxerSink) mMuxer.getSink();
+            onSegmentFinished(last.mFile, mMuxer.getSegmentDurationUs());
+        } catch (RuntimeException ex) {
+            discardCurrentFile();
+            throw ex;
+        } finally {
+            mStats.onFinished();
+            releaseCodecs();
+        }
+    }
+
+    /**
+     * Waits for the segments that were rolled over to be finalized, so they are reported before
+     * the last one.
+     */
+    private void awaitSegmentFinalizer() {
+        try {
+            mSegmentFinalizer.submit(() -> { }).get(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            Timber.tag(TAG).w(ex, "Segments still being finalized");
+        }
+    }
+
+    private void discardCurrentFile() {
+        File file = ((MuxerSink) mMuxer.getSink()).mFile;
+        try {
+            mMuxer.release();
+        } catch (IllegalStateException ex) {
+            Timber.tag(TAG).w(ex, "muxer release failed");
+        }
+        if (file.exists() && !file.delete()) {
+            Timber.tag(TAG).w("Could not delete unusable %s", file);
+        }
+    }
+
+    private static void join(Thread thread, @Nullable EncoderDrainer<?> drainer) {
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+            if (thread.isAlive() && drainer != null) {
+                Timber.tag(TAG).w("%s did not reach the end of stream", thread.getName());
+                drainer.cancel();
+                thread.join(STOP_TIMEOUT_MS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void reset() {
+        mRecording = false;
+        releaseCodecs();
+        if (mMuxer != null) {
+            try {
+                mMuxer.release();
+            } catch (IllegalStateException ex) {
+                Timber.tag(TAG).w(ex, "muxer release failed");
+            }
+            mMuxer = null;
+        }
+        mVideoDrainer = null;
+        mAudioDrainer = null;
+        mVideoThread = null;
+        mAudioDrainThread = null;
+        mAudioFeedThread = null;
+    }
+
+    private void releaseCodecs() {
+        if (mVideoCodec != null) {
+            mVideoCodec.release();
+            mVideoCodec = null;
+        }
+        if (mAudioCodec != null) {
+            mAudioCodec.release();
+            mAudioCodec = null;
+        }
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+
+    @Override
+    public void release() {
+        reset();
+        mSegmentFinalizer.shutdown();
+    }
+
+    @Override
+    public void onFrameSubmitted(long timestampNanos) {
+        mStats.onFrameIn(TimeUnit.NANOSECONDS.toMicros(timestampNanos), System.nanoTime());
+    }
+
+    @NonNull
+    @Override
+    public RecordingStats getStats() {
+        return mStats;
+    }
+
+    private static class CodecOutput implements EncoderDrainer.Codec<MediaFormat> {
+        private final MediaCodec mCodec;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        CodecOutput(MediaCodec codec) {
+            mCodec = codec;
+        }
+
+        @Override
+        public int dequeueOutputBuffer(@NonNull EncodedSample sample, long timeoutUs) {
+            int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+            if (index >= 0) {
+                sample.set(mInfo.offset, mInfo.size, mInfo.presentationTimeUs, mInfo.flags);
+            }
+            return index;
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mCodec.getOutputBuffer(index);
+        }
+
+        @NonNull
+        @Override
+        public MediaFormat getOutputFormat() {
+            return mCodec.getOutputFormat();
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            mCodec.releaseOutputBuffer(index, false);
+        }
+    }
+
+    private static class MuxerSink implements InterleavingMuxer.Sink<MediaFormat> {
+        private final MediaMuxer mMuxer;
+        private final File mFile;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        MuxerSink(MediaMuxer muxer, File file) {
+            mMuxer = muxer;
+            mFile = file;
+        }
+
+        @Override
+        public int addTrack(@NonNull MediaFormat format) {
+            return mMuxer.addTrack(format);
+        }
+
+        @Override
+        public void start() {
+            mMuxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer data,
+                                    @NonNull EncodedSample sample) {
+            mInfo.set(sample.getOffset(), sample.getSize(), sample.getPresentationTimeUs(),
+                    sample.getFlags());
+            mMuxer.writeSampleData(track, data, mInfo);
+        }
+
+        @Override
+        public void stop() {
+            mMuxer.stop();
+        }
+
+        @Override
+        public void release() {
+            mMuxer.release();
+        }
+    }
+}
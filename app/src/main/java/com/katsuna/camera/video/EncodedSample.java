@@ -0,0 +1,78 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import static android.media.MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+import static android.media.MediaCodec.BUFFER_FLAG_KEY_FRAME;
+
+/**
+ * Metadata of an encoded buffer, the plain java counterpart of
+ * {@link android.media.MediaCodec.BufferInfo}. Flags are the {@code MediaCodec.BUFFER_FLAG_*}
+ * values.
+ */
+public class EncodedSample {
+
+    int mOffset;
+    int mSize;
+    long mPresentationTimeUs;
+    int mFlags;
+
+    public EncodedSample() {
+    }
+
+    public EncodedSample(int offset, int size, long presentationTimeUs, int flags) {
+        set(offset, size, presentationTimeUs, flags);
+    }
+
+    public void set(int offset, int size, long presentationTimeUs, int flags) {
+        mOffset = offset;
+        mSize = size;
+        mPresentationTimeUs = presentationTimeUs;
+        mFlags = flags;
+    }
+
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public boolean isKeyFrame() {
+        return (mFlags & BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isCodecConfig() {
+        return (mFlags & BUFFER_FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean isEndOfStream() {
+        return (mFlags & BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+import static android.media.MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED;
+import static android.media.MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+import static android.media.MediaCodec.INFO_TRY_AGAIN_LATER;
+
+/**
+ * Moves the output of one encoder into an {@link InterleavingMuxer} track, on the thread that
+ * runs it, until the encoder signals the end of the stream or {@link #cancel()} is called.
+ *
+ * @param <F> the track format, {@link android.media.MediaFormat} on the device
+ */
+public class EncoderDrainer<F> implements Runnable {
+
+    private static final String TAG = "EncoderDrainer";
+
+    private static final long DEQUEUE_TIMEOUT_US = TimeUnit.MILLISECONDS.toMicros(10);
+
+    /**
+     * The output side of an encoder, {@link android.media.MediaCodec} on the device. Return
+     * values of {@link #dequeueOutputBuffer} follow {@code MediaCodec}.
+     */
+    public interface Codec<F> {
+        int dequeueOutputBuffer(@NonNull EncodedSample sample, long timeoutUs);
+
+        @Nullable
+        ByteBuffer getOutputBuffer(int index);
+
+        @NonNull
+        F getOutputFormat();
+
+        void releaseOutputBuffer(int index);
+    }
+
+    /**
+     * Told about every sample leaving the encoder, before it is queued to the muxer.
+     */
+    public interface Listener {
+        void onSample(@NonNull EncodedSample sample, long nowNanos);
+    }
+
+    private final String mName;
+    private final Codec<F> mCodec;
+    private final InterleavingMuxer<F> mMuxer;
+    private final int mTrack;
+    private final Listener mListener;
+    private final EncodedSample mSample = new EncodedSample();
+    private volatile boolean mCancelled;
+    private boolean mEnded;
+
+    public EncoderDrainer(@NonNull String name, @NonNull Codec<F> codec,
+                          @NonNull InterleavingMuxer<F> muxer, int track,
+                          @NonNull Listener listener) {
+        mName = name;
+        mCodec = codec;
+        mMuxer = muxer;
+        mTrack = track;
+        mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mCancelled && drainOnce()) {
+                // keep draining
+            }
+        } catch (RuntimeException ex) {
+            Timber.tag(TAG).e(ex, "%s drain failed", mName);
+        } finally {
+            if (!mEnded) {
+                mMuxer.endTrack(mTrack);
+            }
+        }
+    }
+
+    /**
+     * Handles one dequeue of the encoder output.
+     *
+     * @return false once the end of the stream was reached
+     */
+    boolean drainOnce() {
+        int index = mCodec.dequeueOutputBuffer(mSample, DEQUEUE_TIMEOUT_US);
+        if (index == INFO_TRY_AGAIN_LATER || index == INFO_OUTPUT_BUFFERS_CHANGED) {
+            return true;
+        }
+        if (index == INFO_OUTPUT_FORMAT_CHANGED) {
+            F format = mCodec.getOutputFormat();
+            Timber.tag(TAG).d("%s output format %s", mName, format);
+            mMuxer.setFormat(mTrack, format);
+            return true;
+        }
+        if (index < 0) {
+            Timber.tag(TAG).w("%s unexpected dequeue result %d", mName, index);
+            return true;
+        }
+
+        try {
+            ByteBuffer data = mCodec.getOutputBuffer(index);
+            if (data != null && mSample.getSize() > 0 && !mSample.isCodecConfig()) {
+                mListener.onSample(mSample, System.nanoTime());
+                mMuxer.writeSample(mTrack, data, mSample);
+            }
+        } finally {
+            mCodec.releaseOutputBuffer(index);
+        }
+
+        if (mSample.isEndOfStream()) {
+            mEnded = true;
+            mMuxer.endTrack(mTrack);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops draining without waiting for the end of the stream, for encoders that never send it.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+}
@@ -0,0 +1,444 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+
+/**
+ * Writes the samples of several encoders to one {@link Sink} in presentation time order.
+ * <p>
+ * The sink is started once every track has its format, samples arriving before that are held.
+ * A track still without a format once {@link #MAX_FORMAT_WAIT_US} of samples are held is left
+ * out, so a stalled encoder can't hold the others in memory for the whole recording.
+ * After that a sample is written once every open track has a sample queued, so the track it
+ * belongs to can't produce an earlier one anymore. A track that falls more than
+ * {@link #MAX_SKEW_US} behind doesn't hold the others back. Timestamps that go backwards within a
+ * track are moved forward, since muxers reject them.
+ * <p>
+ * With a {@link Rollover} the output is split into segments: once a segment reaches its size or
+ * duration limit, the next key frame of the rollover track starts a new sink, so every segment
+ * plays on its own and no sample is lost at the cut.
+ *
+ * @param <F> the track format, {@link android.media.MediaFormat} on the device
+ */
+public class InterleavingMuxer<F> {
+
+    private static final String TAG = "InterleavingMuxer";
+
+    /**
+     * Longest stretch of samples held back waiting for a slower track.
+     */
+    static final long MAX_SKEW_US = TimeUnit.MILLISECONDS.toMicros(500);
+
+    /**
+     * Longest stretch of samples held before the sink starts without the tracks missing a format.
+     */
+    static final long MAX_FORMAT_WAIT_US = TimeUnit.SECONDS.toMicros(2);
+
+    /**
+     * Copy buffers kept for reuse once their sample is written.
+     */
+    private static final int MAX_SPARE_BUFFERS = 16;
+
+    /**
+     * Destination of the interleaved samples, {@link android.media.MediaMuxer} on the device.
+     */
+    public interface Sink<F> {
+        int addTrack(@NonNull F format);
+
+        void start();
+
+        void writeSampleData(int track, @NonNull ByteBuffer data, @NonNull EncodedSample sample);
+
+        void stop();
+
+        void release();
+    }
+
+    /**
+     * Provides the sinks of the following segments and takes over the finished ones.
+     */
+    public interface Rollover<F> {
+        /**
+         * @return null to keep writing the current segment
+         */
+        @Nullable
+        Sink<F> openNextSink();
+
+        /**
+         * A segment is complete. Stopping and releasing {@code sink} is up to the callee, which
+         * may do it on another thread.
+         */
+        void finishSink(@NonNull Sink<F> sink, long durationUs, long bytes);
+    }
+
+    private final RecordingStats mStats;
+    private final List<Track<F>> mTracks;
+    private final ArrayDeque<ByteBuffer> mSpareBuffers = new ArrayDeque<>();
+    private Sink<F> mSink;
+    private boolean mStarted;
+    private boolean mStopped;
+    private boolean mReleased;
+
+    private Rollover<F> mRollover;
+    private int mRolloverTrack;
+    private long mMaxSegmentBytes;
+    private long mMaxSegmentDurationUs;
+    private long mSegmentBytes;
+    private long mSegmentStartUs = Long.MIN_VALUE;
+    private long mSegmentEndUs;
+
+    /**
+     * @param trackCount the tracks that will be added, the sink starts when all of them are
+     */
+    public InterleavingMuxer(@NonNull Sink<F> sink, int trackCount, @NonNull RecordingStats stats) {
+        mSink = sink;
+        mStats = stats;
+        mTracks = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            mTracks.add(new Track<F>());
+        }
+    }
+
+    /**
+     * Splits the output into segments of at most about {@code maxBytes} and
+     * {@code maxDurationUs}. A segment may run over by up to one key frame interval.
+     *
+     * @param track the track whose key frames start the segments, the video track
+     */
+    public synchronized void setRollover(int track, long maxBytes, long maxDurationUs,
+                                         @NonNull Rollover<F> rollover) {
+        mRolloverTrack = track;
+        mMaxSegmentBytes = maxBytes;
+        mMaxSegmentDurationUs = maxDurationUs;
+        mRollover = rollover;
+    }
+
+    /**
+     * Declares the format of a track.
+     *
+     * @param track index in [0, trackCount)
+     */
+    public synchronized void setFormat(int track, @NonNull F format) {
+        Track<F> t = mTracks.get(track);
+        if (t.mLeftOut) return;
+        if (t.mFormat != null) {
+            throw new IllegalStateException("format of track " + track + " already set");
+        }
+        t.mFormat = format;
+
+        for (Track<F> other : mTracks) {
+            if (other.mFormat == null) return;
+        }
+        start();
+    }
+
+    /**
+     * Starts the sink with the tracks that have a format, the others are left out.
+     */
+    private void start() {
+        int count = 0;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track<F> t = mTracks.get(i);
+            if (t.mFormat == null) {
+                Timber.tag(TAG).w("track %d left out, no format after %d us", i,
+                        MAX_FORMAT_WAIT_US);
+                t.mLeftOut = true;
+                t.mEnded = true;
+                t.mPending.clear();
+            } else {
+                t.mSinkTrack = mSink.addTrack(t.mFormat);
+                count++;
+            }
+        }
+        mSink.start();
+        mStarted = true;
+        Timber.tag(TAG).d("started with %d tracks", count);
+        writeReady();
+    }
+
+    /**
+     * Whether the samples held for the missing formats span too long to keep waiting.
+     */
+    private boolean formatWaitExpired() {
+        long oldest = Long.MAX_VALUE;
+        long newest = Long.MIN_VALUE;
+        boolean anyFormat = false;
+        for (Track<F> t : mTracks) {
+            anyFormat |= t.mFormat != null;
+            Pending head = t.mPending.peekFirst();
+            if (head == null) continue;
+            oldest = Math.min(oldest, head.mSample.mPresentationTimeUs);
+            newest = Math.max(newest, t.mLastQueuedUs);
+        }
+        return anyFormat && oldest != Long.MAX_VALUE && newest - oldest > MAX_FORMAT_WAIT_US;
+    }
+
+    /**
+     * Writes an encoded sample, or queues it if an earlier one may still come. Only a queued
+     * sample is copied, so the encoder buffer can be released right after either way. Codec
+     * config samples are skipped, the muxer takes them from the format.
+     */
+    public synchronized void writeSample(int track, @NonNull ByteBuffer data,
+                                         @NonNull EncodedSample sample) {
+        if (mStopped || sample.isCodecConfig() || sample.getSize() == 0) return;
+
+        Track<F> t = mTracks.get(track);
+        if (t.mEnded) return;
+
+        long pts = sample.getPresentationTimeUs();
+        if (pts <= t.mLastQueuedUs) {
+            pts = t.mLastQueuedUs + 1;
+            t.mAdjusted++;
+        }
+        t.mLastQueuedUs = pts;
+        int flags = sample.getFlags() & ~BUFFER_FLAG_END_OF_STREAM;
+        Pending pending = new Pending(data,
+                new EncodedSample(sample.getOffset(), sample.getSize(), pts, flags));
+        t.mPending.addLast(pending);
+        if (!mStarted && formatWaitExpired()) {
+            start();
+        }
+        writeReady();
+        if (t.mPending.peekLast() == pending) {
+            pending.copyInto(obtainBuffer(sample.getSize()));
+        }
+    }
+
+    /**
+     * No more samples will come for {@code track}.
+     */
+    public synchronized void endTrack(int track) {
+        mTracks.get(track).mEnded = true;
+        writeReady();
+    }
+
+    /**
+     * Writes whatever is still queued and stops the sink.
+     *
+     * @throws IllegalStateException if the sink never started, i.e. nothing was recorded
+     */
+    public synchronized void stop() {
+        if (mStopped) return;
+        mStopped = true;
+        if (!mStarted) {
+            throw new IllegalStateException("stopped before all tracks had a format");
+        }
+        for (Track<F> t : mTracks) {
+            t.mEnded = true;
+        }
+        writeReady();
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (mTracks.get(i).mAdjusted > 0) {
+                Timber.tag(TAG).w("track %d: %d timestamps moved forward", i,
+                        mTracks.get(i).mAdjusted);
+            }
+        }
+        mSink.stop();
+    }
+
+    /**
+     * Releases the current sink, whether it was started or not.
+     */
+    public synchronized void release() {
+        if (mReleased) return;
+        mReleased = true;
+        mSink.release();
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * The sink of the current segment.
+     */
+    @NonNull
+    public synchronized Sink<F> getSink() {
+        return mSink;
+    }
+
+    /**
+     * Time between the first and the last sample written to the current segment.
+     */
+    public synchronized long getSegmentDurationUs() {
+        return mSegmentStartUs == Long.MIN_VALUE ? 0 : mSegmentEndUs - mSegmentStartUs;
+    }
+
+    /**
+     * Samples queued and not yet written, for all tracks.
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (Track<F> t : mTracks) {
+            count += t.mPending.size();
+        }
+        return count;
+    }
+
+    private void writeReady() {
+        if (!mStarted) return;
+
+        while (true) {
+            Track<F> earliest = null;
+            long newest = Long.MIN_VALUE;
+            boolean waiting = false;
+            for (Track<F> t : mTracks) {
+                Pending head = t.mPending.peekFirst();
+                if (head == null) {
+                    // an open track without samples may still produce an earlier one
+                    waiting |= !t.mEnded;
+                    continue;
+                }
+                if (earliest == null || head.mSample.mPresentationTimeUs
+                        < earliest.mPending.getFirst().mSample.mPresentationTimeUs) {
+                    earliest = t;
+                }
+                newest = Math.max(newest, t.mLastQueuedUs);
+            }
+            if (earliest == null) return;
+
+            long earliestUs = earliest.mPending.getFirst().mSample.mPresentationTimeUs;
+            if (waiting && newest - earliestUs <= MAX_SKEW_US) return;
+
+            write(earliest, earliest.mPending.removeFirst());
+        }
+    }
+
+    private void write(Track<F> track, Pending pending) {
+        EncodedSample sample = pending.mSample;
+        if (shouldRollOver(track, sample)) {
+            rollOver();
+        }
+
+        long start = System.nanoTime();
+        mSink.writeSampleData(track.mSinkTrack, pending.mData, sample);
+        mStats.onSampleWritten(sample.mSize, System.nanoTime() - start);
+        if (pending.mCopied && mSpareBuffers.size() < MAX_SPARE_BUFFERS) {
+            mSpareBuffers.addLast(pending.mData);
+        }
+
+        mSegmentBytes += sample.mSize;
+        if (mSegmentStartUs == Long.MIN_VALUE) {
+            mSegmentStartUs = sample.mPresentationTimeUs;
+        }
+        mSegmentEndUs = Math.max(mSegmentEndUs, sample.mPresentationTimeUs);
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        for (Iterator<ByteBuffer> it = mSpareBuffers.iterator(); it.hasNext(); ) {
+            ByteBuffer buffer = it.next();
+            if (buffer.capacity() >= size) {
+                it.remove();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private boolean shouldRollOver(Track<F> track, EncodedSample sample) {
+        if (mRollover == null || mSegmentStartUs == Long.MIN_VALUE || !sample.isKeyFrame()
+                || track != mTracks.get(mRolloverTrack)) {
+            return false;
+        }
+        return mSegmentBytes >= mMaxSegmentBytes
+                || sample.mPresentationTimeUs - mSegmentStartUs >= mMaxSegmentDurationUs;
+    }
+
+    private void rollOver() {
+        Sink<F> next = mRollover.openNextSink();
+        if (next == null) return;
+
+        try {
+            int[] sinkTracks = new int[mTracks.size()];
+            for (int i = 0; i < sinkTracks.length; i++) {
+                Track<F> t = mTracks.get(i);
+                sinkTracks[i] = t.mLeftOut ? -1 : next.addTrack(t.mFormat);
+            }
+            next.start();
+            for (int i = 0; i < sinkTracks.length; i++) {
+                mTracks.get(i).mSinkTrack = sinkTracks[i];
+            }
+        } catch (RuntimeException ex) {
+            Timber.tag(TAG).e(ex, "Could not start the next segment");
+            next.release();
+            return;
+        }
+
+        Sink<F> previous = mSink;
+        mSink = next;
+        mRollover.finishSink(previous, mSegmentEndUs - mSegmentStartUs, mSegmentBytes);
+        Timber.tag(TAG).d("rolled over after %d bytes", mSegmentBytes);
+        mSegmentBytes = 0;
+        mSegmentStartUs = Long.MIN_VALUE;
+        mSegmentEndUs = 0;
+    }
+
+    private static class Track<F> {
+        final ArrayDeque<Pending> mPending = new ArrayDeque<>();
+        F mFormat;
+        int mSinkTrack = -1;
+        boolean mEnded;
+        /**
+         * Had no format when the sink started, its samples are dropped.
+         */
+        boolean mLeftOut;
+        long mLastQueuedUs = Long.MIN_VALUE;
+        int mAdjusted;
+    }
+
+    private static class Pending {
+        ByteBuffer mData;
+        EncodedSample mSample;
+        boolean mCopied;
+
+        Pending(ByteBuffer data, EncodedSample sample) {
+            mData = data;
+            mSample = sample;
+        }
+
+        /**
+         * Moves the data out of the encoder buffer, which is about to be reused.
+         */
+        void copyInto(ByteBuffer copy) {
+            ByteBuffer source = mData.duplicate();
+            source.position(mSample.mOffset);
+            source.limit(mSample.mOffset + mSample.mSize);
+            copy.put(source);
+            copy.flip();
+            mData = copy;
+            mSample = new EncodedSample(0, mSample.mSize, mSample.mPresentationTimeUs,
+                    mSample.mFlags);
+            mCopied = true;
+        }
+    }
+}
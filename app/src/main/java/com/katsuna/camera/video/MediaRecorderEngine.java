@@ -0,0 +1,227 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.media.MediaRecorder;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.katsuna.camera.utils.ApiHelper;
+import com.katsuna.camera.utils.StorageUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * {@link RecordingEngine} on top of {@link MediaRecorder}. Only the frames sent to it are
+ * counted, the encoder is out of sight.
+ * <p>
+ * Segments are split on size only, through {@link MediaRecorder#setNextOutputFile}, which needs
+ * Android O. Older devices record a single file.
+ * <p>
+ * MediaRecorder opens its output when prepared, so the first file is recorded under
+ * {@link StorageUtil#getPendingVideoFile()} and renamed to the name given to
+ * {@link #start(File)} once it is finished.
+ */
+public class MediaRecorderEngine implements RecordingEngine {
+
+    private static final String TAG = "MediaRecorderEngine";
+
+    private final MediaRecorder mMediaRecorder = new MediaRecorder();
+    private RecordingStats mStats = new RecordingStats();
+    private SegmentListener mSegmentListener;
+    private File mPendingFile;
+    private File mFirstFile;
+    private File mCurrentFile;
+    private File mNextFile;
+    private long mSegmentStartedAt;
+
+    @NonNull
+    @Override
+    public Type getType() {
+        return Type.MEDIA_RECORDER;
+    }
+
+    @Override
+    public synchronized void setSegmentListener(@Nullable SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    @Override
+    public void prepare(@NonNull Config config) throws IOException {
+        mStats = new RecordingStats();
+        File pending = StorageUtil.getPendingVideoFile();
+        synchronized (this) {
+            mPendingFile = pending;
+            mFirstFile = null;
+            mCurrentFile = pending;
+            mNextFile = null;
+        }
+        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        mMediaRecorder.setInputSurface(config.mInputSurface);
+        mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        mMediaRecorder.setOutputFile(pending.getAbsolutePath());
+        mMediaRecorder.setVideoEncodingBitRate(config.mBitRate);
+        mMediaRecorder.setVideoFrameRate(config.mFrameRate);
+        mMediaRecorder.setVideoSize(config.mWidth, config.mHeight);
+        mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+        mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+        // same audio as the codec engine, so the bitrate policy's estimates hold for both
+        mMediaRecorder.setAudioEncodingBitRate(CodecRecordingEngine.AUDIO_BIT_RATE);
+        mMediaRecorder.setAudioSamplingRate(CodecRecordingEngine.AUDIO_SAMPLE_RATE);
+        mMediaRecorder.setOrientationHint(config.mOrientationHint);
+        if (mSegmentListener != null && ApiHelper.isOOrHigher()
+                && config.mMaxSegmentBytes != Long.MAX_VALUE) {
+            mMediaRecorder.setMaxFileSize(config.mMaxSegmentBytes);
+            mMediaRecorder.setOnInfoListener(this::onInfo);
+        } else {
+            mMediaRecorder.setOnInfoListener(null);
+        }
+        mMediaRecorder.prepare();
+    }
+
+    private void onInfo(MediaRecorder recorder, int what, int extra) {
+        switch (what) {
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING:
+                prepareNextFile();
+                break;
+            case MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+                onNextFileStarted();
+                break;
+            case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                Timber.tag(TAG).w("Recording stopped at the size limit");
+                break;
+        }
+    }
+
+    private synchronized void prepareNextFile() {
+        if (mNextFile != null || mSegmentListener == null) return;
+
+        try {
+            File next = mSegmentListener.onNextSegment();
+            mMediaRecorder.setNextOutputFile(next);
+            mNextFile = next;
+        } catch (IOException | IllegalStateException ex) {
+            Timber.tag(TAG).e(ex, "No next segment, the recording stops at the size limit");
+        }
+    }
+
+    private synchronized void onNextFileStarted() {
+        if (mNextFile == null) return;
+
+        File finished = name(mCurrentFile);
+        long now = SystemClock.elapsedRealtime();
+        long durationMillis = now - mSegmentStartedAt;
+        mCurrentFile = mNextFile;
+        mNextFile = null;
+        mSegmentStartedAt = now;
+        if (mSegmentListener != null) {
+            mSegmentListener.onSegmentFinished(finished, durationMillis);
+        }
+    }
+
+    /**
+     * Moves a finished file recorded under the pending name to the name of the recording.
+     */
+    private File name(File file) {
+        if (!file.equals(mPendingFile) || mFirstFile == null) return file;
+
+        if (!file.renameTo(mFirstFile)) {
+            Timber.tag(TAG).e("Could not rename %s to %s", file, mFirstFile);
+            return file;
+        }
+        return mFirstFile;
+    }
+
+    @Override
+    public void start(@NonNull File output) {
+        synchronized (this) {
+            mFirstFile = output;
+            mSegmentStartedAt = SystemClock.elapsedRealtime();
+        }
+        mMediaRecorder.start();
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mMediaRecorder.stop();
+            synchronized (this) {
+                File finished = name(mCurrentFile);
+                if (mSegmentListener != null) {
+                    mSegmentListener.onSegmentFinished(finished,
+                            SystemClock.elapsedRealtime() - mSegmentStartedAt);
+                }
+            }
+        } catch (RuntimeException ex) {
+            synchronized (this) {
+                if (mCurrentFile.exists() && !mCurrentFile.delete()) {
+                    Timber.tag(TAG).w("Could not delete unusable %s", mCurrentFile);
+                }
+            }
+            throw ex;
+        } finally {
+            discardNextFile();
+        }
+    }
+
+    /**
+     * Deletes a next file that was handed to the recorder but never written.
+     */
+    private synchronized void discardNextFile() {
+        if (mNextFile != null && mNextFile.length() == 0 && !mNextFile.delete()) {
+            Timber.tag(TAG).w("Could not delete unused segment %s", mNextFile);
+        }
+        mNextFile = null;
+    }
+
+    @Override
+    public void reset() {
+        mMediaRecorder.reset();
+        synchronized (this) {
+            // prepared but never recorded to
+            if (mPendingFile != null && mPendingFile.length() == 0 && mPendingFile.exists()
+                    && !mPendingFile.delete()) {
+                Timber.tag(TAG).w("Could not delete unused %s", mPendingFile);
+            }
+            mPendingFile = null;
+        }
+    }
+
+    @Override
+    public void release() {
+        reset();
+        mMediaRecorder.release();
+    }
+
+    @Override
+    public void onFrameSubmitted(long timestampNanos) {
+        mStats.onFrameIn();
+    }
+
+    @NonNull
+    @Override
+    public RecordingStats getStats() {
+        return mStats;
+    }
+}
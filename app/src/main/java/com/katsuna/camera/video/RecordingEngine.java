@@ -0,0 +1,153 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records the frames the camera sends to a persistent input surface, together with the
+ * microphone, into an MPEG-4 file. The same engine is prepared, started, stopped and reset for
+ * each recording and released with the camera.
+ * <p>
+ * A long recording may be split into several files, see {@link Config#setSegmentLimits} and
+ * {@link SegmentListener}.
+ */
+public interface RecordingEngine {
+
+    enum Type {
+        /**
+         * {@link android.media.MediaRecorder}, no insight into the encoder or the muxer.
+         */
+        MEDIA_RECORDER,
+        /**
+         * {@link android.media.MediaCodec} and {@link android.media.MediaMuxer}, reporting
+         * {@link RecordingStats}.
+         */
+        CODEC
+    }
+
+    /**
+     * Supplies the files of a segmented recording and hears about each one that is complete.
+     */
+    interface SegmentListener {
+        /**
+         * Called on a recording thread when the current file is about to fill up.
+         */
+        @NonNull
+        File onNextSegment() throws IOException;
+
+        /**
+         * A file is finalized and can be indexed, including the last one after {@link #stop()}.
+         */
+        void onSegmentFinished(@NonNull File file, long durationMillis);
+    }
+
+    /**
+     * Settings of one recording.
+     */
+    class Config {
+        final Surface mInputSurface;
+        final int mWidth;
+        final int mHeight;
+        final int mBitRate;
+        final int mFrameRate;
+        final int mOrientationHint;
+        final boolean mRealtimeTimestamps;
+        long mMaxSegmentBytes = Long.MAX_VALUE;
+        long mMaxSegmentDurationMillis = Long.MAX_VALUE;
+
+        /**
+         * @param inputSurface       surface created with
+         *                           {@link android.media.MediaCodec#createPersistentInputSurface()}
+         * @param orientationHint    clockwise rotation of the frames in degrees
+         * @param realtimeTimestamps whether the camera timestamps come from
+         *                           {@link android.os.SystemClock#elapsedRealtimeNanos()} rather
+         *                           than {@link System#nanoTime()}
+         */
+        public Config(@NonNull Surface inputSurface, int width, int height, int bitRate,
+                      int frameRate, int orientationHint, boolean realtimeTimestamps) {
+            mInputSurface = inputSurface;
+            mWidth = width;
+            mHeight = height;
+            mBitRate = bitRate;
+            mFrameRate = frameRate;
+            mOrientationHint = orientationHint;
+            mRealtimeTimestamps = realtimeTimestamps;
+        }
+
+        /**
+         * Moves on to a new file once the current one reaches either limit. Engines that can't
+         * split on duration only honour {@code maxBytes}.
+         */
+        public Config setSegmentLimits(long maxBytes, long maxDurationMillis) {
+            mMaxSegmentBytes = maxBytes;
+            mMaxSegmentDurationMillis = maxDurationMillis;
+            return this;
+        }
+    }
+
+    @NonNull
+    Type getType();
+
+    /**
+     * Without a listener the recording goes to a single file.
+     */
+    void setSegmentListener(@Nullable SegmentListener listener);
+
+    /**
+     * Gets the input surface ready for frames.
+     */
+    void prepare(@NonNull Config config) throws IOException;
+
+    /**
+     * @param output the first file of the recording, named when the recording starts rather
+     *               than when the engine was prepared
+     */
+    void start(@NonNull File output) throws IOException;
+
+    /**
+     * @throws RuntimeException if nothing was recorded into the last file, which is deleted then
+     */
+    void stop();
+
+    /**
+     * Back to the state before {@link #prepare}.
+     */
+    void reset();
+
+    void release();
+
+    /**
+     * The camera sent a frame to the input surface.
+     *
+     * @param timestampNanos sensor timestamp of the frame, which becomes its presentation time
+     */
+    void onFrameSubmitted(long timestampNanos);
+
+    /**
+     * Counters of the current or last recording.
+     */
+    @NonNull
+    RecordingStats getStats();
+}
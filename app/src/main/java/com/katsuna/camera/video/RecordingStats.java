@@ -0,0 +1,181 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import com.katsuna.camera.utils.LatencyHistogram;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a single recording: frames handed to the encoder and frames coming out of it, the
+ * time each frame spent in the encoder and the time spent writing samples to the muxer.
+ * Timestamps are passed in by the callers, in nanoseconds of a monotonic clock.
+ */
+public class RecordingStats {
+
+    /**
+     * Samples kept per histogram.
+     */
+    private static final int WINDOW = 512;
+    /**
+     * Frames tracked at most while waiting for them to leave the encoder.
+     */
+    private static final int MAX_IN_FLIGHT = 256;
+    /**
+     * Frames that have not left the encoder this long after a later frame did are dropped.
+     */
+    private static final long DROP_AFTER_US = TimeUnit.SECONDS.toMicros(1);
+
+    private final AtomicLong mFramesIn = new AtomicLong();
+    private final AtomicLong mFramesOut = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mAudioSamplesOut = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mMaxWriteNanos = new AtomicLong();
+    private final LatencyHistogram mEncodeLatency = new LatencyHistogram(WINDOW);
+    private final LatencyHistogram mMuxerWrite = new LatencyHistogram(WINDOW);
+    /**
+     * Submit time of the frames in the encoder, by presentation time.
+     */
+    private final Map<Long, Long> mInFlight = new LinkedHashMap<>();
+
+    /**
+     * A camera frame was sent to the encoder input surface, for encoders that can't be followed.
+     */
+    public void onFrameIn() {
+        mFramesIn.incrementAndGet();
+    }
+
+    /**
+     * A camera frame was sent to the encoder input surface.
+     */
+    public void onFrameIn(long presentationTimeUs, long nowNanos) {
+        mFramesIn.incrementAndGet();
+        synchronized (mInFlight) {
+            mInFlight.put(presentationTimeUs, nowNanos);
+            if (mInFlight.size() > MAX_IN_FLIGHT) {
+                Iterator<Long> it = mInFlight.keySet().iterator();
+                it.next();
+                it.remove();
+                mFramesDropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * An encoded video frame left the encoder. Frames the encoder skipped are counted as dropped
+     * once it is a second past them.
+     */
+    public void onFrameOut(long presentationTimeUs, long nowNanos) {
+        mFramesOut.incrementAndGet();
+        synchronized (mInFlight) {
+            Long inAt = mInFlight.remove(presentationTimeUs);
+            if (inAt != null) {
+                mEncodeLatency.record(nowNanos - inAt);
+            }
+            Iterator<Long> it = mInFlight.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next() >= presentationTimeUs - DROP_AFTER_US) break;
+                it.remove();
+                mFramesDropped.incrementAndGet();
+            }
+        }
+    }
+
+    public void onAudioSampleOut() {
+        mAudioSamplesOut.incrementAndGet();
+    }
+
+    public void onSampleWritten(int bytes, long durationNanos) {
+        mBytesWritten.addAndGet(bytes);
+        mMuxerWrite.record(durationNanos);
+        long max;
+        do {
+            max = mMaxWriteNanos.get();
+        } while (durationNanos > max && !mMaxWriteNanos.compareAndSet(max, durationNanos));
+    }
+
+    /**
+     * The recording ended, frames still in the encoder never made it to the file.
+     */
+    public void onFinished() {
+        synchronized (mInFlight) {
+            mFramesDropped.addAndGet(mInFlight.size());
+            mInFlight.clear();
+        }
+    }
+
+    public long getFramesIn() {
+        return mFramesIn.get();
+    }
+
+    public long getFramesOut() {
+        return mFramesOut.get();
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    public long getAudioSamplesOut() {
+        return mAudioSamplesOut.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /**
+     * The longest single muxer write, a stall of the storage shows up here.
+     */
+    public long getMaxWriteNanos() {
+        return mMaxWriteNanos.get();
+    }
+
+    /**
+     * @see LatencyHistogram#getPercentiles(double...)
+     */
+    public long[] getEncodeLatencyPercentiles(double... percentiles) {
+        return mEncodeLatency.getPercentiles(percentiles);
+    }
+
+    public long[] getMuxerWritePercentiles(double... percentiles) {
+        return mMuxerWrite.getPercentiles(percentiles);
+    }
+
+    @Override
+    public String toString() {
+        long[] encode = getEncodeLatencyPercentiles(50, 95);
+        long[] write = getMuxerWritePercentiles(50, 95);
+        return String.format(Locale.US, "frames in=%d out=%d dropped=%d audio=%d bytes=%d"
+                        + " encode p50=%.1f p95=%.1f ms write p50=%.2f p95=%.2f max=%.1f ms",
+                getFramesIn(), getFramesOut(), getFramesDropped(), getAudioSamplesOut(),
+                getBytesWritten(), toMillis(encode[0]), toMillis(encode[1]), toMillis(write[0]),
+                toMillis(write[1]), toMillis(getMaxWriteNanos()));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,213 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.media.CamcorderProfile;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Range;
+import android.util.Size;
+
+import com.katsuna.camera.data.VideoQuality;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Chooses the video bitrate for a {@link VideoProfile}. The device's own
+ * {@link CamcorderProfile} closest to the size is the reference, scaled by the pixel rate and
+ * by the {@link VideoQuality} tier, then kept within what the H.264 encoder supports. The frame
+ * rate of the profile is lowered if the encoder can't keep up with it.
+ */
+public class VideoBitratePolicy {
+
+    private static final String TAG = "VideoBitratePolicy";
+
+    /**
+     * Bits per pixel of each frame when the camera has no camcorder profile, about what devices
+     * use for 1080p H.264.
+     */
+    private static final double FALLBACK_BITS_PER_PIXEL = 0.14;
+    /**
+     * H.264 needs proportionally fewer bits as the pixel rate grows.
+     */
+    private static final double PIXEL_RATE_EXPONENT = 0.75;
+    private static final int[] PROFILE_QUALITIES = {
+            CamcorderProfile.QUALITY_2160P,
+            CamcorderProfile.QUALITY_1080P,
+            CamcorderProfile.QUALITY_720P,
+            CamcorderProfile.QUALITY_480P,
+    };
+
+    /**
+     * Choices of all tiers, by camera id and profile.
+     */
+    private static final Map<String, Map<VideoQuality, Choice>> sChoices =
+            new ConcurrentHashMap<>();
+
+    public static class Choice {
+        private final int mBitRate;
+        private final int mFrameRate;
+
+        Choice(int bitRate, int frameRate) {
+            mBitRate = bitRate;
+            mFrameRate = frameRate;
+        }
+
+        public int getBitRate() {
+            return mBitRate;
+        }
+
+        public int getFrameRate() {
+            return mFrameRate;
+        }
+
+        /**
+         * Expected file growth including the audio track.
+         */
+        public long getBytesPerMinute() {
+            return (long) (mBitRate + CodecRecordingEngine.AUDIO_BIT_RATE) * 60 / 8;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f Mbps %d fps %.1f MB/min", mBitRate / 1e6,
+                    mFrameRate, getBytesPerMinute() / (1024.0 * 1024.0));
+        }
+    }
+
+    @NonNull
+    public static Choice choose(@NonNull String cameraId, @NonNull VideoProfile videoProfile,
+                                @NonNull VideoQuality quality) {
+        String key = cameraId + ":" + videoProfile;
+        Map<VideoQuality, Choice> choices = sChoices.get(key);
+        if (choices == null) {
+            choices = chooseAll(cameraId, videoProfile.getSize(), videoProfile.getFrameRate());
+            sChoices.put(key, choices);
+        }
+        return choices.get(quality);
+    }
+
+    private static Map<VideoQuality, Choice> chooseAll(String cameraId, Size size,
+                                                       int maxFrameRate) {
+        CamcorderProfile profile = findProfile(cameraId, size);
+        MediaCodecInfo.VideoCapabilities capabilities = findEncoder(size);
+
+        int minBitRate = 1;
+        int maxBitRate = Integer.MAX_VALUE;
+        if (capabilities != null) {
+            try {
+                Range<Double> rates = capabilities.getSupportedFrameRatesFor(size.getWidth(),
+                        size.getHeight());
+                maxFrameRate = Math.min(maxFrameRate, (int) Math.floor(rates.getUpper()));
+            } catch (IllegalArgumentException ex) {
+                Timber.tag(TAG).w("encoder doesn't list %s", size);
+            }
+            minBitRate = capabilities.getBitrateRange().getLower();
+            maxBitRate = capabilities.getBitrateRange().getUpper();
+        }
+
+        int frameRate = maxFrameRate;
+        Map<VideoQuality, Choice> output = new EnumMap<>(VideoQuality.class);
+        for (VideoQuality quality : VideoQuality.values()) {
+            long bitRate = profile == null
+                    ? fallbackBitRate(size.getWidth(), size.getHeight(), frameRate)
+                    : scaledBitRate(profile.videoBitRate, profile.videoFrameWidth,
+                    profile.videoFrameHeight, profile.videoFrameRate, size.getWidth(),
+                    size.getHeight(), frameRate);
+            bitRate = (long) (bitRate * quality.getBitRateFactor());
+            bitRate = Math.max(minBitRate, Math.min(maxBitRate, bitRate));
+            Choice choice = new Choice((int) bitRate, frameRate);
+            output.put(quality, choice);
+            Timber.tag(TAG).i("camera %s %s %s: %s", cameraId, size, quality, choice);
+        }
+        return output;
+    }
+
+    /**
+     * Bitrate of the reference profile carried over to another pixel rate.
+     */
+    static long scaledBitRate(int referenceBitRate, int referenceWidth, int referenceHeight,
+                              int referenceFrameRate, int width, int height, int frameRate) {
+        double referencePixelRate = (double) referenceWidth * referenceHeight * referenceFrameRate;
+        double pixelRate = (double) width * height * frameRate;
+        return Math.round(referenceBitRate
+                * Math.pow(pixelRate / referencePixelRate, PIXEL_RATE_EXPONENT));
+    }
+
+    static long fallbackBitRate(int width, int height, int frameRate) {
+        return Math.round((double) width * height * frameRate * FALLBACK_BITS_PER_PIXEL);
+    }
+
+    /**
+     * The camcorder profile with the pixel count closest to {@code size}.
+     */
+    @Nullable
+    private static CamcorderProfile findProfile(String cameraId, Size size) {
+        int id;
+        try {
+            id = Integer.parseInt(cameraId);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        CamcorderProfile best = null;
+        double bestDistance = Double.MAX_VALUE;
+        long pixels = (long) size.getWidth() * size.getHeight();
+        for (int quality : PROFILE_QUALITIES) {
+            if (!CamcorderProfile.hasProfile(id, quality)) continue;
+
+            CamcorderProfile profile = CamcorderProfile.get(id, quality);
+            long profilePixels = (long) profile.videoFrameWidth * profile.videoFrameHeight;
+            double distance = Math.abs(Math.log((double) profilePixels / pixels));
+            if (distance < bestDistance) {
+                best = profile;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Capabilities of the H.264 encoder the platform picks for {@code size}.
+     */
+    @Nullable
+    static MediaCodecInfo.VideoCapabilities findEncoder(@NonNull Size size) {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+                size.getWidth(), size.getHeight());
+        MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        String name = list.findEncoderForFormat(format);
+        if (name == null) return null;
+
+        for (MediaCodecInfo info : list.getCodecInfos()) {
+            if (info.getName().equals(name)) {
+                return info.getCapabilitiesForType(MediaFormat.MIMETYPE_VIDEO_AVC)
+                        .getVideoCapabilities();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Size;
+
+/**
+ * Recording size and frame rate of a camera, as chosen by {@link VideoProfileSelector}.
+ */
+public class VideoProfile {
+
+    private final Size mSize;
+    private final int mFrameRate;
+
+    public VideoProfile(@NonNull Size size, int frameRate) {
+        mSize = size;
+        mFrameRate = frameRate;
+    }
+
+    @NonNull
+    public Size getSize() {
+        return mSize;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @return null if {@code value} is not a {@link #toString()} output
+     */
+    @Nullable
+    static VideoProfile parse(@Nullable String value) {
+        if (value == null) return null;
+
+        int at = value.indexOf('@');
+        if (at < 0) return null;
+        try {
+            return new VideoProfile(Size.parseSize(value.substring(0, at)),
+                    Integer.parseInt(value.substring(at + 1)));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mSize + "@" + mFrameRate;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.CamcorderProfile;
+import android.media.MediaCodecInfo;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.util.Size;
+
+import com.katsuna.camera.api.CameraCapabilities;
+import com.katsuna.camera.utils.AndroidContext;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Chooses the recording size and frame rate of each camera: the largest of 2160p, 1080p and 720p
+ * at 16:9 that the camera lists for video, has a {@link CamcorderProfile} for, streams at
+ * {@link #MIN_FRAME_RATE} or more and the H.264 encoder accepts. The choice is kept per camera
+ * id and made again when {@link Build#FINGERPRINT} changes, since a system update can change
+ * any of these.
+ */
+public class VideoProfileSelector {
+
+    private static final String TAG = "VideoProfileSelector";
+    private static final String PREFERENCES = "video_profiles";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    private static final int MIN_FRAME_RATE = 24;
+    private static final int MAX_FRAME_RATE = 30;
+    /**
+     * Largest width of the fallback sizes, when no standard size qualifies.
+     */
+    private static final int FALLBACK_MAX_WIDTH = 1080;
+
+    private static final int[][] TIERS = {
+            {CamcorderProfile.QUALITY_2160P, 3840, 2160},
+            {CamcorderProfile.QUALITY_1080P, 1920, 1080},
+            {CamcorderProfile.QUALITY_720P, 1280, 720},
+    };
+
+    private static class Singleton {
+        private static final VideoProfileSelector INSTANCE =
+                new VideoProfileSelector(AndroidContext.instance().get());
+    }
+
+    public static VideoProfileSelector instance() {
+        return Singleton.INSTANCE;
+    }
+
+    private final SharedPreferences mPreferences;
+    private final ConcurrentHashMap<String, VideoProfile> mProfiles = new ConcurrentHashMap<>();
+
+    private VideoProfileSelector(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(mPreferences.getString(KEY_FINGERPRINT, null))) {
+            mPreferences.edit()
+                    .clear()
+                    .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                    .apply();
+        }
+    }
+
+    /**
+     * @throws NullPointerException if the camera has no stream configuration map
+     */
+    @NonNull
+    public VideoProfile select(@NonNull CameraCapabilities capabilities) {
+        String cameraId = capabilities.getCameraId();
+        VideoProfile profile = mProfiles.get(cameraId);
+        if (profile != null) return profile;
+
+        List<Size> sizes = capabilities.getVideoSizes();
+        profile = VideoProfile.parse(mPreferences.getString(cameraId, null));
+        if (profile == null || !sizes.contains(profile.getSize())) {
+            long start = System.nanoTime();
+            profile = choose(capabilities, sizes);
+            Timber.tag(TAG).i("camera %s records %s, chosen in %d ms", cameraId, profile,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            mPreferences.edit().putString(cameraId, profile.toString()).apply();
+        }
+        mProfiles.put(cameraId, profile);
+        return profile;
+    }
+
+    private static VideoProfile choose(CameraCapabilities capabilities, List<Size> sizes) {
+        int id = parseCameraId(capabilities.getCameraId());
+        for (int[] tier : TIERS) {
+            Size size = new Size(tier[1], tier[2]);
+            if (!sizes.contains(size)) continue;
+            if (id >= 0 && !CamcorderProfile.hasProfile(id, tier[0])) {
+                Timber.tag(TAG).d("%s: no camcorder profile", size);
+                continue;
+            }
+
+            int frameRate = getFrameRate(capabilities, size);
+            if (frameRate < MIN_FRAME_RATE) {
+                Timber.tag(TAG).d("%s: camera streams at %d fps only", size, frameRate);
+                continue;
+            }
+
+            MediaCodecInfo.VideoCapabilities encoder = VideoBitratePolicy.findEncoder(size);
+            if (encoder == null || !encoder.areSizeAndRateSupported(size.getWidth(),
+                    size.getHeight(), frameRate)) {
+                Timber.tag(TAG).d("%s@%d: not supported by the encoder", size, frameRate);
+                continue;
+            }
+            return new VideoProfile(size, frameRate);
+        }
+        return chooseFallback(capabilities, sizes);
+    }
+
+    /**
+     * The largest size up to {@link #FALLBACK_MAX_WIDTH} wide, preferring 16:9 to 4:3.
+     */
+    private static VideoProfile chooseFallback(CameraCapabilities capabilities,
+                                               List<Size> sizes) {
+        Size best = null;
+        for (int[] ratio : new int[][]{{16, 9}, {4, 3}}) {
+            for (Size size : sizes) {
+                if (size.getWidth() > FALLBACK_MAX_WIDTH
+                        || size.getWidth() * ratio[1] != size.getHeight() * ratio[0]) {
+                    continue;
+                }
+                if (best == null || (long) size.getWidth() * size.getHeight()
+                        > (long) best.getWidth() * best.getHeight()) {
+                    best = size;
+                }
+            }
+            if (best != null) break;
+        }
+        if (best == null) {
+            Timber.tag(TAG).e("Couldn't find any suitable video size");
+            best = sizes.get(sizes.size() - 1);
+        }
+        return new VideoProfile(best, Math.max(1, getFrameRate(capabilities, best)));
+    }
+
+    private static int getFrameRate(CameraCapabilities capabilities, Size size) {
+        long minFrameDuration = capabilities.getVideoMinFrameDuration(size);
+        if (minFrameDuration <= 0) return MAX_FRAME_RATE;
+
+        long frameRate = TimeUnit.SECONDS.toNanos(1) / minFrameDuration;
+        return (int) Math.min(MAX_FRAME_RATE, frameRate);
+    }
+
+    private static int parseCameraId(String cameraId) {
+        try {
+            return Integer.parseInt(cameraId);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
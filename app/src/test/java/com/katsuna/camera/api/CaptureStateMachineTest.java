@@ -0,0 +1,355 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.api;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static android.hardware.camera2.CameraMetadata.CONTROL_AE_STATE_CONVERGED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AE_STATE_PRECAPTURE;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AE_STATE_SEARCHING;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_ACTIVE_SCAN;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_PASSIVE_FOCUSED;
+import static android.hardware.camera2.CameraMetadata.CONTROL_AF_STATE_PASSIVE_SCAN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays recorded sequences of AF/AE states, one result per preview frame.
+ */
+public class CaptureStateMachineTest {
+
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(33);
+    private static final Integer NONE = null;
+
+    private FakeCallback mCallback;
+    private CaptureStateMachine mMachine;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mCallback = new FakeCallback();
+        mMachine = new CaptureStateMachine(mCallback);
+        mNow = TimeUnit.SECONDS.toNanos(100);
+    }
+
+    @Test
+    public void focusLockedAndExposureConverged_capturesWithoutPrecapture() {
+        mMachine.lockFocus(mNow);
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_ACTIVE_SCAN, CONTROL_AE_STATE_CONVERGED},
+                {CONTROL_AF_STATE_ACTIVE_SCAN, CONTROL_AE_STATE_CONVERGED},
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_CONVERGED},
+        });
+
+        assertEquals(CameraState.TAKEN, mMachine.getState());
+        assertEquals(0, mCallback.mPrecaptures);
+        assertEquals(1, mCallback.mCaptures);
+        assertEquals(0, mMachine.getTimeoutCount());
+    }
+
+    @Test
+    public void exposureNotConverged_runsPrecaptureSequence() {
+        mMachine.lockFocus(mNow);
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_SEARCHING},
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_SEARCHING},
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_PRECAPTURE},
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_PRECAPTURE},
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_CONVERGED},
+        });
+
+        assertEquals(1, mCallback.mPrecaptures);
+        assertEquals(1, mCallback.mCaptures);
+        assertEquals(0, mMachine.getTimeoutCount());
+    }
+
+    @Test
+    public void missingStates_captureAfterPrecapture() {
+        mMachine.lockFocus(mNow);
+        replay(new Integer[][]{
+                {NONE, NONE},
+                {NONE, NONE},
+                {NONE, NONE},
+        });
+
+        assertEquals(1, mCallback.mPrecaptures);
+        assertEquals(1, mCallback.mCaptures);
+    }
+
+    @Test
+    public void focusNeverLocks_captureForcedByFrameDeadline() {
+        mMachine.lockFocus(mNow);
+        long start = mNow;
+        int frames = replayUntilCapture(CONTROL_AF_STATE_ACTIVE_SCAN, CONTROL_AE_STATE_CONVERGED,
+                1000);
+
+        assertEquals(CaptureStateMachine.DEFAULT_MAX_FRAMES, frames);
+        assertEquals(1, mMachine.getTimeoutCount());
+        assertTrue(mNow - start <= TimeUnit.MILLISECONDS.toNanos(
+                CaptureStateMachine.DEFAULT_MAX_MILLIS));
+    }
+
+    @Test
+    public void slowFrames_captureForcedByTimeDeadline() {
+        mMachine.setDeadline(CameraState.WAITING_LOCK, 100, 500);
+        mMachine.lockFocus(mNow);
+        long start = mNow;
+
+        while (mCallback.mCaptures == 0) {
+            mNow += TimeUnit.MILLISECONDS.toNanos(100);
+            mMachine.process(CONTROL_AF_STATE_ACTIVE_SCAN, CONTROL_AE_STATE_CONVERGED, true, mNow);
+        }
+
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), mNow - start);
+        assertEquals(1, mMachine.getTimeoutCount());
+    }
+
+    @Test
+    public void exposureStuckInPrecapture_worstCaseIsBounded() {
+        mMachine.lockFocus(mNow);
+        long start = mNow;
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_SEARCHING},
+        });
+        replayUntilCapture(CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_PRECAPTURE, 1000);
+
+        assertEquals(1, mCallback.mCaptures);
+        assertEquals(1, mMachine.getTimeoutCount());
+        // one frame to lock, one to start the precapture sequence, then the deadline
+        long worstCase = 2 * FRAME_NANOS + TimeUnit.MILLISECONDS.toNanos(
+                CaptureStateMachine.DEFAULT_MAX_MILLIS);
+        assertTrue(mNow - start <= worstCase);
+    }
+
+    @Test
+    public void partialResults_doNotCountAsFrames() {
+        mMachine.setDeadline(CameraState.WAITING_LOCK, 2, 10000);
+        mMachine.lockFocus(mNow);
+        for (int i = 0; i < 10; i++) {
+            mNow += 1000;
+            mMachine.process(CONTROL_AF_STATE_ACTIVE_SCAN, NONE, false, mNow);
+        }
+        assertEquals(0, mCallback.mCaptures);
+
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_ACTIVE_SCAN, NONE},
+                {CONTROL_AF_STATE_ACTIVE_SCAN, NONE},
+        });
+        assertEquals(1, mCallback.mCaptures);
+    }
+
+    @Test
+    public void triggerIgnored_capturesImmediately() {
+        mMachine.lockFocus(mNow);
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_CONVERGED},
+        });
+
+        assertEquals(1, mCallback.mCaptures);
+        assertEquals(0, mMachine.getTimeoutCount());
+    }
+
+    @Test
+    public void resultsAfterCapture_areIgnored() {
+        mMachine.lockFocus(mNow);
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_CONVERGED},
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_CONVERGED},
+        });
+        replayUntilCapture(CONTROL_AF_STATE_ACTIVE_SCAN, NONE, 100);
+
+        assertEquals(1, mCallback.mCaptures);
+    }
+
+    @Test
+    public void preview_ignoresResults() {
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_CONVERGED},
+                {NONE, NONE},
+        });
+
+        assertEquals(CameraState.PREVIEW, mMachine.getState());
+        assertEquals(0, mCallback.mPrecaptures + mCallback.mCaptures);
+    }
+
+    @Test
+    public void reset_reportsTimeSpentInState() {
+        mMachine.capture(mNow);
+        mMachine.reset(mNow + 42);
+
+        assertEquals(CameraState.TAKEN, mCallback.mLastPrevious);
+        assertEquals(42, mCallback.mLastDuration);
+        assertEquals(CameraState.PREVIEW, mMachine.getState());
+    }
+
+    @Test
+    public void previewConverged_capturesWithoutFocusLock() {
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_SCAN, CONTROL_AE_STATE_SEARCHING},
+                {CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_CONVERGED},
+        });
+
+        assertTrue(mMachine.captureIfConverged(mNow));
+        assertEquals(CameraState.TAKEN, mMachine.getState());
+        assertEquals(1, mCallback.mCaptures);
+        assertEquals(1, mMachine.getFastCaptureCount());
+        assertEquals(0, mMachine.getFocusLockCount());
+    }
+
+    @Test
+    public void previewNotConverged_needsFocusLock() {
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_CONVERGED},
+                {CONTROL_AF_STATE_PASSIVE_SCAN, CONTROL_AE_STATE_CONVERGED},
+        });
+        assertFalse(mMachine.captureIfConverged(mNow));
+
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_SEARCHING},
+        });
+        assertFalse(mMachine.captureIfConverged(mNow));
+
+        assertEquals(CameraState.PREVIEW, mMachine.getState());
+        assertEquals(0, mCallback.mCaptures);
+        assertEquals(0, mMachine.getFastCaptureCount());
+    }
+
+    @Test
+    public void stalePreviewResult_needsFocusLock() {
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_CONVERGED},
+        });
+        mNow += TimeUnit.MILLISECONDS.toNanos(
+                CaptureStateMachine.MAX_PREVIEW_RESULT_AGE_MILLIS + 1);
+
+        assertFalse(mMachine.captureIfConverged(mNow));
+    }
+
+    @Test
+    public void partialPreviewResult_isNotTracked() {
+        mNow += FRAME_NANOS;
+        mMachine.process(CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_CONVERGED, false, mNow);
+
+        assertFalse(mMachine.captureIfConverged(mNow));
+    }
+
+    @Test
+    public void afterReset_waitsForFreshPreviewResult() {
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_CONVERGED},
+        });
+        assertTrue(mMachine.captureIfConverged(mNow));
+        mMachine.reset(mNow);
+
+        assertFalse(mMachine.captureIfConverged(mNow));
+
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_CONVERGED},
+        });
+        assertTrue(mMachine.captureIfConverged(mNow));
+        assertEquals(2, mMachine.getFastCaptureCount());
+    }
+
+    @Test
+    public void replayedSession_fastPathRatio() {
+        // three shots: converged, still scanning, converged again
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_CONVERGED},
+        });
+        takePicture();
+        mMachine.reset(mNow);
+
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_SCAN, CONTROL_AE_STATE_CONVERGED},
+        });
+        takePicture();
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_FOCUSED_LOCKED, CONTROL_AE_STATE_CONVERGED},
+        });
+        mMachine.reset(mNow);
+
+        replay(new Integer[][]{
+                {CONTROL_AF_STATE_PASSIVE_FOCUSED, CONTROL_AE_STATE_CONVERGED},
+        });
+        takePicture();
+
+        assertEquals(3, mCallback.mCaptures);
+        assertEquals(2, mMachine.getFastCaptureCount());
+        assertEquals(1, mMachine.getFocusLockCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setDeadline_rejectsNonWaitingState() {
+        mMachine.setDeadline(CameraState.TAKEN, 1, 1);
+    }
+
+    private void takePicture() {
+        if (!mMachine.captureIfConverged(mNow)) {
+            mMachine.lockFocus(mNow);
+        }
+    }
+
+    private void replay(Integer[][] results) {
+        for (Integer[] result : results) {
+            mNow += FRAME_NANOS;
+            mMachine.process(result[0], result[1], true, mNow);
+        }
+    }
+
+    /**
+     * @return frames fed until the first capture, or {@code maxFrames}
+     */
+    private int replayUntilCapture(Integer afState, Integer aeState, int maxFrames) {
+        int captures = mCallback.mCaptures;
+        int frames = 0;
+        while (frames < maxFrames && mCallback.mCaptures == captures) {
+            replay(new Integer[][]{{afState, aeState}});
+            frames++;
+        }
+        return frames;
+    }
+
+    private static class FakeCallback implements CaptureStateMachine.Callback {
+        int mPrecaptures;
+        int mCaptures;
+        CameraState mLastPrevious;
+        long mLastDuration;
+
+        @Override
+        public void runPrecaptureSequence() {
+            mPrecaptures++;
+        }
+
+        @Override
+        public void captureStillPicture() {
+            mCaptures++;
+        }
+
+        @Override
+        public void onStateChanged(CameraState previous, CameraState state, long durationNanos) {
+            mLastPrevious = previous;
+            mLastDuration = durationNanos;
+        }
+    }
+}
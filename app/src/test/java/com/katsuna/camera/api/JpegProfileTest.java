@@ -0,0 +1,95 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.api;
+
+import android.util.Size;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Chooses EXIF thumbnails from JPEG_AVAILABLE_THUMBNAIL_SIZES tables recorded from devices, as
+ * width and height.
+ */
+public class JpegProfileTest {
+
+    /**
+     * Thumbnails of several aspect ratios, including the mandatory 0x0.
+     */
+    private static final int[][] MIXED_RATIOS = {
+            {0, 0},
+            {176, 144},
+            {240, 144},
+            {256, 144},
+            {240, 160},
+            {256, 154},
+            {246, 184},
+            {240, 240},
+            {320, 240},
+    };
+
+    /**
+     * A camera that can only turn the thumbnail off.
+     */
+    private static final int[][] ONLY_NONE = {
+            {0, 0},
+    };
+
+    @Test
+    public void large_matchesCaptureAspectRatio() {
+        assertChooses(MIXED_RATIOS, JpegProfile.LARGE, 4032, 3024, "320x240");
+        assertChooses(MIXED_RATIOS, JpegProfile.LARGE, 4032, 2268, "256x144");
+    }
+
+    @Test
+    public void small_staysWithinItsMaxSide() {
+        // 246x184 and 320x240 are closer to 4:3 but too large
+        assertChooses(MIXED_RATIOS, JpegProfile.SMALL, 2016, 1512, "176x144");
+    }
+
+    @Test
+    public void onlyZeroSize_choosesNoThumbnail() {
+        assertNull(JpegProfile.LARGE.chooseThumbnailSize(sizes(ONLY_NONE), new Size(4000, 3000)));
+    }
+
+    @Test
+    public void emptyTable_choosesNoThumbnail() {
+        assertNull(JpegProfile.SMALL.chooseThumbnailSize(new ArrayList<>(), new Size(4000, 3000)));
+    }
+
+    private static void assertChooses(int[][] table, JpegProfile profile, int captureWidth,
+                                      int captureHeight, String expected) {
+        Size chosen = profile.chooseThumbnailSize(sizes(table),
+                new Size(captureWidth, captureHeight));
+        assertEquals(expected, String.valueOf(chosen));
+    }
+
+    private static List<Size> sizes(int[][] table) {
+        List<Size> sizes = new ArrayList<>();
+        for (int[] row : table) {
+            sizes.add(new Size(row[0], row[1]));
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.api;
+
+import com.katsuna.camera.data.SizeMode;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Resolves size modes against JPEG size tables recorded from devices, as width, height, stall
+ * and min frame duration in nanoseconds.
+ */
+public class SizeLadderTest {
+
+    /**
+     * 4:3 sensor that lists the exact half size.
+     */
+    private static final long[][] HALF_SIZE_LISTED = {
+            {4032, 3024, 98_000_000, 50_000_000},
+            {4000, 3000, 96_000_000, 50_000_000},
+            {4032, 2268, 74_000_000, 33_333_333},
+            {3264, 2448, 64_000_000, 33_333_333},
+            {2016, 1512, 33_000_000, 33_333_333},
+            {1920, 1080, 33_000_000, 33_333_333},
+            {1280, 960, 33_000_000, 33_333_333},
+            {640, 480, 33_000_000, 33_333_333},
+    };
+
+    /**
+     * 4:3 sensor without the half size, halving it would configure an unsupported stream.
+     */
+    private static final long[][] HALF_SIZE_MISSING = {
+            {4208, 3120, 120_000_000, 50_000_000},
+            {4160, 3120, 118_000_000, 50_000_000},
+            {3264, 2448, 80_000_000, 33_333_333},
+            {2592, 1944, 66_000_000, 33_333_333},
+            {1920, 1080, 33_000_000, 33_333_333},
+            {1600, 1200, 33_000_000, 33_333_333},
+            {640, 480, 33_000_000, 33_333_333},
+    };
+
+    /**
+     * Two sizes near the target where the slightly smaller one is encoded without a stall.
+     */
+    private static final long[][] FAST_NEAR_TARGET = {
+            {4000, 3000, 90_000_000, 50_000_000},
+            {2000, 1500, 45_000_000, 33_333_333},
+            {1920, 1440, 0, 33_333_333},
+            {800, 600, 0, 33_333_333},
+    };
+
+    /**
+     * Only the full size has the sensor aspect ratio.
+     */
+    private static final long[][] NO_SMALLER_SAME_RATIO = {
+            {4000, 3000, 90_000_000, 50_000_000},
+            {1920, 1080, 33_000_000, 33_333_333},
+            {1280, 720, 33_000_000, 33_333_333},
+    };
+
+    @Test
+    public void large_isLargestSize() {
+        assertResolves(HALF_SIZE_LISTED, SizeMode.LARGE, "4032x3024");
+        assertResolves(HALF_SIZE_MISSING, SizeMode.LARGE, "4208x3120");
+    }
+
+    @Test
+    public void small_usesHalfSizeWhenListed() {
+        assertResolves(HALF_SIZE_LISTED, SizeMode.SMALL, "2016x1512");
+    }
+
+    @Test
+    public void small_usesSupportedSizeWhenHalfSizeMissing() {
+        // 2104x1560 isn't in the table
+        assertResolves(HALF_SIZE_MISSING, SizeMode.SMALL, "2592x1944");
+    }
+
+    @Test
+    public void small_prefersLowerStallNearTarget() {
+        assertResolves(FAST_NEAR_TARGET, SizeMode.SMALL, "1920x1440");
+    }
+
+    @Test
+    public void small_prefersLowerMinFrameDurationOnEqualStall() {
+        long[][] table = {
+                {4000, 3000, 90_000_000, 50_000_000},
+                {2000, 1500, 33_000_000, 50_000_000},
+                {1920, 1440, 33_000_000, 33_333_333},
+        };
+        assertResolves(table, SizeMode.SMALL, "1920x1440");
+    }
+
+    @Test
+    public void small_fallsBackToClosestOutsideTheBand() {
+        long[][] table = {
+                {4000, 3000, 90_000_000, 50_000_000},
+                {3200, 2400, 70_000_000, 33_333_333},
+                {640, 480, 33_000_000, 33_333_333},
+        };
+        assertResolves(table, SizeMode.SMALL, "3200x2400");
+    }
+
+    @Test
+    public void small_withoutSmallerSameRatio_usesLargest() {
+        assertResolves(NO_SMALLER_SAME_RATIO, SizeMode.SMALL, "4000x3000");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyTable_throws() {
+        new SizeLadder(new ArrayList<>());
+    }
+
+    private static void assertResolves(long[][] table, SizeMode sizeMode, String expected) {
+        List<SizeLadder.Option> options = new ArrayList<>();
+        for (long[] row : table) {
+            options.add(new SizeLadder.Option((int) row[0], (int) row[1], row[2], row[3]));
+        }
+        assertEquals(expected, new SizeLadder(options).resolve(sizeMode).toString());
+    }
+}
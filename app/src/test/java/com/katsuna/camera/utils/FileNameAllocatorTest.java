@@ -0,0 +1,166 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileNameAllocatorTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    /**
+     * 2020-10-15 10:11:12.345 UTC
+     */
+    private static final long NOW = 1602756672345L;
+
+    private static final int THREADS = 8;
+    private static final int NAMES_PER_THREAD = 20000;
+    /**
+     * A burst needs a handful of names per second. The bound is orders of magnitude above what
+     * the allocator takes, so only a lock or a format per name would break it.
+     */
+    private static final long MAX_NANOS_PER_NAME = TimeUnit.MICROSECONDS.toNanos(50);
+
+    @Test
+    public void next_formatsTimestampAndExtension() {
+        FileNameAllocator allocator = new FileNameAllocator(() -> NOW, UTC);
+
+        assertEquals("20201015_101112.345.jpg", allocator.next(".jpg"));
+    }
+
+    @Test
+    public void format_padsMilliseconds() {
+        FileNameAllocator allocator = new FileNameAllocator(() -> NOW, UTC);
+
+        assertEquals("20201015_101112.000", allocator.format(NOW - 345));
+        assertEquals("20201015_101112.007", allocator.format(NOW - 338));
+        assertEquals("20201015_101112.042", allocator.format(NOW - 303));
+    }
+
+    @Test
+    public void next_sameMillisecondMovesToNextName() {
+        FileNameAllocator allocator = new FileNameAllocator(() -> NOW, UTC);
+
+        assertEquals("20201015_101112.345.jpg", allocator.next(".jpg"));
+        assertEquals("20201015_101112.346.jpg", allocator.next(".jpg"));
+        assertEquals("20201015_101112.347.jpg", allocator.next(".jpg"));
+    }
+
+    @Test
+    public void next_clockGoingBackStaysIncreasing() {
+        long[] clock = {NOW};
+        FileNameAllocator allocator = new FileNameAllocator(() -> clock[0], UTC);
+
+        long first = allocator.nextMillis();
+        clock[0] = NOW - 5000;
+        long second = allocator.nextMillis();
+
+        assertEquals(first + 1, second);
+    }
+
+    @Test
+    public void next_rollsOverSecondBoundary() {
+        FileNameAllocator allocator = new FileNameAllocator(() -> NOW - 345 + 999, UTC);
+
+        assertEquals("20201015_101112.999.jpg", allocator.next(".jpg"));
+        assertEquals("20201015_101113.000.jpg", allocator.next(".jpg"));
+    }
+
+    @Test
+    public void next_frozenClockConcurrentNamesAreUnique() throws Exception {
+        FileNameAllocator allocator = new FileNameAllocator(() -> NOW, UTC);
+
+        Set<String> names = allocateConcurrently(allocator);
+
+        assertEquals(THREADS * NAMES_PER_THREAD, names.size());
+    }
+
+    @Test
+    public void next_concurrentThroughput() throws Exception {
+        FileNameAllocator allocator = new FileNameAllocator(() -> NOW, UTC);
+
+        long start = System.nanoTime();
+        Set<String> names = allocateConcurrently(allocator);
+        long nanos = System.nanoTime() - start;
+
+        assertEquals(THREADS * NAMES_PER_THREAD, names.size());
+        assertTrue(nanos / names.size() + " ns per name",
+                nanos / names.size() < MAX_NANOS_PER_NAME);
+    }
+
+    @Test
+    public void next_realClockConcurrentNamesAreUnique() throws Exception {
+        FileNameAllocator allocator = new FileNameAllocator();
+
+        Set<String> names = allocateConcurrently(allocator);
+
+        assertEquals(THREADS * NAMES_PER_THREAD, names.size());
+    }
+
+    /**
+     * Every thread checks that its own names increase, the union is returned.
+     */
+    private static Set<String> allocateConcurrently(FileNameAllocator allocator)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch startSignal = new CountDownLatch(1);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                Callable<List<String>> task = () -> {
+                    startSignal.await();
+                    List<String> names = new ArrayList<>(NAMES_PER_THREAD);
+                    for (int i = 0; i < NAMES_PER_THREAD; i++) {
+                        names.add(allocator.next(".jpg"));
+                    }
+                    return names;
+                };
+                futures.add(executor.submit(task));
+            }
+            startSignal.countDown();
+
+            Set<String> all = new HashSet<>();
+            for (Future<List<String>> future : futures) {
+                List<String> names = future.get(30, TimeUnit.SECONDS);
+                for (int i = 1; i < names.size(); i++) {
+                    assertTrue(names.get(i - 1) + " < " + names.get(i),
+                            names.get(i - 1).compareTo(names.get(i)) < 0);
+                }
+                all.addAll(names);
+            }
+            return all;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
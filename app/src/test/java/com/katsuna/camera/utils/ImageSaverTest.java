@@ -0,0 +1,126 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.utils;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ImageSaverTest {
+
+    private static final int JPEG_SIZE = 8 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void write_storesExactBufferContents() throws IOException {
+        byte[] expected = randomBytes(JPEG_SIZE);
+        FakeJpegSource source = new FakeJpegSource(expected);
+        File file = mFolder.newFile("shot.jpg");
+
+        long written = ImageSaver.write(source, file);
+
+        assertEquals(expected.length, written);
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+        assertTrue(source.mClosed);
+    }
+
+    @Test
+    public void write_releasesSourceOnFailure() {
+        FakeJpegSource source = new FakeJpegSource(randomBytes(16));
+        File file = new File(mFolder.getRoot(), "missing/shot.jpg");
+
+        try {
+            ImageSaver.write(source, file);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            // the parent directory does not exist
+        }
+
+        assertTrue(source.mClosed);
+    }
+
+    @Test
+    public void write_doesNotAllocateHeapCopyOfJpeg() throws IOException {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        byte[] bytes = randomBytes(JPEG_SIZE);
+        File file = mFolder.newFile("shot.jpg");
+
+        // warm up class loading and the channel implementation
+        ImageSaver.write(new FakeJpegSource(bytes), file);
+
+        FakeJpegSource source = new FakeJpegSource(bytes);
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        ImageSaver.write(source, file);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated + " bytes for a " + JPEG_SIZE + " bytes shot",
+                allocated < JPEG_SIZE / 16);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Stands in for an {@link android.media.Image} plane: a direct buffer filled once up front.
+     */
+    private static class FakeJpegSource implements ImageSaver.JpegSource {
+
+        private final ByteBuffer mBuffer;
+        private boolean mClosed;
+
+        FakeJpegSource(byte[] bytes) {
+            mBuffer = ByteBuffer.allocateDirect(bytes.length);
+            mBuffer.put(bytes);
+            mBuffer.flip();
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+}
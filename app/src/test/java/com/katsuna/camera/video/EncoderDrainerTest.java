@@ -0,0 +1,210 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.media.MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+import static android.media.MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+import static android.media.MediaCodec.BUFFER_FLAG_KEY_FRAME;
+import static android.media.MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+import static android.media.MediaCodec.INFO_TRY_AGAIN_LATER;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains scripted fake encoders into a muxer writing to {@link InterleavingMuxerTest.FakeSink}.
+ */
+public class EncoderDrainerTest {
+
+    private InterleavingMuxerTest.FakeSink mSink;
+    private RecordingStats mStats;
+    private InterleavingMuxer<String> mMuxer;
+
+    @Before
+    public void setUp() {
+        mSink = new InterleavingMuxerTest.FakeSink();
+        mStats = new RecordingStats();
+        mMuxer = new InterleavingMuxer<>(mSink, 2, mStats);
+    }
+
+    @Test
+    public void drainsBothEncodersIntoInterleavedFile() throws InterruptedException {
+        FakeCodec video = new FakeCodec("avc")
+                .tryAgain()
+                .formatChanged()
+                .output(0, BUFFER_FLAG_CODEC_CONFIG)
+                .output(0, BUFFER_FLAG_KEY_FRAME)
+                .output(33_000, 0)
+                .output(66_000, 0)
+                .endOfStream(66_000);
+        FakeCodec audio = new FakeCodec("aac")
+                .formatChanged()
+                .output(0, BUFFER_FLAG_CODEC_CONFIG)
+                .output(20_000, 0)
+                .output(43_000, 0)
+                .tryAgain()
+                .output(66_000, 0)
+                .endOfStream(66_000);
+
+        Thread videoThread = new Thread(new EncoderDrainer<>("video", video, mMuxer, 0,
+                (sample, nowNanos) -> mStats.onFrameOut(sample.getPresentationTimeUs(),
+                        nowNanos)));
+        Thread audioThread = new Thread(new EncoderDrainer<>("audio", audio, mMuxer, 1,
+                (sample, nowNanos) -> mStats.onAudioSampleOut()));
+        videoThread.start();
+        audioThread.start();
+        videoThread.join(5000);
+        audioThread.join(5000);
+        mMuxer.stop();
+
+        assertEquals("V0 A20000 V33000 A43000 V66000 A66000", mSink.written());
+        assertEquals(3, mStats.getFramesOut());
+        assertEquals(3, mStats.getAudioSamplesOut());
+        assertTrue(video.allReleased());
+        assertTrue(audio.allReleased());
+    }
+
+    @Test
+    public void measuresEncodeLatencyAndDrops() {
+        mMuxer.endTrack(1);
+        long now = 1_000_000_000L;
+        mStats.onFrameIn(0, now);
+        mStats.onFrameIn(33_000, now + 33_000_000);
+        mStats.onFrameIn(66_000, now + 66_000_000);
+
+        FakeCodec video = new FakeCodec("avc")
+                .formatChanged()
+                .output(0, BUFFER_FLAG_KEY_FRAME)
+                .output(66_000, 0)
+                .endOfStream(66_000);
+        List<Long> outAt = new ArrayList<>();
+        EncoderDrainer<String> drainer = new EncoderDrainer<>("video", video, mMuxer, 0,
+                (sample, nowNanos) -> {
+                    // the encoder took 10 ms for every frame
+                    long fakeNow = now + sample.getPresentationTimeUs() * 1000 + 10_000_000;
+                    outAt.add(fakeNow);
+                    mStats.onFrameOut(sample.getPresentationTimeUs(), fakeNow);
+                });
+        drainer.run();
+        mStats.onFinished();
+
+        assertEquals(3, mStats.getFramesIn());
+        assertEquals(2, mStats.getFramesOut());
+        // the frame at 33 ms never came out
+        assertEquals(1, mStats.getFramesDropped());
+        assertEquals(10_000_000L, mStats.getEncodeLatencyPercentiles(50)[0]);
+        assertEquals(2, outAt.size());
+    }
+
+    @Test
+    public void cancelledDrainerEndsItsTrack() {
+        FakeCodec video = new FakeCodec("avc").formatChanged().output(0, 0);
+        EncoderDrainer<String> drainer = new EncoderDrainer<>("video", video, mMuxer, 0,
+                (sample, nowNanos) -> { });
+        // an encoder that never sends the end of stream
+        drainer.drainOnce();
+        drainer.drainOnce();
+        drainer.cancel();
+        drainer.run();
+
+        mMuxer.setFormat(1, "aac");
+        mMuxer.endTrack(1);
+        mMuxer.stop();
+        assertEquals("V0", mSink.written());
+    }
+
+    /**
+     * Replays a script of dequeue results. An exhausted script keeps answering try again later.
+     */
+    private static class FakeCodec implements EncoderDrainer.Codec<String> {
+        private final String mFormat;
+        private final ArrayDeque<long[]> mScript = new ArrayDeque<>();
+        private final List<Integer> mOutstanding = new ArrayList<>();
+        private int mNextIndex;
+
+        FakeCodec(String format) {
+            mFormat = format;
+        }
+
+        FakeCodec tryAgain() {
+            mScript.add(new long[]{INFO_TRY_AGAIN_LATER});
+            return this;
+        }
+
+        FakeCodec formatChanged() {
+            mScript.add(new long[]{INFO_OUTPUT_FORMAT_CHANGED});
+            return this;
+        }
+
+        FakeCodec output(long pts, int flags) {
+            mScript.add(new long[]{0, pts, flags, 8});
+            return this;
+        }
+
+        FakeCodec endOfStream(long pts) {
+            mScript.add(new long[]{0, pts, BUFFER_FLAG_END_OF_STREAM, 0});
+            return this;
+        }
+
+        @Override
+        public int dequeueOutputBuffer(@NonNull EncodedSample sample, long timeoutUs) {
+            long[] step = mScript.poll();
+            if (step == null) return INFO_TRY_AGAIN_LATER;
+            if (step[0] < 0) return (int) step[0];
+
+            sample.set(0, (int) step[3], step[1], (int) step[2]);
+            int index = mNextIndex++;
+            mOutstanding.add(index);
+            return index;
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return ByteBuffer.allocate(8);
+        }
+
+        @NonNull
+        @Override
+        public String getOutputFormat() {
+            return mFormat;
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            if (!mOutstanding.remove(Integer.valueOf(index))) {
+                throw new IllegalStateException("buffer " + index + " not dequeued");
+            }
+        }
+
+        boolean allReleased() {
+            return mOutstanding.isEmpty();
+        }
+    }
+}
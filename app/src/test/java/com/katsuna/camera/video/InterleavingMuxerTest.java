@@ -0,0 +1,340 @@
+/**
+* Copyright (C) 2020 Manos Saratsis
+*
+* This file is part of Katsuna.
+*
+* Katsuna is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* Katsuna is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with Katsuna.  If not, see <https://www.gnu.org/licenses/>.
+*/
+package com.katsuna.camera.video;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.media.MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+import static android.media.MediaCodec.BUFFER_FLAG_KEY_FRAME;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InterleavingMuxerTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private FakeSink mSink;
+    private RecordingStats mStats;
+    private InterleavingMuxer<String> mMuxer;
+
+    @Before
+    public void setUp() {
+        mSink = new FakeSink();
+        mStats = new RecordingStats();
+        mMuxer = new InterleavingMuxer<>(mSink, 2, mStats);
+    }
+
+    @Test
+    public void holdsSamplesUntilAllFormatsAreKnown() {
+        mMuxer.setFormat(VIDEO, "avc");
+        write(VIDEO, 0, BUFFER_FLAG_KEY_FRAME);
+        write(VIDEO, 33_000, 0);
+
+        assertFalse(mSink.mStarted);
+        assertEquals(2, mMuxer.getPendingCount());
+
+        mMuxer.setFormat(AUDIO, "aac");
+        write(AUDIO, 40_000, 0);
+
+        assertTrue(mSink.mStarted);
+        assertEquals(2, mSink.mTracks.size());
+        assertEquals("V0 V33000", mSink.written());
+    }
+
+    @Test
+    public void startsWithoutATrackWhoseFormatNeverComes() {
+        mMuxer.setFormat(VIDEO, "avc");
+        long pts = 0;
+        for (; pts <= InterleavingMuxer.MAX_FORMAT_WAIT_US; pts += 33_000) {
+            write(VIDEO, pts, 0);
+        }
+        assertFalse(mSink.mStarted);
+
+        write(VIDEO, pts, 0);
+
+        assertTrue(mSink.mStarted);
+        assertEquals(1, mSink.mTracks.size());
+        assertEquals(0, mMuxer.getPendingCount());
+
+        // the late track is ignored
+        mMuxer.setFormat(AUDIO, "aac");
+        write(AUDIO, pts, 0);
+        mMuxer.stop();
+        assertEquals(pts / 33_000 + 1, mSink.mWritten.size());
+    }
+
+    @Test
+    public void interleavesByPresentationTime() {
+        startBoth();
+        write(VIDEO, 0, BUFFER_FLAG_KEY_FRAME);
+        write(VIDEO, 33_000, 0);
+        write(VIDEO, 66_000, 0);
+        write(AUDIO, 10_000, 0);
+        write(AUDIO, 33_000, 0);
+        write(AUDIO, 56_000, 0);
+        write(AUDIO, 79_000, 0);
+        mMuxer.stop();
+
+        assertEquals("V0 A10000 V33000 A33000 A56000 V66000 A79000", mSink.written());
+        assertTrue(mSink.mStopped);
+    }
+
+    @Test
+    public void laggingTrackDoesNotHoldTheOtherForever() {
+        startBoth();
+        write(AUDIO, 0, 0);
+        for (long pts = 0; pts <= InterleavingMuxer.MAX_SKEW_US + 100_000; pts += 33_000) {
+            write(VIDEO, pts, 0);
+        }
+
+        // audio went quiet, video beyond the skew limit is written anyway
+        assertTrue(mSink.mWritten.size() > 2);
+        assertEquals(0, mSink.mWritten.get(0).mPts);
+    }
+
+    @Test
+    public void endedTrackStopsHoldingTheOther() {
+        startBoth();
+        write(VIDEO, 0, 0);
+        write(VIDEO, 33_000, 0);
+        assertEquals("", mSink.written());
+
+        mMuxer.endTrack(AUDIO);
+
+        assertEquals("V0 V33000", mSink.written());
+    }
+
+    @Test
+    public void backwardTimestampsAreMovedForward() {
+        startBoth();
+        mMuxer.endTrack(AUDIO);
+        write(VIDEO, 100, 0);
+        write(VIDEO, 100, 0);
+        write(VIDEO, 50, 0);
+
+        assertEquals("V100 V101 V102", mSink.written());
+    }
+
+    @Test
+    public void skipsCodecConfigAndCopiesData() {
+        startBoth();
+        mMuxer.endTrack(AUDIO);
+        ByteBuffer data = ByteBuffer.wrap(new byte[]{9, 9, 1, 2, 3, 9});
+        mMuxer.writeSample(VIDEO, data, new EncodedSample(0, 6, 0, BUFFER_FLAG_CODEC_CONFIG));
+        mMuxer.writeSample(VIDEO, data, new EncodedSample(2, 3, 0, BUFFER_FLAG_KEY_FRAME));
+        // the encoder reuses its buffer
+        data.put(2, (byte) 7);
+
+        assertEquals(1, mSink.mWritten.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, mSink.mWritten.get(0).mData);
+        assertEquals(BUFFER_FLAG_KEY_FRAME, mSink.mWritten.get(0).mFlags);
+        assertEquals(3, mStats.getBytesWritten());
+    }
+
+    @Test
+    public void copiesSamplesThatWait() {
+        startBoth();
+        ByteBuffer data = ByteBuffer.wrap(new byte[]{9, 1, 2, 3});
+        mMuxer.writeSample(VIDEO, data, new EncodedSample(1, 3, 0, BUFFER_FLAG_KEY_FRAME));
+        // the encoder reuses its buffer while the sample waits for audio
+        data.put(1, (byte) 7);
+        mMuxer.endTrack(AUDIO);
+
+        assertEquals(1, mSink.mWritten.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, mSink.mWritten.get(0).mData);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stopBeforeStart_throws() {
+        mMuxer.setFormat(VIDEO, "avc");
+        write(VIDEO, 0, 0);
+        mMuxer.stop();
+    }
+
+    @Test
+    public void rollsOverAtTheFirstVideoKeyFrameAfterTheDurationLimit() {
+        FakeRollover rollover = new FakeRollover();
+        mMuxer.setRollover(VIDEO, Long.MAX_VALUE, 1_000_000, rollover);
+        startBoth();
+        write(VIDEO, 0, BUFFER_FLAG_KEY_FRAME);
+        write(AUDIO, 500_000, BUFFER_FLAG_KEY_FRAME);
+        write(VIDEO, 1_000_000, 0);
+        write(AUDIO, 1_010_000, BUFFER_FLAG_KEY_FRAME);
+        write(VIDEO, 1_033_000, BUFFER_FLAG_KEY_FRAME);
+        write(AUDIO, 1_040_000, BUFFER_FLAG_KEY_FRAME);
+        mMuxer.endTrack(VIDEO);
+        mMuxer.endTrack(AUDIO);
+        mMuxer.stop();
+
+        assertEquals("V0 A500000 V1000000 A1010000", mSink.written());
+        assertTrue(mSink.mStopped);
+        assertEquals(1, rollover.mFinished.size());
+        assertEquals(1_010_000, (long) rollover.mDurations.get(0));
+
+        FakeSink next = rollover.mOpened.get(0);
+        assertEquals(next, mMuxer.getSink());
+        assertEquals(mSink.mTracks, next.mTracks);
+        assertEquals("V1033000 A1040000", next.written());
+        assertTrue(next.mStopped);
+        assertEquals(7_000, mMuxer.getSegmentDurationUs());
+    }
+
+    @Test
+    public void rollsOverOnSize() {
+        FakeRollover rollover = new FakeRollover();
+        mMuxer.setRollover(VIDEO, 32, Long.MAX_VALUE, rollover);
+        startBoth();
+        mMuxer.endTrack(AUDIO);
+        for (long pts = 0; pts < 5 * 33_000; pts += 33_000) {
+            write(VIDEO, pts, BUFFER_FLAG_KEY_FRAME);
+        }
+
+        assertEquals("V0 V33000", mSink.written());
+        assertEquals(2, rollover.mOpened.size());
+        assertEquals("V66000 V99000", rollover.mOpened.get(0).written());
+        assertEquals("V132000", rollover.mOpened.get(1).written());
+        assertEquals(32, (long) rollover.mBytes.get(0));
+    }
+
+    @Test
+    public void keepsWritingWhenTheNextSegmentCannotOpen() {
+        FakeRollover rollover = new FakeRollover();
+        rollover.mAvailable = false;
+        mMuxer.setRollover(VIDEO, 16, Long.MAX_VALUE, rollover);
+        startBoth();
+        mMuxer.endTrack(AUDIO);
+        write(VIDEO, 0, BUFFER_FLAG_KEY_FRAME);
+        write(VIDEO, 33_000, BUFFER_FLAG_KEY_FRAME);
+
+        assertEquals("V0 V33000", mSink.written());
+        assertTrue(rollover.mFinished.isEmpty());
+        assertFalse(mSink.mStopped);
+    }
+
+    private void startBoth() {
+        mMuxer.setFormat(VIDEO, "avc");
+        mMuxer.setFormat(AUDIO, "aac");
+    }
+
+    private void write(int track, long pts, int flags) {
+        mMuxer.writeSample(track, ByteBuffer.allocate(16), new EncodedSample(0, 16, pts, flags));
+    }
+
+    static class FakeSink implements InterleavingMuxer.Sink<String> {
+        final List<String> mTracks = new ArrayList<>();
+        final List<Written> mWritten = new ArrayList<>();
+        boolean mStarted;
+        boolean mStopped;
+        boolean mReleased;
+
+        @Override
+        public int addTrack(@NonNull String format) {
+            if (mStarted) throw new IllegalStateException("track added after start");
+            mTracks.add(format);
+            return mTracks.size() - 1;
+        }
+
+        @Override
+        public void start() {
+            mStarted = true;
+        }
+
+        @Override
+        public void writeSampleData(int track, @NonNull ByteBuffer data,
+                                    @NonNull EncodedSample sample) {
+            if (!mStarted || mStopped) throw new IllegalStateException("not started");
+            byte[] bytes = new byte[sample.getSize()];
+            ByteBuffer source = data.duplicate();
+            source.position(sample.getOffset());
+            source.get(bytes);
+            mWritten.add(new Written(mTracks.get(track), sample.getPresentationTimeUs(),
+                    sample.getFlags(), bytes));
+        }
+
+        @Override
+        public void stop() {
+            if (mWritten.isEmpty()) throw new IllegalStateException("nothing written");
+            mStopped = true;
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+
+        String written() {
+            StringBuilder builder = new StringBuilder();
+            for (Written w : mWritten) {
+                if (builder.length() > 0) builder.append(' ');
+                builder.append(w.mFormat.equals("avc") ? 'V' : 'A').append(w.mPts);
+            }
+            return builder.toString();
+        }
+    }
+
+    static class FakeRollover implements InterleavingMuxer.Rollover<String> {
+        final List<FakeSink> mOpened = new ArrayList<>();
+        final List<FakeSink> mFinished = new ArrayList<>();
+        final List<Long> mDurations = new ArrayList<>();
+        final List<Long> mBytes = new ArrayList<>();
+        boolean mAvailable = true;
+
+        @Override
+        public FakeSink openNextSink() {
+            if (!mAvailable) return null;
+            FakeSink sink = new FakeSink();
+            mOpened.add(sink);
+            return sink;
+        }
+
+        @Override
+        public void finishSink(@NonNull InterleavingMuxer.Sink<String> sink, long durationUs,
+                               long bytes) {
+            sink.stop();
+            sink.release();
+            mFinished.add((FakeSink) sink);
+            mDurations.add(durationUs);
+            mBytes.add(bytes);
+        }
+    }
+
+    static class Written {
+        final String mFormat;
+        final long mPts;
+        final int mFlags;
+        final byte[] mData;
+
+        Written(String format, long pts, int flags, byte[] data) {
+            mFormat = format;
+            mPts = pts;
+            mFlags = flags;
+            mData = data;
+        }
+    }
+}